@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * Latency of the first line an encoder writes, right after {@link JsonLogEncoder#start()} and right after
+ * a mapper is registered with {@link JsonLogEncoderRegistry}.  Each invocation gets a fresh encoder, so
+ * serializer lookups are not amortized; the warm-up after a registry change runs on the registering thread and
+ * should not show up here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 200)
+@Measurement(iterations = 1000)
+@Fork(1)
+public class EncoderStartupBenchmark {
+    @Param({ "false", "true" })
+    public boolean streaming;
+
+    private LoggingEvent event;
+    private JsonLogEncoder started;
+    private JsonLogEncoder reregistered;
+
+    @Setup(Level.Trial)
+    public void setUpEvent() {
+        CommonLogHolder.setServiceType("benchmark");
+        event = new LoggingEvent();
+        event.setLevel(ch.qos.logback.classic.Level.INFO);
+        event.setLoggerName("com.opentable.logging.EncoderStartupBenchmark");
+        event.setThreadName("main");
+        event.setMessage("reservation {} confirmed");
+        event.setArgumentArray(new Object[] { 42 });
+        event.setTimeStamp(System.currentTimeMillis());
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpEncoders() {
+        JsonLogEncoderRegistry.setObjectMapper(null);
+        started = newEncoder();
+        reregistered = newEncoder();
+        reregistered.encode(event);
+        JsonLogEncoderRegistry.setObjectMapper(new ObjectMapper());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        JsonLogEncoderRegistry.setObjectMapper(null);
+    }
+
+    private JsonLogEncoder newEncoder() {
+        final JsonLogEncoder result = new JsonLogEncoder();
+        result.setStreaming(streaming);
+        result.start();
+        return result;
+    }
+
+    @Benchmark
+    public byte[] firstEventAfterStart() {
+        return started.encode(event);
+    }
+
+    @Benchmark
+    public byte[] firstEventAfterRegistryChange() {
+        return reregistered.encode(event);
+    }
+}
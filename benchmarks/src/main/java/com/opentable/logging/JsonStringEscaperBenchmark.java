@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link JsonStringEscaper} against Jackson's own {@link JsonGenerator#writeString(String)}, for values shaped
+ * like messages and stack traces.  {@code ascii} is plain log text, {@code stack-trace} has a tab and a newline
+ * every line, {@code latin1} has an accented letter every few words, and {@code unicode} is mostly outside
+ * Latin-1, so the escaper turns it away and only adds the cost of trying.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonStringEscaperBenchmark {
+    @Param({ "ascii", "stack-trace", "latin1", "unicode" })
+    public String corpus;
+
+    @Param({ "256", "4096" })
+    public int length;
+
+    private String value;
+    private JsonGenerator gen;
+    private JsonStringEscaper escaper;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        value = corpus(corpus, length);
+        gen = new JsonFactory().createGenerator(OutputStream.nullOutputStream());
+        escaper = new JsonStringEscaper();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        gen.close();
+    }
+
+    static String corpus(String name, int length) {
+        final String unit;
+        switch (name) {
+            case "ascii":
+                unit = "Reservation r-98e1c3 confirmed for party of 4 at restaurant 1234, \"window\" seat requested. ";
+                break;
+            case "stack-trace":
+                unit = "\tat com.opentable.reservation.ReservationService.confirm(ReservationService.java:218)\n";
+                break;
+            case "latin1":
+                unit = "R\u00e9servation confirm\u00e9e pour 4 personnes au caf\u00e9 Z\u00fcrich, \u00e0 19h. ";
+                break;
+            case "unicode":
+                unit = "\u4e88\u7d04\u304c\u78ba\u5b9a\u3057\u307e\u3057\u305f 4\u540d\u69d8 \u30ec\u30b9\u30c8\u30e9\u30f3\u6771\u4eac \ud83c\udf63 ";
+                break;
+            default:
+                throw new IllegalArgumentException(name);
+        }
+        final StringBuilder result = new StringBuilder(length + unit.length());
+        while (result.length() < length) {
+            result.append(unit);
+        }
+        // Don't cut a surrogate pair in half
+        return result.substring(0, Character.isHighSurrogate(result.charAt(length - 1)) ? length - 1 : length);
+    }
+
+    @Benchmark
+    public JsonGenerator generator() throws IOException {
+        gen.writeString(value);
+        return gen;
+    }
+
+    @Benchmark
+    public JsonGenerator escaper() throws IOException {
+        if (!escaper.write(gen, value)) {
+            gen.writeString(value);
+        }
+        return gen;
+    }
+}
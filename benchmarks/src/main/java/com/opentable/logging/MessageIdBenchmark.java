@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of generating {@code @uuid} values under contention, for each built-in {@link MessageIdGenerator}.
+ * The secure generator shares one {@code SecureRandom}, so compare runs with {@code -t 1} and the default threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class MessageIdBenchmark {
+    @Param({ "secure", "time-ordered", "counter" })
+    public String generator;
+
+    private MessageIdGenerator ids;
+
+    @Setup
+    public void setUp() {
+        ids = MessageIdGenerators.forName(generator);
+    }
+
+    @Benchmark
+    public UUID nextId() {
+        return ids.nextId();
+    }
+
+    @Benchmark
+    public long[] nextIdBits(Bits bits) {
+        ids.nextId(bits.value);
+        return bits.value;
+    }
+
+    /**
+     * Per-thread destination for {@link MessageIdGenerator#nextId(long[])}.
+     */
+    @State(Scope.Thread)
+    public static class Bits {
+        final long[] value = new long[2];
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+
+import com.opentable.service.K8sInfo;
+
+/**
+ * Encode time and record size of {@link SmileLogEncoder} against {@link JsonLogEncoder}, over a small corpus
+ * shaped like service traffic: request lines with MDC, parameterized messages and the odd stack trace, all
+ * carrying Kubernetes info.  The {@code bytes} counter is the average size of an encoded event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SmileEncodingBenchmark {
+    @Param({ "json", "smile" })
+    public String format;
+
+    @Param({ "false", "true" })
+    public boolean streaming;
+
+    private JsonLogEncoder encoder;
+    private LoggingEvent[] corpus;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        CommonLogHolder.setServiceType("benchmark");
+        final K8sInfo k8sInfo = new K8sInfo();
+        k8sInfo.setClusterName("prod-us-west-2");
+        k8sInfo.setNamespace("reservations");
+        k8sInfo.setNodeHost("ip-10-1-2-3.ec2.internal");
+        k8sInfo.setPodName("reservation-service-7d9f8b6c4-x2x7k");
+        k8sInfo.setServiceName("reservation-service");
+        CommonLogHolder.setK8sInfo(k8sInfo);
+        encoder = "smile".equals(format) ? new SmileLogEncoder() : new JsonLogEncoder();
+        encoder.setStreaming(streaming);
+        encoder.start();
+        corpus = new LoggingEvent[] {
+            event("Request served", request("GET", "/api/v2/restaurants/1234/availability", "200")),
+            event("Reservation {} confirmed for {} guests", request("POST", "/api/v2/reservations", "201"), "r-98e1c3", 4),
+            event("Slow downstream call to {} took {} ms", request("GET", "/api/v2/restaurants/5678", "200"), "inventory", 1250),
+            event("Request served", request("GET", "/api/v2/restaurants/42/menu", "304")),
+            failure(),
+        };
+    }
+
+    private static Map<String, String> request(String method, String path, String status) {
+        final Map<String, String> mdc = new HashMap<>();
+        mdc.put("request-id", "5f0c2c1e-8b0e-4d53-9a6f-1c6f2d3b7a90");
+        mdc.put("method", method);
+        mdc.put("url", path);
+        mdc.put("status", status);
+        mdc.put("referring-service", "web-frontend");
+        return mdc;
+    }
+
+    private static LoggingEvent event(String message, Map<String, String> mdc, Object... args) {
+        return event(ch.qos.logback.classic.Level.INFO, message, mdc, args);
+    }
+
+    private static LoggingEvent event(ch.qos.logback.classic.Level level, String message, Map<String, String> mdc, Object... args) {
+        final LoggingEvent event = new LoggingEvent();
+        event.setLevel(level);
+        event.setLoggerName("com.opentable.reservation.ReservationController");
+        event.setThreadName("http-nio-8080-exec-7");
+        event.setMessage(message);
+        event.setArgumentArray(args);
+        event.setMDCPropertyMap(mdc);
+        event.setTimeStamp(System.currentTimeMillis());
+        return event;
+    }
+
+    private static LoggingEvent failure() {
+        final LoggingEvent event = event(ch.qos.logback.classic.Level.ERROR, "Could not reach {}",
+                request("GET", "/api/v2/restaurants/9/reviews", "503"), "reviews");
+        event.setThrowableProxy(new ThrowableProxy(new IllegalStateException("connection refused")));
+        return event;
+    }
+
+    @Benchmark
+    public byte[] encode(Size size) {
+        final LoggingEvent event = corpus[next];
+        next = next == corpus.length - 1 ? 0 : next + 1;
+        final byte[] result = encoder.encode(event);
+        size.add(result.length);
+        return result;
+    }
+
+    /**
+     * Reports the average encoded size next to the timings.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Size {
+        private long events;
+        private long total;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            events = 0;
+            total = 0;
+        }
+
+        void add(int length) {
+            events++;
+            total += length;
+        }
+
+        public double bytes() {
+            return events == 0 ? 0 : (double) total / events;
+        }
+    }
+}
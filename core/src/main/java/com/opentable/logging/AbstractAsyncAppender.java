@@ -0,0 +1,355 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+
+/**
+ * The lifecycle shared by the asynchronous appenders: a worker thread that drains queued events into the
+ * child appenders, optional helper threads, and a shutdown that never stops a child while it is still appending.
+ * <p>
+ * No thread is ever interrupted.  On {@link #stop()} the threads get up to {@code <maxFlushTime>} milliseconds
+ * to drain what is queued, and the child appenders are then stopped from the calling thread with its interrupt
+ * flag cleared, so that appenders such as {@code KafkaAppender} can shut down cleanly (see LOGBACK-1548).  If the
+ * threads miss the deadline, the remaining events are dropped and the last thread to finish stops the children
+ * once its current append returns.
+ */
+public abstract class AbstractAsyncAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements AppenderAttachable<ILoggingEvent> {
+    public static final int DEFAULT_MAX_FLUSH_TIME = 1000;
+
+    private final AppenderAttachableImpl<ILoggingEvent> children = new AppenderAttachableImpl<>();
+    private final AtomicInteger liveThreads = new AtomicInteger();
+    private final AtomicBoolean childrenStopped = new AtomicBoolean();
+
+    private WaitStrategy waitStrategy;
+    private int maxFlushTime = DEFAULT_MAX_FLUSH_TIME;
+
+    private List<Thread> threads = new ArrayList<>();
+    private Thread worker;
+    private volatile boolean running;
+    // Set when stop() gave up waiting, the threads then drop what is left
+    private volatile boolean abandoned;
+    // Set while the worker sleeps until woken, see WaitStrategy.BLOCK
+    private volatile boolean sleeping;
+
+    /**
+     * @param waitStrategy how the worker waits for events unless configured otherwise
+     */
+    AbstractAsyncAppender(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public void start() {
+        if (isStarted()) {
+            return;
+        }
+        if (!children.iteratorForAppenders().hasNext()) {
+            addError("No attached appenders found.");
+            return;
+        }
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                addError("The appender named \"" + name + "\" is still appending the events of its last run.");
+                return;
+            }
+        }
+        threads = new ArrayList<>();
+        if (!prepare()) {
+            return;
+        }
+        abandoned = false;
+        childrenStopped.set(false);
+        running = true;
+        worker = newThread(this::drain, getClass().getSimpleName() + "-Worker-" + getName());
+        super.start();
+        liveThreads.set(threads.size());
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        super.stop();
+        close();
+        running = false;
+        threads.forEach(LockSupport::unpark);
+
+        final CleanShutdown shutdown = new CleanShutdown(maxFlushTime);
+        boolean flushed = true;
+        for (Thread thread : threads) {
+            flushed &= shutdown.join(thread);
+        }
+        if (flushed) {
+            stopChildren();
+        } else {
+            addWarn("Max flush time of " + maxFlushTime + " ms exceeded, dropping " + getQueuedEvents()
+                    + " queued events; the child appenders are stopped once the current append returns.");
+            abandoned = true;
+            threads.forEach(LockSupport::unpark);
+            // The threads may have finished in the meantime, then none of them is left to stop the children
+            if (liveThreads.get() == 0) {
+                stopChildren();
+            }
+        }
+        shutdown.restoreInterrupt();
+    }
+
+    private void stopChildren() {
+        if (childrenStopped.compareAndSet(false, true)) {
+            children.detachAndStopAllAppenders();
+        }
+    }
+
+    /**
+     * Validate the settings and allocate the queue, before any thread runs.  Helper threads are created
+     * here with {@link #newThread(Runnable, String)}.
+     * @return false if the appender cannot start, after reporting why
+     */
+    protected abstract boolean prepare();
+
+    /**
+     * Called by {@link #stop()} before the threads are told to finish, to turn away events that are still
+     * being added.  Does nothing by default.
+     */
+    protected void close() {
+    }
+
+    /**
+     * Create a daemon thread that starts with the appender and is waited for when it stops.
+     * @param task what the thread runs, returning once {@link #isRunning()} is false and its work is done
+     * @param threadName the name of the thread
+     * @return the thread, not yet started
+     */
+    protected final Thread newThread(Runnable task, String threadName) {
+        final Thread thread = new Thread(() -> run(task), threadName);
+        thread.setDaemon(true);
+        threads.add(thread);
+        return thread;
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } finally {
+            if (liveThreads.decrementAndGet() == 0 && abandoned) {
+                // stop() has returned, so this thread stops the children, without a stray interrupt in the way
+                Thread.interrupted();
+                stopChildren();
+            }
+        }
+    }
+
+    /**
+     * Take the next event to append.
+     * @return the event, or null if none is ready
+     */
+    protected abstract ILoggingEvent poll();
+
+    /**
+     * @return true if no event is queued or in flight
+     */
+    protected abstract boolean isEmpty();
+
+    /**
+     * @return true if {@link #poll()} would return an event; by default whenever the queue is not empty
+     */
+    protected boolean hasNext() {
+        return !isEmpty();
+    }
+
+    /**
+     * Called by the worker before each {@link #poll()}.
+     * @return the longest the worker may sleep before it is called again, in nanoseconds, or 0 for no limit
+     */
+    protected long beforePoll() {
+        return 0;
+    }
+
+    /**
+     * Called by the worker once the appender is stopping and every event has been appended.
+     * Does nothing by default.
+     */
+    protected void drained() {
+    }
+
+    /**
+     * @return the approximate number of events waiting to be appended
+     */
+    public abstract int getQueuedEvents();
+
+    private void drain() {
+        int attempt = 0;
+        while (!abandoned) {
+            final long maxSleep = beforePoll();
+            final ILoggingEvent event = poll();
+            if (event != null) {
+                deliver(event);
+                attempt = 0;
+                continue;
+            }
+            if (!running) {
+                if (isEmpty()) {
+                    drained();
+                    return;
+                }
+                // Events are still being published or prepared by other threads
+                waitStrategy.idle(attempt++);
+                continue;
+            }
+            if (Thread.interrupted()) {
+                // Don't let an appender's stray interrupt turn parking into spinning, or leak into other appenders
+                addWarn("Worker thread of the appender named \"" + name + "\" was interrupted, cleared the interrupt flag.");
+            }
+            if (waitStrategy.blocks(attempt)) {
+                sleeping = true;
+                if (running && !hasNext()) {
+                    if (maxSleep > 0) {
+                        LockSupport.parkNanos(this, maxSleep);
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+                sleeping = false;
+            } else {
+                waitStrategy.idle(attempt++);
+            }
+        }
+    }
+
+    /**
+     * Append an event to the children, reporting rather than propagating failures.
+     * @param event the event
+     */
+    protected final void deliver(ILoggingEvent event) {
+        try {
+            children.appendLoopOnAppenders(event);
+        } catch (RuntimeException e) {
+            addError("Appending an event failed in the appender named \"" + name + "\".", e);
+        }
+    }
+
+    /**
+     * Wake the worker if it sleeps, after an event was made ready for {@link #poll()}.
+     */
+    protected final void wakeWorker() {
+        if (sleeping) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Back off once while a producer waits for room in a full queue.  Whatever the worker does, a waiting
+     * producer parks, so that it never starves the worker.
+     * @param attempt the number of attempts so far
+     * @return false if the producer should give up, because the appender is stopping or the thread was interrupted
+     */
+    protected final boolean waitForRoom(int attempt) {
+        if (!running || Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        wakeWorker();
+        WaitStrategy.PARK.idle(attempt);
+        return true;
+    }
+
+    /**
+     * @return false once {@link #stop()} has been called
+     */
+    protected final boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return true if {@link #stop()} gave up waiting and queued events are to be dropped
+     */
+    protected final boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * @return how idle threads wait
+     */
+    final WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * @param waitStrategy {@code spin}, {@code yield}, {@code park} or {@code block}
+     */
+    public void setWaitStrategy(String waitStrategy) {
+        this.waitStrategy = WaitStrategy.fromString(waitStrategy);
+    }
+
+    /**
+     * @param maxFlushTime how long {@link #stop()} waits for queued events to be appended, in milliseconds
+     */
+    public void setMaxFlushTime(int maxFlushTime) {
+        this.maxFlushTime = maxFlushTime;
+    }
+
+    public int getMaxFlushTime() {
+        return maxFlushTime;
+    }
+
+    @Override
+    public void addAppender(Appender<ILoggingEvent> appender) {
+        children.addAppender(appender);
+    }
+
+    @Override
+    public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+        return children.iteratorForAppenders();
+    }
+
+    @Override
+    public Appender<ILoggingEvent> getAppender(String appenderName) {
+        return children.getAppender(appenderName);
+    }
+
+    @Override
+    public boolean isAttached(Appender<ILoggingEvent> appender) {
+        return children.isAttached(appender);
+    }
+
+    @Override
+    public void detachAndStopAllAppenders() {
+        children.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public boolean detachAppender(Appender<ILoggingEvent> appender) {
+        return children.detachAppender(appender);
+    }
+
+    @Override
+    public boolean detachAppender(String appenderName) {
+        return children.detachAppender(appenderName);
+    }
+}
@@ -13,8 +13,6 @@
  */
 package com.opentable.logging;
 
-import java.time.Instant;
-import java.time.format.DateTimeFormatter;
 import java.util.UUID;
 
 import ch.qos.logback.classic.pattern.ThrowableProxyConverter;
@@ -26,26 +24,122 @@ import ch.qos.logback.classic.spi.IThrowableProxy;
  */
 class ApplicationLogEvent implements CommonLogFields
 {
-    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ISO_INSTANT;
     public static final String LOGLOV_3_OTL_OVERRIDE = "@loglov3-otl-override";
+    static final String MESSAGE_TEMPLATE_KEY = "message-template";
+    static final String MESSAGE_ARGUMENTS_KEY = "message-arguments";
 
-    private final ILoggingEvent event;
-    private final UUID messageId = UUID.randomUUID();
+    private final long[] messageIdBits = new long[2];
+    private ILoggingEvent event;
+    private UUID messageId;
+    // Only the bits of the message id have been generated so far
+    private boolean idAsBits;
+    private ThrowableRenderer throwables;
+    private long fingerprint;
+    private boolean fingerprinted;
+    private boolean formattedMessage = true;
+    private boolean messageTemplate;
 
     /**
      * Create an application log event
      * @param event the log event from logback
      */
     ApplicationLogEvent(ILoggingEvent event)
+    {
+        this(event, CommonLogHolder.getMessageIdGenerator(), ThrowableConverterHack.INSTANCE);
+    }
+
+    /**
+     * Create an application log event
+     * @param event the log event from logback
+     * @param messageIds the generator for the message id
+     * @param throwables the renderer for the exception, if any
+     */
+    ApplicationLogEvent(ILoggingEvent event, MessageIdGenerator messageIds, ThrowableRenderer throwables)
+    {
+        this.event = event;
+        this.messageId = messageIds.nextId();
+        this.throwables = throwables;
+    }
+
+    /**
+     * Create an empty view, to be pointed at events with {@link #recycle(ILoggingEvent, MessageIdGenerator, ThrowableRenderer)}
+     */
+    ApplicationLogEvent()
+    {
+    }
+
+    /**
+     * Point this view at another event, without allocating.  The message id is only kept as bits until
+     * {@link #getMessageId()} is called; the streaming writer renders it with {@link #renderMessageId(char[], int)}.
+     * @param event the log event from logback
+     * @param messageIds the generator for the message id
+     * @param throwables the renderer for the exception, if any
+     * @return this view
+     */
+    ApplicationLogEvent recycle(ILoggingEvent event, MessageIdGenerator messageIds, ThrowableRenderer throwables)
     {
         this.event = event;
+        this.messageId = null;
+        this.idAsBits = true;
+        messageIds.nextId(messageIdBits);
+        this.throwables = throwables;
+        this.fingerprinted = false;
+        return this;
+    }
+
+    /**
+     * Choose how the message is written.
+     * @param formattedMessage whether to write the formatted {@code message}
+     * @param messageTemplate whether to write the SLF4J pattern as {@code message-template} and its arguments as {@code message-arguments}
+     * @return this event
+     */
+    ApplicationLogEvent messageFields(boolean formattedMessage, boolean messageTemplate)
+    {
+        this.formattedMessage = formattedMessage;
+        this.messageTemplate = messageTemplate;
+        return this;
+    }
+
+    /**
+     * Drop the reference to the last event, so a pooled view does not keep it reachable
+     */
+    void clear()
+    {
+        this.event = null;
+        this.throwables = null;
     }
 
     @Override
     public UUID getMessageId() {
+        if (idAsBits) {
+            messageId = new UUID(messageIdBits[0], messageIdBits[1]);
+            idAsBits = false;
+        }
         return messageId;
     }
 
+    /**
+     * @return true if this event has a message id
+     */
+    boolean hasMessageId()
+    {
+        return idAsBits || messageId != null;
+    }
+
+    /**
+     * Render the message id in its canonical form
+     * @param dest the array to render into, with at least 36 chars of room after {@code off}
+     * @param off where to start writing
+     * @return the offset just after the rendered id
+     */
+    int renderMessageId(char[] dest, int off)
+    {
+        if (idAsBits) {
+            return MessageIdGenerators.render(messageIdBits[0], messageIdBits[1], dest, off);
+        }
+        return MessageIdGenerators.render(messageId, dest, off);
+    }
+
     @Override
     public String getLogTypeName()
     {
@@ -67,7 +161,7 @@ class ApplicationLogEvent implements CommonLogFields
     @Override
     public String getTimestamp()
     {
-        return FORMAT.format(Instant.ofEpochMilli(event.getTimeStamp()));
+        return TimestampCache.INSTANCE.format(event.getTimeStamp());
     }
 
     @Override
@@ -79,7 +173,27 @@ class ApplicationLogEvent implements CommonLogFields
     @Override
     public String getMessage()
     {
-        return event.getFormattedMessage();
+        return formattedMessage ? event.getFormattedMessage() : null;
+    }
+
+    /**
+     * @return the unformatted SLF4J message pattern, if message templates are enabled
+     */
+    String getMessageTemplate()
+    {
+        return messageTemplate ? event.getMessage() : null;
+    }
+
+    /**
+     * @return the SLF4J message arguments, if message templates are enabled and there are any
+     */
+    Object[] getMessageArguments()
+    {
+        if (!messageTemplate) {
+            return null;
+        }
+        final Object[] args = event.getArgumentArray();
+        return args == null || args.length == 0 ? null : args;
     }
 
     @Override
@@ -89,7 +203,26 @@ class ApplicationLogEvent implements CommonLogFields
         if (t == null) {
             return null;
         }
-        return ThrowableConverterHack.INSTANCE.throwableProxyToString(t);
+        return throwables.render(t, fingerprint(t));
+    }
+
+    @Override
+    public String getThrowableFingerprint()
+    {
+        final IThrowableProxy t = event.getThrowableProxy();
+        if (t == null) {
+            return null;
+        }
+        return ThrowableFingerprint.toHex(fingerprint(t));
+    }
+
+    private long fingerprint(IThrowableProxy t)
+    {
+        if (!fingerprinted) {
+            fingerprint = ThrowableFingerprint.of(t);
+            fingerprinted = true;
+        }
+        return fingerprint;
     }
 
     @Override
@@ -100,6 +233,14 @@ class ApplicationLogEvent implements CommonLogFields
 
     @Override
     public String getLoglov3Otl() {
+        return loglov3Otl(event);
+    }
+
+    /**
+     * @param event the log event from logback
+     * @return the OTL an application log message for the event is written as
+     */
+    static String loglov3Otl(ILoggingEvent event) {
         return event.getMDCPropertyMap().getOrDefault(LOGLOV_3_OTL_OVERRIDE, "msg-v1");
     }
 
@@ -131,7 +272,7 @@ class ApplicationLogEvent implements CommonLogFields
     /**
      * A converter that converts {@link IThrowableProxy} objects to Strings
      */
-    static class ThrowableConverterHack extends ThrowableProxyConverter
+    static class ThrowableConverterHack extends ThrowableProxyConverter implements ThrowableRenderer
     {
         /**
          * Holds a singleton {@link ThrowableConverterHack}
@@ -151,5 +292,11 @@ class ApplicationLogEvent implements CommonLogFields
         {
             return super.throwableProxyToString(tp);
         }
+
+        @Override
+        public String render(IThrowableProxy throwable)
+        {
+            return throwableProxyToString(throwable);
+        }
     }
 }
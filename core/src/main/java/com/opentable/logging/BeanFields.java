@@ -0,0 +1,281 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMember;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMethod;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+import com.fasterxml.jackson.databind.ser.PropertyWriter;
+import com.fasterxml.jackson.databind.ser.std.BeanSerializerBase;
+
+/**
+ * The serializable properties of a bean type, as resolved by Jackson, so that the streaming encoder
+ * can write them one by one and answer "is this field present" without serializing to a tree first.
+ * <p>
+ * Presence checks run for every MDC entry, so getters are called through accessors generated with
+ * {@link LambdaMetafactory} rather than through reflection.  Writing goes through Jackson's property
+ * writers, which the encoder's Blackbird module has already optimized the same way.
+ */
+final class BeanFields {
+    private final BeanPropertyWriter[] properties;
+    private final Map<String, Function<Object, Object>> accessors;
+
+    private BeanFields(BeanPropertyWriter[] properties, Cache cache) {
+        this.properties = properties;
+        this.accessors = new HashMap<>();
+        for (BeanPropertyWriter p : properties) {
+            accessors.put(p.getName(), accessor(p, cache));
+        }
+    }
+
+    /**
+     * Check if the bean has a non-null value for a property.  Null values are never serialized,
+     * so they do not count as present.
+     * @param bean the bean to inspect
+     * @param name the JSON property name
+     * @return true if the property will be written
+     */
+    boolean has(Object bean, String name) {
+        return get(bean, name) != null;
+    }
+
+    /**
+     * Read a property of the bean.
+     * @param bean the bean to inspect
+     * @param name the JSON property name
+     * @return the property value, or null if the bean has no such property
+     */
+    Object get(Object bean, String name) {
+        final Function<Object, Object> accessor = accessors.get(name);
+        return accessor == null ? null : accessor.apply(bean);
+    }
+
+    /**
+     * @return the JSON property names, in the order Jackson writes them
+     */
+    String[] names() {
+        final String[] result = new String[properties.length];
+        for (int i = 0; i < properties.length; i++) {
+            result[i] = properties[i].getName();
+        }
+        return result;
+    }
+
+    /**
+     * Write all non-null properties of the bean as fields of the current object, in Jackson's order,
+     * giving long strings a chance to be capped.
+     * @param bean the bean to write
+     * @param gen the generator to write to
+     * @param provider the serializer provider to resolve value serializers with
+     * @param handler gets first go at each property, and can write it differently or leave it out
+     * @param strings gets first go at plain string properties, or null
+     * @throws IOException if the generator fails
+     */
+    void write(Object bean, JsonGenerator gen, SerializerProvider provider, PropertyHandler handler, StringWriter strings) throws IOException {
+        for (BeanPropertyWriter p : properties) {
+            if (!handler.handle(p.getName())) {
+                write(p, bean, gen, provider, strings);
+            }
+        }
+    }
+
+    /**
+     * Write one property of the bean as a field of the current object, if it is not null.
+     * @param bean the bean to write from
+     * @param name the JSON property name
+     * @param gen the generator to write to
+     * @param provider the serializer provider to resolve value serializers with
+     * @param strings gets first go at plain string properties, or null
+     * @throws IOException if the generator fails
+     */
+    void writeProperty(Object bean, String name, JsonGenerator gen, SerializerProvider provider, StringWriter strings) throws IOException {
+        for (BeanPropertyWriter p : properties) {
+            if (p.getName().equals(name)) {
+                write(p, bean, gen, provider, strings);
+                return;
+            }
+        }
+    }
+
+    private void write(BeanPropertyWriter p, Object bean, JsonGenerator gen, SerializerProvider provider, StringWriter strings) throws IOException {
+        final String name = p.getName();
+        if (strings != null && p.getType().getRawClass() == String.class && !p.hasSerializer()) {
+            final Object value = get(bean, name);
+            if (value != null && strings.write(gen, name, (String) value)) {
+                return;
+            }
+        }
+        try {
+            p.serializeAsField(bean, gen, provider);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw JsonMappingException.from(gen, "while writing property '" + name + "'", e);
+        }
+    }
+
+    private static Object get(BeanPropertyWriter p, Object bean) {
+        try {
+            return p.get(bean);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("while reading property '" + p.getName() + "'", e);
+        }
+    }
+
+    /**
+     * Build a fast accessor for a getter backed property, falling back to reflection for fields
+     * and for getters that cannot be reached with a private lookup.
+     */
+    @SuppressWarnings("unchecked")
+    private static Function<Object, Object> accessor(BeanPropertyWriter p, Cache cache) {
+        final AnnotatedMember member = p.getMember();
+        if (member instanceof AnnotatedMethod) {
+            final Method method = ((AnnotatedMethod) member).getAnnotated();
+            if (!Modifier.isStatic(method.getModifiers()) && method.getParameterCount() == 0) {
+                try {
+                    final MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(method.getDeclaringClass(), MethodHandles.lookup());
+                    final MethodHandle getter = lookup.unreflect(method);
+                    final CallSite site = LambdaMetafactory.metafactory(lookup, "apply",
+                            MethodType.methodType(Function.class),
+                            MethodType.methodType(Object.class, Object.class),
+                            getter, getter.type());
+                    return (Function<Object, Object>) site.getTarget().invokeExact();
+                } catch (IllegalAccessException | LambdaConversionException | SecurityException e) {
+                    // Not accessible from here, use reflection instead
+                    cache.fallback(method, e);
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) { // NOPMD
+                    // The factory takes no arguments and throws nothing checked, invokeExact just declares Throwable
+                    throw new IllegalStateException("while generating an accessor for " + method, e);
+                }
+            }
+        }
+        return bean -> get(p, bean);
+    }
+
+    /**
+     * Decides how the properties of a bean are written.
+     */
+    @FunctionalInterface
+    interface PropertyHandler {
+        /**
+         * @param name the property name
+         * @return true if the property has been written or is to be left out, false to serialize it as usual
+         * @throws IOException if the generator fails
+         */
+        boolean handle(String name) throws IOException;
+    }
+
+    /**
+     * Writes string properties that need special handling.
+     */
+    @FunctionalInterface
+    interface StringWriter {
+        /**
+         * @param gen the generator to write to
+         * @param name the property name
+         * @param value the property value
+         * @return true if the property has been dealt with, false to serialize it as usual
+         * @throws IOException if the generator fails
+         */
+        boolean write(JsonGenerator gen, String name, String value) throws IOException;
+    }
+
+    /**
+     * Resolves and caches {@link BeanFields} per type.
+     */
+    static final class Cache {
+        private final ObjectMapper mapper;
+        private final BiConsumer<String, Throwable> warn;
+        private final AtomicBoolean warned = new AtomicBoolean();
+        private final ConcurrentMap<Class<?>, Optional<BeanFields>> cache = new ConcurrentHashMap<>();
+
+        /**
+         * @param mapper the mapper to resolve serializers with
+         * @param warn reports the first getter that has to be called through reflection
+         */
+        Cache(ObjectMapper mapper, BiConsumer<String, Throwable> warn) {
+            this.mapper = mapper;
+            this.warn = warn;
+        }
+
+        private void fallback(Method getter, Exception cause) {
+            if (warned.compareAndSet(false, true)) {
+                warn.accept("Calling " + getter + " through reflection, log lines with it will encode more slowly;"
+                        + " further getters that cannot be reached are not reported", cause);
+            }
+        }
+
+        /**
+         * Get the fields of a type.
+         * @param type the bean type
+         * @return the fields, or null if the type is not a plain bean and must be serialized as a tree
+         */
+        BeanFields get(Class<?> type) {
+            return cache.computeIfAbsent(type, this::resolve).orElse(null);
+        }
+
+        private Optional<BeanFields> resolve(Class<?> type) {
+            final JsonSerializer<Object> serializer;
+            try {
+                serializer = mapper.getSerializerProviderInstance().findValueSerializer(type);
+            } catch (JsonMappingException e) {
+                return Optional.empty();
+            }
+            if (!(serializer instanceof BeanSerializerBase)
+                    || mapper.getSerializationConfig().introspect(mapper.constructType(type)).findAnyGetter() != null) {
+                return Optional.empty();
+            }
+            final List<BeanPropertyWriter> properties = new ArrayList<>();
+            final Iterator<PropertyWriter> iter = serializer.properties();
+            while (iter.hasNext()) {
+                final PropertyWriter p = iter.next();
+                if (!(p instanceof BeanPropertyWriter) || ((BeanPropertyWriter) p).isUnwrapping()) {
+                    return Optional.empty();
+                }
+                properties.add((BeanPropertyWriter) p);
+            }
+            return Optional.of(new BeanFields(properties.toArray(new BeanPropertyWriter[0]), this));
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+
+/**
+ * Caches renderings of another {@link ThrowableRenderer}, so an exception that is logged over and over
+ * is only rendered once.
+ * <p>
+ * Entries are keyed by the {@link ThrowableFingerprint} together with the messages of the exception and
+ * its causes, since those are part of the rendered text.  The cache holds at most {@code maxEntries} renderings;
+ * when full, an arbitrary entry is evicted to make room.
+ */
+public class CachingThrowableRenderer implements ThrowableRenderer {
+    private static final int MAX_DEPTH = 64;
+
+    private final ThrowableRenderer delegate;
+    private final int maxEntries;
+    private final ConcurrentMap<Key, String> cache = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create a caching renderer
+     * @param delegate the renderer to cache the output of
+     * @param maxEntries the maximum number of renderings to keep
+     */
+    public CachingThrowableRenderer(ThrowableRenderer delegate, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive, was " + maxEntries);
+        }
+        this.delegate = Objects.requireNonNull(delegate, "delegate");
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    public String render(IThrowableProxy throwable) {
+        return render(throwable, ThrowableFingerprint.of(throwable));
+    }
+
+    @Override
+    public String render(IThrowableProxy throwable, long fingerprint) {
+        final Key key = new Key(fingerprint, messages(throwable));
+        final String cached = cache.get(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        final String rendered = delegate.render(throwable, fingerprint);
+        if (cache.size() >= maxEntries) {
+            evictOne();
+        }
+        cache.put(key, rendered);
+        return rendered;
+    }
+
+    private void evictOne() {
+        final Iterator<Key> iter = cache.keySet().iterator();
+        if (iter.hasNext()) {
+            iter.next();
+            iter.remove();
+            evictions.increment();
+        }
+    }
+
+    private static List<String> messages(IThrowableProxy throwable) {
+        final List<String> result = new ArrayList<>(4);
+        addMessages(result, throwable, 0);
+        return result;
+    }
+
+    private static void addMessages(List<String> result, IThrowableProxy throwable, int depth) {
+        for (IThrowableProxy t = throwable; t != null && depth < MAX_DEPTH; t = t.getCause(), depth++) {
+            result.add(t.getMessage());
+            final IThrowableProxy[] suppressed = t.getSuppressed();
+            if (suppressed != null) {
+                for (IThrowableProxy s : suppressed) {
+                    addMessages(result, s, depth + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of renderings served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of exceptions that had to be rendered
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of renderings evicted to make room for new ones
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of renderings currently cached
+     */
+    public int getSize() {
+        return cache.size();
+    }
+
+    private static final class Key {
+        private final long fingerprint;
+        private final List<String> messages;
+        private final int hash;
+
+        Key(long fingerprint, List<String> messages) {
+            this.fingerprint = fingerprint;
+            this.messages = messages;
+            this.hash = Long.hashCode(fingerprint) * 31 + messages.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return fingerprint == other.fingerprint && messages.equals(other.messages);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops asynchronous appenders without an interrupt flag in the way.  Created at the start of {@code stop()},
+ * it clears the caller's interrupt flag, waits for worker threads, and puts the flag back once the child
+ * appenders are stopped.  Appenders like {@code KafkaAppender} cannot close cleanly from an interrupted
+ * thread, see LOGBACK-1548.
+ */
+final class CleanShutdown {
+    private final long deadline;
+    private boolean interrupted;
+
+    /**
+     * @param maxWaitMillis how long all {@link #join(Thread)} calls together may wait
+     */
+    CleanShutdown(long maxWaitMillis) {
+        this.interrupted = Thread.interrupted();
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * Wait for a thread to end, at most until the deadline.
+     * @param thread the thread to wait for
+     * @return true if the thread has ended
+     */
+    boolean join(Thread thread) {
+        while (thread.isAlive()) {
+            final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                thread.join(remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Restore the interrupt flag if the caller was interrupted before or during the shutdown.
+     */
+    void restoreInterrupt() {
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
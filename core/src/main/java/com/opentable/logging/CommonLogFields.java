@@ -31,12 +31,13 @@ public interface CommonLogFields
     // This is in turn equivalent to ConservedHeader.REQUEST_ID.getMDCKey()
     String REQUEST_ID_KEY = "request-id";
     String SEQUENCE_NUMBER_KEY = "sequence-number";
+    String TIMESTAMP_KEY = "@timestamp";
 
     /**
      * Get the time this message was logged in ISO-8601 format (i.e. {@link DateTimeFormatter#ISO_INSTANT})
      * @return the timestamp in ISO-8601 format
      */
-    @JsonProperty("@timestamp")
+    @JsonProperty(TIMESTAMP_KEY)
     String getTimestamp();
 
     /**
@@ -158,6 +159,15 @@ public interface CommonLogFields
     @JsonProperty("exception")
     String getThrowable();
 
+    /**
+     * Get the structural fingerprint of the exception associated with this message (if any), see {@link ThrowableFingerprint}
+     * @return the fingerprint as hex digits
+     */
+    @JsonProperty("exception-fingerprint")
+    default String getThrowableFingerprint() {
+        return null;
+    }
+
     /** Written by the encoder, value is ignored for serialization.
      * @return long sequence id
      */
@@ -16,8 +16,10 @@ package com.opentable.logging;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.time.format.DateTimeFormatter;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
@@ -41,8 +43,11 @@ public final class CommonLogHolder
     static final Integer INSTANCE_NO;
     static String OT_ENV, OT_ENV_TYPE, OT_ENV_LOCATION, OT_ENV_FLAVOR; //NOPMD
     private static String serviceType = UNSET; //NOPMD
+    private static volatile MessageIdGenerator messageIdGenerator = MessageIdGenerators.secure();
 
     private static final AtomicReference<KubernetesLogHolder> k8sInfo = new AtomicReference<>();
+    // Bumped whenever one of the values above changes, so encoders know to rebuild cached output.
+    private static final AtomicInteger GENERATION = new AtomicInteger();
 
     static {
         final String hostNameEnv = System.getenv("TASK_HOST");
@@ -79,10 +84,15 @@ public final class CommonLogHolder
      * @param otEnvFlavor the flavor if any
      */
     public static void setEnvironment(String otEnv, String otEnvType, String otEnvLocation, String otEnvFlavor) {
+        if (Objects.equals(OT_ENV, otEnv) && Objects.equals(OT_ENV_TYPE, otEnvType)
+                && Objects.equals(OT_ENV_LOCATION, otEnvLocation) && Objects.equals(OT_ENV_FLAVOR, otEnvFlavor)) {
+            return;
+        }
         OT_ENV = otEnv;
         OT_ENV_TYPE = otEnvType;
         OT_ENV_LOCATION = otEnvLocation;
         OT_ENV_FLAVOR = otEnvFlavor;
+        GENERATION.incrementAndGet();
     }
 
     /**
@@ -93,14 +103,46 @@ public final class CommonLogHolder
     }
 
     public static void setServiceType(String serviceType) {
-        CommonLogHolder.serviceType = serviceType;
+        if (!Objects.equals(CommonLogHolder.serviceType, serviceType)) {
+            CommonLogHolder.serviceType = serviceType;
+            GENERATION.incrementAndGet();
+        }
     }
     public static void setK8sInfo(K8sInfo k8sInfo) {
-        CommonLogHolder.k8sInfo.set(new KubernetesLogHolder(Optional.ofNullable(k8sInfo)));
+        final KubernetesLogHolder holder = new KubernetesLogHolder(Optional.ofNullable(k8sInfo));
+        if (!holder.equals(CommonLogHolder.k8sInfo.getAndSet(holder))) {
+            GENERATION.incrementAndGet();
+        }
     }
 
     public static KubernetesLogHolder getK8sInfo() {
-        return Optional.ofNullable(CommonLogHolder.k8sInfo.get()).orElse(KubernetesLogHolder.EMPTY);
+        final KubernetesLogHolder holder = CommonLogHolder.k8sInfo.get();
+        return holder == null ? KubernetesLogHolder.EMPTY : holder;
+    }
+
+    /**
+     * Get the generator for message ids, used by encoders that do not configure their own and by the request log.
+     * @return the default message id generator
+     */
+    public static MessageIdGenerator getMessageIdGenerator() {
+        return messageIdGenerator;
+    }
+
+    /**
+     * Set the default generator for message ids.
+     * @param messageIdGenerator the generator, see {@link MessageIdGenerators}
+     */
+    public static void setMessageIdGenerator(MessageIdGenerator messageIdGenerator) {
+        CommonLogHolder.messageIdGenerator = Objects.requireNonNull(messageIdGenerator, "messageIdGenerator");
+    }
+
+    /**
+     * The generation changes whenever the service type, environment or Kubernetes info changes.
+     * Encoders use it to know when their cached copy of these values is stale.
+     * @return the current generation
+     */
+    static int getGeneration() {
+        return GENERATION.get();
     }
 
     /**
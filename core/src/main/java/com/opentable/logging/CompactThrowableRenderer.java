@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+/**
+ * Renders exceptions much more compactly than the standard logback rendering, while keeping the
+ * frames that identify where a failure came from.
+ * <ul>
+ * <li>Runs of frames in framework packages are folded into a single {@code ... 12 frames in org.springframework} line.
+ * If no fold packages are configured, Spring, Jetty and reflection frames are folded.</li>
+ * <li>At most {@code maxFramesPerCause} lines are written for each exception in the cause chain.</li>
+ * <li>Frames shared with the enclosing exception are omitted, as logback does.</li>
+ * <li>With {@code abbreviateFrames}, a file name that just repeats the class name is left out,
+ * so {@code at com.example.Foo.bar(Foo.java:12)} becomes {@code at com.example.Foo.bar:12}.</li>
+ * </ul>
+ * Configure it on the encoder with
+ * <pre>
+ * &lt;throwableRenderer class="com.opentable.logging.CompactThrowableRenderer"&gt;
+ *   &lt;foldPackage&gt;org.springframework&lt;/foldPackage&gt;
+ *   &lt;maxFramesPerCause&gt;20&lt;/maxFramesPerCause&gt;
+ * &lt;/throwableRenderer&gt;
+ * </pre>
+ */
+public class CompactThrowableRenderer implements ThrowableRenderer {
+    static final List<String> DEFAULT_FOLD_PACKAGES = Arrays.asList(
+            "org.springframework", "org.eclipse.jetty", "java.lang.reflect", "jdk.internal.reflect", "sun.reflect");
+
+    // Cause chains are followed to this depth at most, in case a proxy ever reports a cycle.
+    private static final int MAX_CAUSES = 64;
+
+    private final List<String> foldPackages = new CopyOnWriteArrayList<>();
+    private volatile int maxFramesPerCause = 32;
+    private volatile boolean abbreviateFrames = true;
+
+    /**
+     * Fold runs of frames in a package (and its subpackages) into a single line.
+     * @param foldPackage the package name
+     */
+    public void addFoldPackage(String foldPackage) {
+        foldPackages.add(foldPackage.trim());
+    }
+
+    /**
+     * @param maxFramesPerCause the maximum number of frame lines written for each exception in the cause chain
+     */
+    public void setMaxFramesPerCause(int maxFramesPerCause) {
+        this.maxFramesPerCause = maxFramesPerCause;
+    }
+
+    /**
+     * @param abbreviateFrames whether to leave out file names that only repeat the class name
+     */
+    public void setAbbreviateFrames(boolean abbreviateFrames) {
+        this.abbreviateFrames = abbreviateFrames;
+    }
+
+    @Override
+    public String render(IThrowableProxy throwable) {
+        final List<String> fold = foldPackages.isEmpty() ? DEFAULT_FOLD_PACKAGES : foldPackages;
+        final StringBuilder sb = new StringBuilder(2048);
+        render(sb, throwable, null, 1, fold, 0);
+        return sb.toString();
+    }
+
+    private void render(StringBuilder sb, IThrowableProxy throwable, String prefix, int indent, List<String> fold, int depth) {
+        String label = prefix;
+        int level = depth;
+        for (IThrowableProxy t = throwable; t != null && level < MAX_CAUSES; t = t.getCause(), level++) {
+            indent(sb, indent - 1);
+            if (label != null) {
+                sb.append(label);
+            }
+            sb.append(t.getClassName());
+            final String message = t.getMessage();
+            if (message != null) {
+                sb.append(": ").append(message);
+            }
+            sb.append('\n');
+            frames(sb, t, indent, fold);
+
+            final IThrowableProxy[] suppressed = t.getSuppressed();
+            if (suppressed != null) {
+                for (IThrowableProxy s : suppressed) {
+                    render(sb, s, "Suppressed: ", indent + 1, fold, level + 1);
+                }
+            }
+            label = "Caused by: ";
+        }
+    }
+
+    private void frames(StringBuilder sb, IThrowableProxy t, int indent, List<String> fold) {
+        final StackTraceElementProxy[] frames = t.getStackTraceElementProxyArray();
+        final int common = t.getCommonFrames();
+        final int end = frames.length - common;
+        final int maxLines = maxFramesPerCause;
+        int lines = 0;
+        int i = 0;
+        while (i < end) {
+            if (lines == maxLines) {
+                indent(sb, indent);
+                sb.append("... ").append(end - i).append(" more frames\n");
+                break;
+            }
+            final StackTraceElement frame = frames[i].getStackTraceElement();
+            final String pkg = foldPackage(frame.getClassName(), fold);
+            int run = 1;
+            if (pkg != null) {
+                while (i + run < end && pkg.equals(foldPackage(frames[i + run].getStackTraceElement().getClassName(), fold))) {
+                    run++;
+                }
+            }
+            indent(sb, indent);
+            if (run > 1) {
+                sb.append("... ").append(run).append(" frames in ").append(pkg).append('\n');
+            } else {
+                frame(sb, frame);
+            }
+            lines++;
+            i += run;
+        }
+        if (common > 0) {
+            indent(sb, indent);
+            sb.append("... ").append(common).append(" common frames omitted\n");
+        }
+    }
+
+    private void frame(StringBuilder sb, StackTraceElement frame) {
+        final String className = frame.getClassName();
+        sb.append("at ").append(className).append('.').append(frame.getMethodName());
+        final String file = frame.getFileName();
+        final int line = frame.getLineNumber();
+        if (frame.isNativeMethod()) {
+            sb.append("(Native Method)");
+        } else if (file == null) {
+            sb.append("(Unknown Source)");
+        } else if (abbreviateFrames && isClassFile(className, file)) {
+            if (line >= 0) {
+                sb.append(':').append(line);
+            }
+        } else {
+            sb.append('(').append(file);
+            if (line >= 0) {
+                sb.append(':').append(line);
+            }
+            sb.append(')');
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * @return true if the file is {@code Foo.java} for class {@code com.example.Foo} or one of its nested classes
+     */
+    private static boolean isClassFile(String className, String file) {
+        if (!file.endsWith(".java")) {
+            return false;
+        }
+        final int start = className.lastIndexOf('.') + 1;
+        int end = className.indexOf('$', start);
+        if (end < 0) {
+            end = className.length();
+        }
+        final int nameLength = file.length() - ".java".length();
+        return end - start == nameLength && className.regionMatches(start, file, 0, nameLength);
+    }
+
+    private static String foldPackage(String className, List<String> fold) {
+        for (int i = 0; i < fold.size(); i++) {
+            final String pkg = fold.get(i);
+            if (className.startsWith(pkg) && className.length() > pkg.length() && className.charAt(pkg.length()) == '.') {
+                return pkg;
+            }
+        }
+        return null;
+    }
+
+    private static void indent(StringBuilder sb, int tabs) {
+        for (int i = 0; i < tabs; i++) {
+            sb.append('\t');
+        }
+    }
+}
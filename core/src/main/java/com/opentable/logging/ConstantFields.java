@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+
+import com.opentable.logging.LogEventWriter.CommonField;
+
+/**
+ * The fields that only change through {@link CommonLogHolder} (host, environment, service type and
+ * Kubernetes info), serialized once into blocks of pre-escaped JSON that are spliced into every line.
+ * The fields are written in the order the tree encoding has them, which need not keep them together,
+ * so there is a block for every run of consecutive constant fields in that order.
+ */
+final class ConstantFields {
+    private static final ConstantFields NONE = new ConstantFields(-1, null, null, null, null, null);
+
+    private final int generation;
+    private final CommonField[] order;
+    // Indexed by position in the order, and only set where a run starts
+    private final SerializableString[] blocks;
+    private final long[] present;
+    private final int[] ends;
+    private final int[] excludedBytes;
+
+    private ConstantFields(int generation, CommonField[] order, SerializableString[] blocks, long[] present, int[] ends, int[] excludedBytes) {
+        this.generation = generation;
+        this.order = order;
+        this.blocks = blocks;
+        this.present = present;
+        this.ends = ends;
+        this.excludedBytes = excludedBytes;
+    }
+
+    /**
+     * @return a placeholder that is always stale
+     */
+    static ConstantFields none() {
+        return NONE;
+    }
+
+    /**
+     * Serialize the constant fields, leaving some out.
+     * @param factory the factory to escape with
+     * @param fields the source of the field values
+     * @param generation the {@link CommonLogHolder#getGeneration()} read before the values
+     * @param excluded the {@link CommonField} bits of fields to leave out
+     * @param order the order the fields are written in
+     * @return the serialized blocks
+     * @throws IOException if the generator fails
+     */
+    static ConstantFields build(JsonFactory factory, CommonLogFields fields, int generation, long excluded, CommonField[] order) throws IOException {
+        final SerializableString[] blocks = new SerializableString[order.length];
+        final long[] present = new long[order.length];
+        final int[] ends = new int[order.length];
+        final int[] excludedBytes = new int[order.length];
+        int start = 0;
+        while (start < order.length) {
+            if (!order[start].constant) {
+                start++;
+                continue;
+            }
+            int end = start;
+            while (end < order.length && order[end].constant) {
+                end++;
+            }
+            blocks[start] = serialize(factory, fields, order, start, end, excluded, present);
+            ends[start] = end;
+            if (excluded != 0) {
+                excludedBytes[start] = length(serialize(factory, fields, order, start, end, 0, new long[order.length])) - length(blocks[start]);
+            }
+            start = end;
+        }
+        return new ConstantFields(generation, order, blocks, present, ends, excludedBytes);
+    }
+
+    private static SerializableString serialize(JsonFactory factory, CommonLogFields fields, CommonField[] order,
+            int start, int end, long excluded, long[] present) throws IOException {
+        final byte[] bytes;
+        try (ByteArrayBuilder buf = new ByteArrayBuilder()) {
+            try (JsonGenerator gen = factory.createGenerator(buf)) {
+                gen.writeStartObject();
+                for (int i = start; i < end; i++) {
+                    final CommonField field = order[i];
+                    if ((field.bit & excluded) != 0) {
+                        continue;
+                    }
+                    final Object value = field.get(fields);
+                    if (value == null) {
+                        continue;
+                    }
+                    gen.writeFieldName(field.serializedName);
+                    if (value instanceof Integer) {
+                        gen.writeNumber((Integer) value);
+                    } else {
+                        gen.writeString(value.toString());
+                    }
+                    present[start] |= field.bit;
+                }
+                gen.writeEndObject();
+            }
+            bytes = buf.toByteArray();
+        }
+        if (present[start] == 0) {
+            return null;
+        }
+        // Replace the braces with a leading comma, a block is only spliced after at least one other field.
+        bytes[0] = ',';
+        final SerializedString block = new SerializedString(new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8));
+        block.asUnquotedUTF8(); // prime the cached UTF-8 bytes
+        return block;
+    }
+
+    private static int length(SerializableString block) {
+        return block == null ? 0 : block.asUnquotedUTF8().length;
+    }
+
+    /**
+     * @param currentGeneration the current {@link CommonLogHolder#getGeneration()}
+     * @param currentOrder the order the fields are now written in
+     * @return true if the blocks must be rebuilt
+     */
+    boolean isStale(int currentGeneration, CommonField[] currentOrder) {
+        return generation != currentGeneration || order != currentOrder;
+    }
+
+    /**
+     * @param index a position in the order
+     * @return true if a run of constant fields starts there
+     */
+    boolean isRunStart(int index) {
+        return ends[index] != 0;
+    }
+
+    /**
+     * @param index the position where a run starts
+     * @return the position just after the run
+     */
+    int runEnd(int index) {
+        return ends[index];
+    }
+
+    /**
+     * @param index the position where a run starts
+     * @return the bytes that fields left out of the run's block would have taken
+     */
+    int getExcludedBytes(int index) {
+        return excludedBytes[index];
+    }
+
+    /**
+     * Splice the block of a run into the object currently being written.  At least one field must already
+     * have been written through the generator, so that it keeps adding separators after the block.
+     * @param gen the generator to write to
+     * @param index the position where the run starts
+     * @return the {@link CommonField} bits that were written
+     * @throws IOException if the generator fails
+     */
+    long writeTo(JsonGenerator gen, int index) throws IOException {
+        final SerializableString block = blocks[index];
+        if (block != null) {
+            gen.writeRaw(block);
+        }
+        return present[index];
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A growable output buffer together with a generator that writes into it.  Both are reused
+ * across events through an {@link EncodeBufferPool}, so neither is tied to a thread.
+ */
+final class EncodeBuffer extends OutputStream {
+    private byte[] buf;
+    private int count;
+    private JsonFactory factory;
+    private JsonGenerator generator;
+    private LogEventWriter.Scratch scratch;
+
+    EncodeBuffer(int capacity) {
+        this.buf = new byte[capacity];
+    }
+
+    /**
+     * Get the generator writing into this buffer, creating it on first use.
+     * The generator is never closed, it is reused for the next event after {@link #reset()}
+     * unless the encoder has switched to a different factory.
+     * @param factory the factory to create the generator with
+     * @return the generator
+     * @throws IOException if the generator cannot be created
+     */
+    JsonGenerator generator(JsonFactory factory) throws IOException {
+        if (generator == null || this.factory != factory) {
+            this.factory = factory;
+            generator = factory.createGenerator(this);
+            // Each event is its own root value, don't separate them with spaces.
+            generator.setRootValueSeparator(null);
+        }
+        return generator;
+    }
+
+    /**
+     * @return the writer state that travels with this buffer, created on first use
+     */
+    LogEventWriter.Scratch scratch() {
+        if (scratch == null) {
+            scratch = new LogEventWriter.Scratch();
+        }
+        return scratch;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(required, buf.length << 1));
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    int capacity() {
+        return buf.length;
+    }
+
+    void reset() {
+        count = 0;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    /**
+     * Copy the buffer contents into a byte buffer.
+     * @param target the buffer to copy to
+     * @throws BufferOverflowException if the target does not have enough room; its position is unchanged
+     */
+    void writeTo(ByteBuffer target) {
+        if (target.remaining() < count) {
+            throw new BufferOverflowException();
+        }
+        target.put(buf, 0, count);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small lock-free pool of {@link EncodeBuffer}s.
+ * <p>
+ * Buffers are handed out by CAS on a fixed array of slots rather than kept in thread locals, so the pool
+ * works the same for platform and virtual threads and never holds more than one buffer per slot.
+ * New buffers are sized from a running average of recently encoded lines, and buffers that grew far
+ * beyond it (say, for one huge stack trace) are dropped instead of being kept around.
+ */
+final class EncodeBufferPool {
+    private static final int MIN_CAPACITY = 256;
+    private static final int MIN_RETAINED_CAPACITY = 16 * 1024;
+
+    private final AtomicReferenceArray<EncodeBuffer> slots;
+    private final int mask;
+
+    // Running average of line sizes.  Updated racily on purpose, it is only a sizing hint.
+    private volatile int averageSize = 512;
+
+    EncodeBufferPool() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    EncodeBufferPool(int minSlots) {
+        final int size = Integer.highestOneBit(Math.max(1, Math.min(minSlots, 256)) * 2 - 1);
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Take a buffer from the pool, or create a new one if none is free.
+     * @return an empty buffer
+     */
+    EncodeBuffer acquire() {
+        final int start = start();
+        for (int i = 0; i <= mask; i++) {
+            final int index = (start + i) & mask;
+            final EncodeBuffer buffer = slots.get(index);
+            if (buffer != null && slots.compareAndSet(index, buffer, null)) {
+                return buffer;
+            }
+        }
+        return new EncodeBuffer(Math.max(MIN_CAPACITY, averageSize * 2));
+    }
+
+    /**
+     * Return a buffer to the pool once its contents have been consumed.
+     * @param buffer the buffer to return
+     */
+    void release(EncodeBuffer buffer) {
+        final int average = averageSize;
+        final int next = average + ((buffer.size() - average) >> 4);
+        if (next != average) {
+            averageSize = next;
+        }
+        if (buffer.capacity() > Math.max(MIN_RETAINED_CAPACITY, next * 4)) {
+            return;
+        }
+        buffer.reset();
+        final int start = start();
+        for (int i = 0; i <= mask; i++) {
+            final int index = (start + i) & mask;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, buffer)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the current estimate of the encoded line size
+     */
+    int getAverageSize() {
+        return averageSize;
+    }
+
+    @SuppressWarnings("deprecation")
+    private int start() {
+        // Spread threads over the slots to keep them off each other's cache lines.
+        return (int) (Thread.currentThread().getId() * 0x9E3779B9L >>> 16) & mask;
+    }
+}
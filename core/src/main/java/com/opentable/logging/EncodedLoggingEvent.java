@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.slf4j.Marker;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import ch.qos.logback.core.encoder.Encoder;
+
+/**
+ * A logging event together with the bytes it was already encoded to, as handed to the children of a
+ * {@link FanOutAppender}.
+ * <p>
+ * Every {@link ILoggingEvent} method is answered by the original event, so any appender can consume it.
+ * Consumers that look at the type of the event, such as checks for {@link com.opentable.logging.otl.OtlType},
+ * should look at {@link #getEvent()}; {@link JsonLogEncoder} does so itself.
+ * <p>
+ * A {@link JsonLogEncoder} of the same class and with the same settings as the one that produced the bytes writes
+ * them as they are instead of encoding the event again, so all destinations get the same line, {@code @uuid} and
+ * {@code sequence-number} included.  The bytes are shared between all consumers and must not be modified.
+ */
+public final class EncodedLoggingEvent implements ILoggingEvent {
+    private final ILoggingEvent event;
+    private final byte[] encoded;
+    private final Encoder<?> encoder;
+
+    EncodedLoggingEvent(ILoggingEvent event, byte[] encoded, Encoder<?> encoder) {
+        this.event = original(Objects.requireNonNull(event, "event"));
+        this.encoded = Objects.requireNonNull(encoded, "encoded");
+        this.encoder = Objects.requireNonNull(encoder, "encoder");
+    }
+
+    /**
+     * @param event an event, possibly carrying encoded bytes
+     * @return the original event
+     */
+    static ILoggingEvent original(ILoggingEvent event) {
+        return event instanceof EncodedLoggingEvent ? ((EncodedLoggingEvent) event).event : event;
+    }
+
+    /**
+     * @return the original event
+     */
+    public ILoggingEvent getEvent() {
+        return event;
+    }
+
+    /**
+     * @return the number of encoded bytes
+     */
+    public int size() {
+        return encoded.length;
+    }
+
+    /**
+     * @return a read-only view of the encoded bytes
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+    }
+
+    /**
+     * Write the encoded bytes to a stream.
+     * @param out the stream to write to
+     * @throws IOException if writing fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(encoded);
+    }
+
+    /**
+     * @param encoder the encoder about to encode this event
+     * @return the shared encoded bytes if they are what the encoder would produce, otherwise null
+     */
+    byte[] encodedFor(Encoder<?> encoder) {
+        if (encoder == this.encoder) {
+            return encoded;
+        }
+        return encoder instanceof JsonLogEncoder && this.encoder instanceof JsonLogEncoder
+                && ((JsonLogEncoder) encoder).writesSameBytesAs((JsonLogEncoder) this.encoder) ? encoded : null;
+    }
+
+    /**
+     * @param event an event about to be encoded
+     * @param encoder the encoder about to encode it
+     * @return the shared encoded bytes if the event carries them in the encoder's format, otherwise null
+     */
+    static byte[] encodedFor(ILoggingEvent event, Encoder<?> encoder) {
+        return event instanceof EncodedLoggingEvent ? ((EncodedLoggingEvent) event).encodedFor(encoder) : null;
+    }
+
+    /**
+     * SLF4J 2 key/value pairs of the original event, for Logback 1.3 and later.
+     * @return the pairs, see {@link KeyValuePairs}
+     */
+    public List<?> getKeyValuePairs() {
+        return KeyValuePairs.of(event);
+    }
+
+    @Override
+    public String getThreadName() {
+        return event.getThreadName();
+    }
+
+    @Override
+    public Level getLevel() {
+        return event.getLevel();
+    }
+
+    @Override
+    public String getMessage() {
+        return event.getMessage();
+    }
+
+    @Override
+    public Object[] getArgumentArray() {
+        return event.getArgumentArray();
+    }
+
+    @Override
+    public String getFormattedMessage() {
+        return event.getFormattedMessage();
+    }
+
+    @Override
+    public String getLoggerName() {
+        return event.getLoggerName();
+    }
+
+    @Override
+    public LoggerContextVO getLoggerContextVO() {
+        return event.getLoggerContextVO();
+    }
+
+    @Override
+    public IThrowableProxy getThrowableProxy() {
+        return event.getThrowableProxy();
+    }
+
+    @Override
+    public StackTraceElement[] getCallerData() {
+        return event.getCallerData();
+    }
+
+    @Override
+    public boolean hasCallerData() {
+        return event.hasCallerData();
+    }
+
+    @Override
+    public Marker getMarker() {
+        return event.getMarker();
+    }
+
+    @Override
+    public Map<String, String> getMDCPropertyMap() {
+        return event.getMDCPropertyMap();
+    }
+
+    @Override
+    @Deprecated
+    public Map<String, String> getMdc() {
+        return event.getMdc();
+    }
+
+    @Override
+    public long getTimeStamp() {
+        return event.getTimeStamp();
+    }
+
+    @Override
+    public void prepareForDeferredProcessing() {
+        event.prepareForDeferredProcessing();
+    }
+
+    @Override
+    public String toString() {
+        return event.toString();
+    }
+}
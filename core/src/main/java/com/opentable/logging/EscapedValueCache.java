@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+
+import com.opentable.logging.LogEventWriter.CommonField;
+
+/**
+ * Pre-escaped forms of strings that take few distinct values: the logger name, thread name, severity, log name,
+ * OTL type and message template of application events, and MDC keys.  Each of those fields otherwise has its value escaped and
+ * UTF-8 encoded by Jackson for every event.
+ * <p>
+ * Common fields are cached as whole {@code ,"name":"value"} pairs, escaped by the encoder's own factory, that
+ * are spliced into the output like {@link ConstantFields}.  Each field, and the MDC keys, get their own cache
+ * of at most {@code maxEntries} strings.  A full cache evicts an arbitrary entry for each new one, and a cache
+ * that mostly misses, say for per-request thread names, is given up on and bypassed from then on.
+ */
+final class EscapedValueCache {
+    static final int DEFAULT_MAX_ENTRIES = 256;
+
+    /** Fields whose values usually come from a small set. */
+    private static final CommonField[] FIELDS = {
+        CommonField.LOGLOV3_OTL,
+        CommonField.LOG_NAME,
+        CommonField.SEVERITY,
+        CommonField.LOGGER_NAME,
+        CommonField.THREAD_NAME,
+        CommonField.MESSAGE_TEMPLATE,
+    };
+
+    private final int maxEntries;
+    private final Map<CommonField, Values<Pair>> fields = new EnumMap<>(CommonField.class);
+    private final Values<SerializableString> mdcKeys;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private volatile JsonFactory factory;
+
+    EscapedValueCache(JsonFactory factory, int maxEntries) {
+        this.factory = factory;
+        this.maxEntries = maxEntries;
+        for (CommonField field : FIELDS) {
+            fields.put(field, new Values<>(value -> pair(field, value)));
+        }
+        this.mdcKeys = new Values<>(SerializedString::new);
+    }
+
+    /**
+     * Switch to another factory's escaping, dropping the pairs escaped by the old one.
+     * @param factory the new factory
+     */
+    void setFactory(JsonFactory factory) {
+        this.factory = factory;
+        for (Values<Pair> values : fields.values()) {
+            values.clear();
+        }
+    }
+
+    /**
+     * Write a common field from the cache.
+     * @param gen the generator to write to
+     * @param field the field
+     * @param value its value
+     * @param splice true if the generator writes JSON and a field has already been written to the current object
+     * @return false if the field is not cached, and must be written by the caller
+     * @throws IOException if the generator fails
+     */
+    boolean write(JsonGenerator gen, CommonField field, String value, boolean splice) throws IOException {
+        final Values<Pair> values = fields.get(field);
+        final Pair pair = values == null ? null : values.get(value);
+        if (pair == null) {
+            return false;
+        }
+        if (splice) {
+            gen.writeRaw(pair.field);
+        } else {
+            gen.writeFieldName(field.serializedName);
+            gen.writeString(pair.value);
+        }
+        return true;
+    }
+
+    /**
+     * @param key an MDC key
+     * @return the escaped key, or null if MDC keys are not cached
+     */
+    SerializableString mdcKey(String key) {
+        return mdcKeys.get(key);
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    private Pair pair(CommonField field, String value) {
+        final SerializedString quoted = new SerializedString(value);
+        quoted.asQuotedUTF8();
+        final JsonFactory factory = this.factory;
+        if (!JsonFactory.FORMAT_NAME_JSON.equals(factory.getFormatName())) {
+            // Other formats are never spliced into
+            return new Pair(null, quoted);
+        }
+        final byte[] bytes;
+        try (ByteArrayBuilder buf = new ByteArrayBuilder()) {
+            try (JsonGenerator gen = factory.createGenerator(buf)) {
+                gen.writeStartObject();
+                gen.writeFieldName(field.serializedName);
+                gen.writeString(value);
+                gen.writeEndObject();
+            }
+            bytes = buf.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("while escaping " + field.fieldName, e);
+        }
+        // Replace the braces with a leading comma, the pair is only spliced after another field.
+        bytes[0] = ',';
+        final SerializedString spliced = new SerializedString(new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8));
+        spliced.asUnquotedUTF8();
+        return new Pair(spliced, quoted);
+    }
+
+    private static final class Pair {
+        final SerializableString field;
+        final SerializableString value;
+
+        Pair(SerializableString field, SerializableString value) {
+            this.field = field;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The cache for one field.
+     */
+    private final class Values<T> {
+        private final ConcurrentMap<String, T> entries = new ConcurrentHashMap<>();
+        private final Function<String, T> escape;
+        // Lookups and hits since this cache was last checked for being worth it
+        private final LongAdder lookups = new LongAdder();
+        private final LongAdder found = new LongAdder();
+        private volatile boolean bypassed;
+
+        Values(Function<String, T> escape) {
+            this.escape = escape;
+        }
+
+        T get(String value) {
+            if (bypassed || maxEntries == 0) {
+                return null;
+            }
+            lookups.increment();
+            final T cached = entries.get(value);
+            if (cached != null) {
+                found.increment();
+                hits.increment();
+                return cached;
+            }
+            misses.increment();
+            if (entries.size() >= maxEntries) {
+                evictOne();
+                if (!worthIt()) {
+                    bypassed = true;
+                    entries.clear();
+                    return null;
+                }
+            }
+            final T result = escape.apply(value);
+            entries.put(value, result);
+            return result;
+        }
+
+        /**
+         * Once a full cache has seen a few times its size in lookups, keep it only if at least half of them hit.
+         */
+        private boolean worthIt() {
+            final long seen = lookups.sum();
+            if (seen < 4L * maxEntries) {
+                return true;
+            }
+            final long hit = found.sum();
+            lookups.add(-seen);
+            found.add(-hit);
+            return hit * 2 >= seen;
+        }
+
+        private void evictOne() {
+            final Iterator<String> iter = entries.keySet().iterator();
+            if (iter.hasNext()) {
+                iter.next();
+                iter.remove();
+                evictions.increment();
+            }
+        }
+
+        void clear() {
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.Iterator;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+
+/**
+ * Encodes each event once and hands the result to any number of child appenders.
+ * <p>
+ * Children receive an {@link EncodedLoggingEvent}.  Children whose encoder is a {@link JsonLogEncoder} of the
+ * same class and with the same settings as this appender's write the shared bytes instead of encoding the event
+ * again, which saves the encoding work and keeps {@code @uuid} and {@code sequence-number} identical across
+ * destinations.  Other children encode the original event with their own settings.
+ * <pre>
+ * &lt;appender name="FANOUT" class="com.opentable.logging.FanOutAppender"&gt;
+ *   &lt;encoder class="com.opentable.logging.JsonLogEncoder"/&gt;
+ *   &lt;appender-ref ref="CONSOLE"/&gt;
+ *   &lt;appender-ref ref="KAFKA"/&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+public class FanOutAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements AppenderAttachable<ILoggingEvent> {
+    private final AppenderAttachableImpl<ILoggingEvent> children = new AppenderAttachableImpl<>();
+    private Encoder<ILoggingEvent> encoder;
+
+    @Override
+    public void start() {
+        if (encoder == null) {
+            addError("No encoder set for the appender named \"" + name + "\".");
+            return;
+        }
+        if (!children.iteratorForAppenders().hasNext()) {
+            addWarn("No appenders attached to the appender named \"" + name + "\".");
+        }
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        children.detachAndStopAllAppenders();
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        final byte[] encoded = encoder.encode(event);
+        // An event that failed to encode is passed on as is, for the children to try their own encoders
+        children.appendLoopOnAppenders(encoded.length == 0 ? event : new EncodedLoggingEvent(event, encoded, encoder));
+    }
+
+    public Encoder<ILoggingEvent> getEncoder() {
+        return encoder;
+    }
+
+    public void setEncoder(Encoder<ILoggingEvent> encoder) {
+        this.encoder = encoder;
+    }
+
+    @Override
+    public void addAppender(Appender<ILoggingEvent> appender) {
+        children.addAppender(appender);
+    }
+
+    @Override
+    public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+        return children.iteratorForAppenders();
+    }
+
+    @Override
+    public Appender<ILoggingEvent> getAppender(String appenderName) {
+        return children.getAppender(appenderName);
+    }
+
+    @Override
+    public boolean isAttached(Appender<ILoggingEvent> appender) {
+        return children.isAttached(appender);
+    }
+
+    @Override
+    public void detachAndStopAllAppenders() {
+        children.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public boolean detachAppender(Appender<ILoggingEvent> appender) {
+        return children.detachAppender(appender);
+    }
+
+    @Override
+    public boolean detachAppender(String appenderName) {
+        return children.detachAppender(appenderName);
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Caps on the size of string fields and of whole events.
+ * <p>
+ * A value over the cap is cut short, the {@value #TRUNCATION_MARKER} marker is appended, and a
+ * {@code <field>-original-length} field with the value's UTF-8 length follows it.  Sizes are measured as
+ * written to JSON, escapes included, so only the part that is kept is ever copied.  When the event cap is
+ * nearly used up, further long fields are dropped entirely.
+ */
+final class FieldLimits {
+    static final String TRUNCATION_MARKER = "...[truncated]";
+    static final String ORIGINAL_LENGTH_SUFFIX = "-original-length";
+
+    // Kept free under the event cap for the fields that follow a capped value: its original length,
+    // the sequence number and the closing brace.
+    static final int RESERVED_BYTES = 128;
+
+    // The smallest truncated value worth writing: quotes and the marker
+    private static final int MIN_VALUE_BYTES = TRUNCATION_MARKER.length() + 2;
+
+    private volatile int maxFieldBytes;
+    private volatile int maxEventBytes;
+
+    private final LongAdder truncatedEvents = new LongAdder();
+    private final LongAdder truncatedFields = new LongAdder();
+
+    int getMaxFieldBytes() {
+        return maxFieldBytes;
+    }
+
+    void setMaxFieldBytes(int maxFieldBytes) {
+        this.maxFieldBytes = Math.max(0, maxFieldBytes);
+    }
+
+    int getMaxEventBytes() {
+        return maxEventBytes;
+    }
+
+    void setMaxEventBytes(int maxEventBytes) {
+        this.maxEventBytes = Math.max(0, maxEventBytes);
+    }
+
+    /**
+     * @return true if any cap is set
+     */
+    boolean isEnabled() {
+        return maxFieldBytes > 0 || maxEventBytes > 0;
+    }
+
+    long getTruncatedEvents() {
+        return truncatedEvents.sum();
+    }
+
+    long getTruncatedFields() {
+        return truncatedFields.sum();
+    }
+
+    void recordTruncatedEvent() {
+        truncatedEvents.increment();
+    }
+
+    /**
+     * The number of bytes written for the current event so far, as far as it can be told.
+     * @param gen the generator writing the event
+     * @return the output position, or -1 if the generator does not write to an {@link EncodeBuffer}
+     */
+    static long position(JsonGenerator gen) {
+        final Object target = gen.getOutputTarget();
+        if (!(target instanceof EncodeBuffer)) {
+            return -1;
+        }
+        return ((EncodeBuffer) target).size() + Math.max(0, gen.getOutputBuffered());
+    }
+
+    /**
+     * Write a string field if its value is over the cap, truncated or dropped.
+     * Values that fit are left to the caller, so the common case costs only the size check.
+     * @param gen the generator to write to
+     * @param name the field name
+     * @param value the value
+     * @param eventStart the {@link #position(JsonGenerator)} where the event started, or -1 to only apply the field cap
+     * @return true if the field was written or dropped here, false if the caller should write it as is
+     * @throws IOException if the generator fails
+     */
+    boolean writeIfTooLong(JsonGenerator gen, String name, String value, long eventStart) throws IOException {
+        // the name, its quotes, colon and separator
+        final int budget = budget(gen, name.length() + 4, eventStart);
+        if (fits(value, budget)) {
+            return false;
+        }
+        truncatedFields.increment();
+        if (budget < MIN_VALUE_BYTES) {
+            return true;
+        }
+        gen.writeFieldName(name);
+        writeTruncated(gen, value, budget);
+        gen.writeNumberField(name + ORIGINAL_LENGTH_SUFFIX, utf8Length(value));
+        return true;
+    }
+
+    /**
+     * Write a string array element if it is over the cap, truncated.  Elements are never dropped,
+     * so the positions of the ones after it stay the same.
+     * @param gen the generator to write to
+     * @param value the value
+     * @param eventStart the {@link #position(JsonGenerator)} where the event started, or -1 to only apply the field cap
+     * @return true if the element was written here, false if the caller should write it as is
+     * @throws IOException if the generator fails
+     */
+    boolean writeElementIfTooLong(JsonGenerator gen, String value, long eventStart) throws IOException {
+        final int budget = budget(gen, 1, eventStart);
+        if (fits(value, budget)) {
+            return false;
+        }
+        truncatedFields.increment();
+        writeTruncated(gen, value, Math.max(budget, MIN_VALUE_BYTES));
+        return true;
+    }
+
+    private static boolean fits(String value, int budget) {
+        // Six bytes is the most a single char can be escaped to
+        return (long) value.length() * 6 + 2 <= budget || escapedPrefix(value, budget - 2) == value.length();
+    }
+
+    private static void writeTruncated(JsonGenerator gen, String value, int budget) throws IOException {
+        final int keep = escapedPrefix(value, budget - MIN_VALUE_BYTES);
+        final char[] chars = new char[keep + TRUNCATION_MARKER.length()];
+        value.getChars(0, keep, chars, 0);
+        TRUNCATION_MARKER.getChars(0, TRUNCATION_MARKER.length(), chars, keep);
+        gen.writeString(chars, 0, chars.length);
+    }
+
+    /**
+     * The bytes available for a value about to be written.
+     * @param overhead the bytes written before the value, such as the field name
+     */
+    private int budget(JsonGenerator gen, int overhead, long eventStart) {
+        long budget = maxFieldBytes > 0 ? maxFieldBytes : Integer.MAX_VALUE;
+        final int maxEvent = maxEventBytes;
+        if (maxEvent > 0 && eventStart >= 0) {
+            final long used = position(gen) - eventStart + overhead;
+            budget = Math.min(budget, maxEvent - RESERVED_BYTES - used);
+        }
+        return (int) Math.max(0, budget);
+    }
+
+    /**
+     * Cap the string fields of a line built as a tree.  The event cap is not applied, the tree is already in memory.
+     * Each {@code -original-length} field follows the field it belongs to, as in the streaming encoding.
+     * @param logLine the line
+     * @return true if any field was truncated
+     */
+    boolean apply(ObjectNode logLine) {
+        final int max = maxFieldBytes;
+        if (max <= 0) {
+            return false;
+        }
+        Map<String, Long> lengths = null;
+        final Iterator<Map.Entry<String, JsonNode>> fields = logLine.fields();
+        while (fields.hasNext()) {
+            final Map.Entry<String, JsonNode> field = fields.next();
+            final JsonNode node = field.getValue();
+            if (node.isArray() && ApplicationLogEvent.MESSAGE_ARGUMENTS_KEY.equals(field.getKey())) {
+                applyToElements((ArrayNode) node, max);
+                continue;
+            }
+            if (!node.isTextual()) {
+                continue;
+            }
+            final String value = node.textValue();
+            final int keep = escapedPrefix(value, max - 2);
+            if (keep == value.length()) {
+                continue;
+            }
+            final int kept = max < MIN_VALUE_BYTES ? 0 : escapedPrefix(value, max - MIN_VALUE_BYTES);
+            field.setValue(logLine.textNode(value.substring(0, kept) + TRUNCATION_MARKER));
+            if (lengths == null) {
+                lengths = new HashMap<>();
+            }
+            lengths.put(field.getKey(), utf8Length(value));
+            truncatedFields.increment();
+        }
+        if (lengths == null) {
+            return false;
+        }
+        final List<Map.Entry<String, JsonNode>> all = new ArrayList<>();
+        logLine.fields().forEachRemaining(all::add);
+        logLine.removeAll();
+        for (Map.Entry<String, JsonNode> field : all) {
+            logLine.set(field.getKey(), field.getValue());
+            final Long length = lengths.get(field.getKey());
+            if (length != null) {
+                logLine.put(field.getKey() + ORIGINAL_LENGTH_SUFFIX, length);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cap the string elements of an array, as {@link #writeElementIfTooLong} does.
+     */
+    private void applyToElements(ArrayNode array, int max) {
+        for (int i = 0; i < array.size(); i++) {
+            final JsonNode node = array.get(i);
+            if (!node.isTextual() || fits(node.textValue(), max)) {
+                continue;
+            }
+            final String value = node.textValue();
+            final int keep = escapedPrefix(value, Math.max(max, MIN_VALUE_BYTES) - MIN_VALUE_BYTES);
+            array.set(i, array.textNode(value.substring(0, keep) + TRUNCATION_MARKER));
+            truncatedFields.increment();
+        }
+    }
+
+    /**
+     * Find how much of a string fits in a number of bytes once escaped for JSON and encoded as UTF-8.
+     * Surrogate pairs are never split.
+     * @param value the string
+     * @param maxBytes the room available
+     * @return the number of chars that fit
+     */
+    static int escapedPrefix(String value, int maxBytes) {
+        long size = 0;
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            final int bytes;
+            if (c < 0x80) {
+                bytes = c >= 0x20 ? (c == '"' || c == '\\' ? 2 : 1) : (c == '\n' || c == '\r' || c == '\t' || c == '\b' || c == '\f' ? 2 : 6);
+            } else if (c < 0x800) {
+                bytes = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                if (size + 4 > maxBytes) {
+                    return i;
+                }
+                size += 4;
+                i++;
+                continue;
+            } else {
+                bytes = 3;
+            }
+            size += bytes;
+            if (size > maxBytes) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @param value a string
+     * @return its length in UTF-8, unpaired surrogates counting as the replacement character
+     */
+    static long utf8Length(String value) {
+        long size = 0;
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                size++;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.opentable.logging.LogEventWriter.CommonField;
+
+/**
+ * Fields to leave out of log lines, configured per {@code @loglov3-otl} type.
+ * <p>
+ * Each rule is written as {@code type: field, field, ...}; rules without a type, or with type {@code *},
+ * apply to every line.  Excluded fields are never written by the streaming encoder, and the constant
+ * fields that remain are pre-serialized without them.  Bytes saved are counted exactly for constant fields
+ * and estimated from the value lengths for everything else.
+ */
+final class FieldProjection {
+    static final String ALL_TYPES = "*";
+
+    private static final String TYPE_KEY = CommonField.LOGLOV3_OTL.fieldName;
+
+    // Replaced on every change, never modified in place
+    private volatile Map<String, Set<String>> rules = Collections.emptyMap();
+    private final ConcurrentMap<String, Projection> resolved = new ConcurrentHashMap<>();
+    private volatile Projection allTypes = new Projection(Collections.emptySet());
+
+    private final LongAdder events = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    /**
+     * Add a rule.
+     * @param rule {@code type: field, field, ...}, or just the fields to apply the rule to every type
+     * @throws IllegalArgumentException if the rule names no fields
+     */
+    synchronized void add(String rule) {
+        final int colon = rule.indexOf(':');
+        final String type = colon < 0 ? "" : rule.substring(0, colon).trim();
+        final Set<String> fields = new HashSet<>();
+        for (String field : rule.substring(colon + 1).split(",")) {
+            final String name = field.trim();
+            if (!name.isEmpty()) {
+                fields.add(name);
+            }
+        }
+        if (fields.isEmpty()) {
+            throw new IllegalArgumentException("Projection '" + rule + "' excludes no fields");
+        }
+        final Map<String, Set<String>> updated = new HashMap<>(rules);
+        updated.merge(type.isEmpty() ? ALL_TYPES : type, fields, (a, b) -> {
+            final Set<String> merged = new HashSet<>(a);
+            merged.addAll(b);
+            return merged;
+        });
+        rules = updated;
+        allTypes = new Projection(updated.getOrDefault(ALL_TYPES, Collections.emptySet()));
+        resolved.clear();
+    }
+
+    /**
+     * @return true if no rules have been added
+     */
+    boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @param other another projection
+     * @return true if both leave out the same fields
+     */
+    boolean hasSameRules(FieldProjection other) {
+        return rules.equals(other.rules);
+    }
+
+    /**
+     * Get the projection for a type.
+     * @param type the {@code @loglov3-otl} of the line, or null if unknown
+     * @return the fields to exclude from lines of that type
+     */
+    Projection forType(String type) {
+        if (type == null) {
+            return allTypes;
+        }
+        final Projection result = resolved.get(type);
+        return result != null ? result : resolved.computeIfAbsent(type, this::resolve);
+    }
+
+    private Projection resolve(String type) {
+        final Map<String, Set<String>> current = rules;
+        final Set<String> specific = current.get(type);
+        if (specific == null) {
+            return allTypes;
+        }
+        final Set<String> excluded = new HashSet<>(current.getOrDefault(ALL_TYPES, Collections.emptySet()));
+        excluded.addAll(specific);
+        return new Projection(excluded);
+    }
+
+    /**
+     * Forget all pre-serialized constant fields, after the encoder has switched mappers.
+     */
+    void reset() {
+        allTypes.constants = ConstantFields.none();
+        resolved.values().forEach(p -> p.constants = ConstantFields.none());
+    }
+
+    /**
+     * Remove excluded fields from a line built as a tree.
+     * @param logLine the line
+     */
+    void apply(ObjectNode logLine) {
+        final JsonNode type = logLine.get(TYPE_KEY);
+        final Projection projection = forType(type == null || !type.isTextual() ? null : type.textValue());
+        long saved = 0;
+        for (String name : projection.excluded) {
+            final JsonNode removed = logLine.remove(name);
+            if (removed != null) {
+                saved += estimate(name, removed.isTextual() ? removed.textValue() : removed.toString());
+            }
+        }
+        record(saved);
+    }
+
+    /**
+     * Count one projected line.
+     * @param saved the bytes left out of it
+     */
+    void record(long saved) {
+        events.increment();
+        bytesSaved.add(saved);
+    }
+
+    long getEvents() {
+        return events.sum();
+    }
+
+    long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    /**
+     * Estimate the bytes a field would have taken: the quoted name, a colon and a separating comma, and the value.
+     * @param name the field name
+     * @param value the field value, null values are never written
+     * @return the estimated size in bytes
+     */
+    static int estimate(String name, Object value) {
+        if (value == null) {
+            return 0;
+        }
+        final int valueLength = value instanceof CharSequence
+                ? ((CharSequence) value).length() + 2
+                : String.valueOf(value).length();
+        return estimate(name, valueLength);
+    }
+
+    /**
+     * Estimate the bytes a field would have taken, for a value of known size.
+     * @param name the field name
+     * @param valueBytes the bytes the value takes, quotes included
+     * @return the estimated size in bytes
+     */
+    static int estimate(String name, int valueBytes) {
+        return name.length() + 4 + valueBytes;
+    }
+
+    /**
+     * The resolved exclusions for one type.
+     */
+    static final class Projection {
+        final Set<String> excluded;
+        /** The {@link CommonField} bits of the excluded fields. */
+        final long commonMask;
+        /** The constant fields that are not excluded, rebuilt like the writer's unprojected block. */
+        volatile ConstantFields constants = ConstantFields.none();
+
+        Projection(Set<String> excluded) {
+            this.excluded = excluded;
+            long mask = 0;
+            for (String name : excluded) {
+                final CommonField field = CommonField.BY_NAME.get(name);
+                if (field != null) {
+                    mask |= field.bit;
+                }
+            }
+            this.commonMask = mask;
+        }
+
+        boolean excludes(String name) {
+            return !excluded.isEmpty() && excluded.contains(name);
+        }
+
+        boolean excludes(CommonField field) {
+            return (commonMask & field.bit) != 0;
+        }
+    }
+}
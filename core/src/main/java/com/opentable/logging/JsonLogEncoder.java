@@ -14,24 +14,33 @@
 package com.opentable.logging;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
 import java.util.Map.Entry;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonGenerator.Feature;
-import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.util.StdDateFormat;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
 
 import org.slf4j.Marker;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.encoder.EncoderBase;
 
-import com.opentable.httpheaders.HeaderBlacklist;
 import com.opentable.logging.otl.OtlMarker;
 import com.opentable.logging.otl.OtlType;
 
@@ -42,80 +51,682 @@ import com.opentable.logging.otl.OtlType;
  * <pre>
  * &lt;encoder class="com.opentable.logging.JsonLogEncoder"&gt;
  * </pre>
+ * <p>
+ * Setting {@code <streaming>true</streaming>} writes each event straight to the output instead of
+ * building an {@link ObjectNode} first.  The fields are the same, but {@link #convertToObjectNode(ILoggingEvent)}
+ * is no longer called for plain events, so subclasses that hook it should leave streaming off.
+ * {@code <garbageFree>true</garbageFree>} goes further and encodes plain events without allocating,
+ * see {@link #setGarbageFree(boolean)}.
+ * <p>
+ * {@code <messageTemplate>true</messageTemplate>} adds the SLF4J pattern and arguments of each message,
+ * and {@code <formattedMessage>false</formattedMessage>} leaves out the formatted message.
+ * Key/value pairs added with the SLF4J 2 fluent API ({@code log.atInfo().addKeyValue(...)}) are written as
+ * fields with their JSON types, following the same rules as MDC entries; this needs Logback 1.3 or later.
+ * The streaming encoding writes repeating values such as logger and thread names from a cache of pre-escaped
+ * bytes, see {@link #setEscapeCacheSize(int)}.
+ * <p>
+ * {@code <maxFieldBytes>} and {@code <maxEventBytes>} cap the size of string fields and whole events,
+ * see {@link #setMaxEventBytes(int)}.
+ * <p>
+ * {@code <timestampFormat>epoch-millis</timestampFormat>} (or {@code epoch-micros}) writes {@code @timestamp}
+ * as a number instead of the default ISO-8601 string, see {@link TimestampFormat}.
+ * {@code <messageIdGenerator>secure</messageIdGenerator>} picks how {@code @uuid} is generated,
+ * see {@link MessageIdGenerators}; by default {@link CommonLogHolder#getMessageIdGenerator()} is used.
+ * <p>
+ * Rendered stack traces are cached by {@link ThrowableFingerprint}, which is also written as {@code exception-fingerprint}.
+ * {@code <throwableCacheSize>} sets how many renderings are kept (default 1024, 0 disables the cache).
+ * A nested {@code <throwableRenderer class="com.opentable.logging.CompactThrowableRenderer">} makes
+ * error lines much smaller, see {@link CompactThrowableRenderer}.
+ * <p>
+ * {@code <sequenceAllocation>leased</sequenceAllocation>} hands out {@code sequence-number} values from per-thread
+ * blocks instead of one shared counter, see {@link #setSequenceAllocation(String)}.
+ * <p>
+ * Events already encoded by a {@link FanOutAppender} with an encoder of the same class and settings are written
+ * as they are, see {@link EncodedLoggingEvent}.
+ * <p>
+ * Output buffers are pooled.  Appenders that write to a stream or buffer can use
+ * {@link #encode(ILoggingEvent, OutputStream)} or {@link #encode(ILoggingEvent, ByteBuffer)}
+ * to skip the intermediate byte array altogether.
  */
 public class JsonLogEncoder extends EncoderBase<ILoggingEvent> {
     private static final byte[] NADA = new byte[0];
-    private static final AtomicLong LOG_SEQUENCE_NUMBER = new AtomicLong(0);
-    private static final HeaderBlacklist HEADER_BLACKLIST = HeaderBlacklist.INSTANCE;
 
-    private final ObjectMapper mapper;
+    private final LogEventWriter writer;
+    // Set for binary sibling encoders, which do not use the registered mapper
+    private final JsonFactory customFactory;
+
+    private volatile ObjectMapper mapper;
+    private final EncodeBufferPool buffers = new EncodeBufferPool();
+    // The registry state this encoder last picked up
+    private volatile int registryGeneration = -1;
+    private ObjectMapper registeredMapper;
+
+    private boolean streaming;
+    private boolean garbageFree;
+    private boolean formattedMessage = true;
+    private boolean messageTemplate;
+    private TimestampFormat timestampFormat = TimestampFormat.ISO;
+    private SequenceAllocation sequenceAllocation = SequenceAllocation.GLOBAL;
+    private ThrowableRenderer throwableRenderer;
+    private int throwableCacheSize = LogEventWriter.DEFAULT_THROWABLE_CACHE_SIZE;
+    private final FieldProjection projection = new FieldProjection();
+    private final FieldLimits limits = new FieldLimits();
 
     /**
      * Create a JSON Log Encoder
      * Sets up a JSON encoder and configures it.
+     * A preconfigured mapper can be supplied through {@link JsonLogEncoderRegistry}.
      */
-    @SuppressWarnings("deprecation")
     public JsonLogEncoder() {
-        // TODO: This sucks - - won't get the mapper customizations.  Find a way to inject this.
-        // Master configuration is in otj-jackson
+        this(null);
+    }
+
+    /**
+     * Create an encoder for another data format, with the same fields as the JSON encoding.
+     * Records are not newline terminated, and each is written with a fresh generator so it can be decoded on its own.
+     * A mapper registered with {@link JsonLogEncoderRegistry} is not used.
+     * @param factory the factory for the data format, or null for JSON
+     */
+    protected JsonLogEncoder(JsonFactory factory) {
+        this.customFactory = factory;
+        this.mapper = configure(factory == null ? new ObjectMapper() : new ObjectMapper(factory));
+        this.writer = new LogEventWriter(mapper, this::addWarn);
+        this.writer.setLimits(limits);
+    }
+
+    /**
+     * Apply the settings the log format depends on.  Settings of a registered mapper that would break
+     * one-object-per-line output, such as indentation, are switched off again.
+     * @param mapper the mapper to configure
+     * @return the same mapper
+     */
+    @SuppressWarnings("deprecation")
+    private static ObjectMapper configure(ObjectMapper mapper) {
+        // Master configuration is in otj-jackson, and reaches us through JsonLogEncoderRegistry
         // See https://github.com/FasterXML/jackson-databind/issues/2643 for why the custom dateformat
-        this.mapper = new ObjectMapper()
+        return mapper
                 .setDateFormat(new StdDateFormat().withColonInTimeZone(false))
                 .registerModule(new JavaTimeModule())
+                // Generated accessors instead of reflection for OTL and log event beans
+                .registerModule(new BlackbirdModule())
                 .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false)
                 .disable(SerializationFeature.WRITE_NULL_MAP_VALUES)
                 .setSerializationInclusion(Include.NON_NULL)
+                .disable(SerializationFeature.INDENT_OUTPUT)
+                .disable(SerializationFeature.WRAP_ROOT_VALUE)
+                .configure(Feature.QUOTE_FIELD_NAMES, true)
                 .configure(Feature.AUTO_CLOSE_TARGET, false);
     }
 
+    @Override
+    public void start() {
+        // Track first, so that a registry change racing with the start is applied by one of us
+        JsonLogEncoderRegistry.track(this);
+        checkRegistry();
+        warmUp();
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        JsonLogEncoderRegistry.untrack(this);
+        super.stop();
+    }
+
+    /**
+     * Resolve serializers and fill caches ahead of the first events, so the first lines logged after startup
+     * are not slowed down.  This covers application log events and the types registered with
+     * {@link JsonLogEncoderRegistry#registerWarmUpTypes(Class[])}.  Called from {@link #start()}, and again
+     * on the registering thread whenever the registry changes.
+     */
+    public void warmUp() {
+        final long startNanos = System.nanoTime();
+        try {
+            writer.warmUp(JsonLogEncoderRegistry.getWarmUpTypes());
+            addInfo("Warmed up in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+        } catch (RuntimeException e) {
+            addWarn("while warming up", e);
+        }
+    }
+
+    /**
+     * Pick up changes to the {@link JsonLogEncoderRegistry}.  One volatile read per event when nothing changed.
+     */
+    private void checkRegistry() {
+        if (registryGeneration == JsonLogEncoderRegistry.getGeneration()) {
+            return;
+        }
+        synchronized (this) {
+            // Read the generation first, so a change racing with us is picked up by the next event
+            final int generation = JsonLogEncoderRegistry.getGeneration();
+            if (generation == registryGeneration) {
+                return;
+            }
+            final ObjectMapper registered = JsonLogEncoderRegistry.getObjectMapper();
+            if (customFactory == null && registered != registeredMapper) {
+                final ObjectMapper updated = configure(registered == null ? new ObjectMapper() : registered.copy());
+                writer.setMapper(updated);
+                mapper = updated;
+                registeredMapper = registered;
+            }
+            registryGeneration = generation;
+        }
+    }
+
+    /**
+     * Apply a registry change and warm up for it, called by {@link JsonLogEncoderRegistry} on the registering thread.
+     */
+    void refresh() {
+        checkRegistry();
+        warmUp();
+    }
+
+    /**
+     * @return true if events are written straight to the output, without an intermediate tree
+     */
+    public boolean isStreaming() {
+        return streaming || garbageFree;
+    }
+
+    /**
+     * Write events straight to the output, without building an intermediate {@link ObjectNode}.
+     * @param streaming whether to use the streaming encoding
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * @return true if plain events are encoded without allocating
+     */
+    public boolean isGarbageFree() {
+        return garbageFree;
+    }
+
+    /**
+     * Encode plain events without allocating, once warmed up.  Implies streaming.  Each pooled output buffer
+     * carries a reusable view of the event, the message id is rendered from its bits, and the MDC is walked
+     * without an iterator.  Only {@link #encode(ILoggingEvent, OutputStream)} and {@link #encode(ILoggingEvent, ByteBuffer)}
+     * are garbage free, {@link #encode(ILoggingEvent)} still returns a new array.  Events with an exception
+     * or an OTL payload allocate as usual, as does a {@link MessageIdGenerator} that only implements
+     * {@link MessageIdGenerator#nextId()}, such as the default {@code secure} one: pair this with
+     * {@code <messageIdGenerator>time-ordered</messageIdGenerator>} or {@code counter}.
+     * @param garbageFree whether to encode plain events without allocating
+     */
+    public void setGarbageFree(boolean garbageFree) {
+        this.garbageFree = garbageFree;
+        writer.setRecycleEvents(garbageFree);
+    }
+
+    /**
+     * @return how the {@code @timestamp} field is written, see {@link TimestampFormat}
+     */
+    public String getTimestampFormat() {
+        return timestampFormat.toString();
+    }
+
+    /**
+     * Set how the {@code @timestamp} field is written.
+     * @param timestampFormat one of {@code iso}, {@code epoch-millis} or {@code epoch-micros}
+     */
+    public void setTimestampFormat(String timestampFormat) {
+        this.timestampFormat = TimestampFormat.fromString(timestampFormat);
+        writer.setTimestampFormat(this.timestampFormat);
+    }
+
+    /**
+     * Set how {@code sequence-number} values are allocated.
+     * <p>
+     * {@code global} (the default) increments one shared counter per event, so numbers follow encoding order.
+     * {@code leased} has each thread lease blocks of numbers, which scales better on many cores; numbers are then
+     * only guaranteed to increase within a thread, which is enough to break ties between its events.
+     * @param sequenceAllocation {@code global} or {@code leased}
+     */
+    public void setSequenceAllocation(String sequenceAllocation) {
+        this.sequenceAllocation = SequenceAllocation.fromString(sequenceAllocation);
+    }
+
+    /**
+     * Set how the {@code @uuid} field is generated.
+     * @param messageIdGenerator one of {@code secure}, {@code time-ordered} or {@code counter},
+     *                           or the class name of a custom {@link MessageIdGenerator}
+     */
+    public void setMessageIdGenerator(String messageIdGenerator) {
+        writer.setMessageIdGenerator(MessageIdGenerators.forName(messageIdGenerator));
+    }
+
+    /**
+     * Set how many rendered stack traces to cache.
+     * @param throwableCacheSize the maximum number of cached renderings, or 0 to render every exception anew
+     */
+    public void setThrowableCacheSize(int throwableCacheSize) {
+        this.throwableCacheSize = throwableCacheSize;
+        writer.setThrowableRenderer(LogEventWriter.newThrowableCache(throwableRenderer, throwableCacheSize));
+    }
+
+    /**
+     * Set how exceptions are rendered, for example with a {@link CompactThrowableRenderer}.
+     * Renderings are still cached according to {@link #setThrowableCacheSize(int)}.
+     * @param throwableRenderer the renderer, or null for the standard logback rendering
+     */
+    public void setThrowableRenderer(ThrowableRenderer throwableRenderer) {
+        this.throwableRenderer = throwableRenderer;
+        writer.setThrowableRenderer(LogEventWriter.newThrowableCache(throwableRenderer, throwableCacheSize));
+    }
+
+    /**
+     * Get the stack trace cache, for its hit, miss and eviction counts.
+     * @return the cache, or null if caching is disabled
+     */
+    public CachingThrowableRenderer getThrowableCache() {
+        final ThrowableRenderer renderer = writer.getThrowableRenderer();
+        return renderer instanceof CachingThrowableRenderer ? (CachingThrowableRenderer) renderer : null;
+    }
+
+    /**
+     * Leave fields out of log lines, for example ones the log collector adds anyway.  Can be given several times:
+     * <pre>
+     * &lt;projection&gt;k8s-cluster-name, k8s-namespace, k8s-node-host, k8s-pod-name, k8s-service-name&lt;/projection&gt;
+     * &lt;projection&gt;msg-v1: host, component-id&lt;/projection&gt;
+     * </pre>
+     * A rule prefixed with a {@code @loglov3-otl} type only applies to lines of that type, otherwise it applies to all lines.
+     * The streaming encoding never writes excluded fields; the tree encoding removes them before serializing.
+     * @param rule {@code [type:] field, field, ...}
+     */
+    public void addProjection(String rule) {
+        projection.add(rule);
+        writer.setProjection(projection);
+    }
+
+    /**
+     * @return the number of lines a projection has been applied to
+     */
+    public long getProjectedEvents() {
+        return projection.getEvents();
+    }
+
+    /**
+     * Bytes left out of lines by projections, exact for the host, environment, service and Kubernetes fields and
+     * estimated for other fields.  When streaming, {@code @uuid} is counted at its fixed size, and {@code exception}
+     * and {@code exception-fingerprint} are not counted, so that they are never rendered just to be measured.  Divide by {@link #getProjectedEvents()} for the saving per line.
+     * @return the total bytes saved
+     */
+    public long getProjectedBytesSaved() {
+        return projection.getBytesSaved();
+    }
+
+    /**
+     * @return true if application events carry their formatted {@code message}
+     */
+    public boolean isFormattedMessage() {
+        return formattedMessage;
+    }
+
+    /**
+     * Write the formatted message of application events as {@code message}.  On by default; turning it off
+     * together with {@link #setMessageTemplate(boolean)} saves formatting and escaping each message.
+     * @param formattedMessage whether to write the formatted message
+     */
+    public void setFormattedMessage(boolean formattedMessage) {
+        this.formattedMessage = formattedMessage;
+        writer.setFormattedMessage(formattedMessage);
+    }
+
+    /**
+     * @return true if application events carry their message pattern and arguments
+     */
+    public boolean isMessageTemplate() {
+        return messageTemplate;
+    }
+
+    /**
+     * Write the unformatted SLF4J pattern of application events as {@code message-template}, and their arguments
+     * as a {@code message-arguments} array.  Numbers and booleans keep their JSON type, other arguments are written
+     * as the text SLF4J would have used.  Lines can then be grouped by template without parsing messages.
+     * @param messageTemplate whether to write the pattern and arguments
+     */
+    public void setMessageTemplate(boolean messageTemplate) {
+        this.messageTemplate = messageTemplate;
+        writer.setMessageTemplate(messageTemplate);
+    }
+
+    /**
+     * Set how many pre-escaped values to keep for each of the logger name, thread name, severity, log name
+     * and OTL type fields, and for MDC keys.  A field whose values turn out not to repeat stops being cached.
+     * @param escapeCacheSize the number of values per field, or 0 to escape every value anew
+     */
+    public void setEscapeCacheSize(int escapeCacheSize) {
+        writer.setEscapeCacheSize(escapeCacheSize);
+    }
+
+    /**
+     * @return the number of field values written from the escaped value cache
+     */
+    public long getEscapeCacheHits() {
+        final EscapedValueCache cache = writer.getEscapeCache();
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    /**
+     * @return the number of field values that had to be escaped
+     */
+    public long getEscapeCacheMisses() {
+        final EscapedValueCache cache = writer.getEscapeCache();
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    /**
+     * @return the number of escaped values evicted to make room for new ones
+     */
+    public long getEscapeCacheEvictions() {
+        final EscapedValueCache cache = writer.getEscapeCache();
+        return cache == null ? 0 : cache.getEvictions();
+    }
+
+    /**
+     * @return the most bytes a string field may take, 0 for no limit
+     */
+    public int getMaxFieldBytes() {
+        return limits.getMaxFieldBytes();
+    }
+
+    /**
+     * Cap string fields such as the message, the exception and MDC values.  A longer value is cut short, marked
+     * with {@code ...[truncated]} and followed by a {@code <field>-original-length} field.
+     * @param maxFieldBytes the most bytes a string value may take once escaped, 0 for no limit
+     */
+    public void setMaxFieldBytes(int maxFieldBytes) {
+        limits.setMaxFieldBytes(maxFieldBytes);
+    }
+
+    /**
+     * @return the most bytes an event may take, 0 for no limit
+     */
+    public int getMaxEventBytes() {
+        return limits.getMaxEventBytes();
+    }
+
+    /**
+     * Cap whole events.  With streaming encoding, each string field is cut short to what is left of the cap
+     * when it is written, and dropped once the cap is used up, so no more than the cap is ever buffered.
+     * Only string values are capped: an OTL payload with large non-string properties can still exceed it.
+     * The tree encoding only applies {@link #setMaxFieldBytes(int)}.
+     * @param maxEventBytes the most bytes an event may take, 0 for no limit
+     */
+    public void setMaxEventBytes(int maxEventBytes) {
+        limits.setMaxEventBytes(maxEventBytes);
+    }
+
+    /**
+     * @return the number of events that had a field truncated or dropped
+     */
+    public long getTruncatedEvents() {
+        return limits.getTruncatedEvents();
+    }
+
+    /**
+     * @return the number of fields that were truncated or dropped
+     */
+    public long getTruncatedFields() {
+        return limits.getTruncatedFields();
+    }
+
     /**
      * Prepare a log event but don't append it, return it as an ObjectNode instead.
      * @param event the logging event to encode
      * @return the JSON object version of the log event
      */
     public ObjectNode convertToObjectNode(ILoggingEvent event) {
+        return convertToObjectNode(event, sequenceAllocation.next());
+    }
+
+    /**
+     * Prepare a log event with a sequence number drawn earlier, see {@link #encode(ILoggingEvent, long)}.
+     * Every tree encoding goes through here, so subclasses that hook the tree should override this method
+     * rather than {@link #convertToObjectNode(ILoggingEvent)}, which a {@link ParallelEncodingAppender} skips.
+     * @param loggingEvent the logging event to encode
+     * @param sequenceNumber the sequence number to write
+     * @return the JSON object version of the log event
+     */
+    protected ObjectNode convertToObjectNode(ILoggingEvent loggingEvent, long sequenceNumber) {
+        // Look through the bytes a FanOutAppender attached, or OTL events would lose their type
+        final ILoggingEvent event = EncodedLoggingEvent.original(loggingEvent);
         // If marked with OtlType, it's got an OTL such as HttpV1 hooked to it. Otherwise
         // wrap as a generic Application Log. Note that RequestEventLogs will
         // also be wrapped as an ApplicationLogEvent
-        final ObjectNode logLine = mapper.valueToTree(
-                event instanceof OtlType ? event : new ApplicationLogEvent(event));
+        final ObjectNode logLine;
+        if (event instanceof OtlType) {
+            logLine = mapper.valueToTree(event);
+        } else {
+            final ApplicationLogEvent applicationEvent = writer.applicationEvent(event);
+            logLine = mapper.valueToTree(applicationEvent);
+            addMessageTemplate(logLine, applicationEvent);
+        }
         final Marker marker = event.getMarker();
 
         // Merge aux OTL in as well.
+        boolean ownTimestamp = !(event instanceof OtlType);
         if (marker instanceof OtlMarker) {
             ObjectNode metadataNode = mapper.valueToTree(((OtlMarker) marker).getOtl());
             logLine.setAll(metadataNode);
+            ownTimestamp &= !metadataNode.has(CommonLogFields.TIMESTAMP_KEY);
+        }
+
+        // SLF4J key/value pairs follow the same rules as the MDC below, keeping their JSON types
+        final List<?> pairs = KeyValuePairs.of(event);
+        for (int i = 0; i < pairs.size(); i++) {
+            final String key = KeyValuePairs.key(pairs.get(i));
+            final Object value = KeyValuePairs.value(pairs.get(i));
+            if (key != null && value != null && MdcKeys.of(key).isLoggable() && !logLine.has(key)) {
+                logLine.set(key, mapper.valueToTree(value));
+            }
         }
 
         // Grab everything from the MDC, and with some exceptions (never override, obey blacklist)
-        // Log them.
+        // Log them.  Plain events only have the common fields, so other keys need not be looked up in the tree.
+        final boolean commonOnly = pairs.isEmpty() && !(event instanceof OtlType) && !(marker instanceof OtlMarker);
         for (Entry<String, String> e : event.getMDCPropertyMap().entrySet()) {
-            if (!logLine.has(e.getKey()) && HEADER_BLACKLIST.canLogFromMDC(e.getKey())) {
+            final MdcKeys.Verdict verdict = MdcKeys.of(e.getKey());
+            if (verdict.isLoggable() && !((!commonOnly || verdict.isCommonField()) && logLine.has(e.getKey()))) {
                 logLine.put(e.getKey(), e.getValue());
             }
         }
 
+        if (timestampFormat != TimestampFormat.ISO) {
+            if (ownTimestamp) {
+                // Our own timestamp, no need to parse it back
+                final long millis = event.getTimeStamp();
+                logLine.set(CommonLogFields.TIMESTAMP_KEY,
+                        timestampFormat.toNode(logLine, Math.floorDiv(millis, 1000L), (int) Math.floorMod(millis, 1000L) * 1_000_000));
+            } else {
+                convertTimestamp(logLine);
+            }
+        }
+
+        if (!projection.isEmpty()) {
+            projection.apply(logLine);
+        }
+
+        if (limits.apply(logLine)) {
+            limits.recordTruncatedEvent();
+        }
+
         // And put a tie breaking sequence number in
-        logLine.put(CommonLogFields.SEQUENCE_NUMBER_KEY, LOG_SEQUENCE_NUMBER.incrementAndGet());
+        logLine.put(CommonLogFields.SEQUENCE_NUMBER_KEY, sequenceNumber);
         return logLine;
     }
 
+    private static void addMessageTemplate(ObjectNode logLine, ApplicationLogEvent event) {
+        final String template = event.getMessageTemplate();
+        if (template != null) {
+            logLine.put(ApplicationLogEvent.MESSAGE_TEMPLATE_KEY, template);
+        }
+        final Object[] args = event.getMessageArguments();
+        if (args != null) {
+            MessageArguments.addTo(logLine.putArray(ApplicationLogEvent.MESSAGE_ARGUMENTS_KEY), args);
+        }
+    }
+
+    /**
+     * Convert an ISO-8601 {@code @timestamp} that came from an OTL bean.
+     */
+    private void convertTimestamp(ObjectNode logLine) {
+        final JsonNode timestamp = logLine.get(CommonLogFields.TIMESTAMP_KEY);
+        if (timestamp == null || !timestamp.isTextual()) {
+            return;
+        }
+        try {
+            final Instant instant = Instant.parse(timestamp.textValue());
+            logLine.set(CommonLogFields.TIMESTAMP_KEY, timestampFormat.toNode(logLine, instant.getEpochSecond(), instant.getNano()));
+        } catch (DateTimeParseException e) {
+            // Not ours, leave it as it is
+        }
+    }
+
     /**
      * Convert the JSON object to a byte array to log
      * @param event the event to log
      * @return the byte array to append to the log
      */
     protected byte[] getLogMessage(final ObjectNode event) {
-        try(ByteArrayBuilder buf = new ByteArrayBuilder()){
-            mapper.writeValue(buf, event);
-            buf.append('\n');
-            return buf.toByteArray();
+        try {
+            final EncodeBuffer buf = buffers.acquire();
+            final JsonGenerator gen = generator(buf);
+            mapper.writeValue(gen, event);
+            return toByteArray(endLine(buf, gen));
+        } catch (IOException e) {
+            addError("while serializing log event", e);
+            return NADA;
+        }
+    }
+
+    /**
+     * Write the event straight to a byte array to log, without building an intermediate tree
+     * @param event the event to log
+     * @return the byte array to append to the log
+     */
+    protected byte[] getStreamedLogMessage(final ILoggingEvent event) {
+        return getStreamedLogMessage(event, sequenceAllocation.next());
+    }
+
+    private byte[] getStreamedLogMessage(ILoggingEvent event, long sequenceNumber) {
+        try {
+            final EncodeBuffer buf = buffers.acquire();
+            final JsonGenerator gen = generator(buf);
+            writer.write(event, gen, sequenceNumber, buf.scratch());
+            return toByteArray(endLine(buf, gen));
         } catch (IOException e) {
             addError("while serializing log event", e);
             return NADA;
         }
     }
 
+    /**
+     * Encode an event and write it to a stream, without materializing it as a byte array first.
+     * @param event the event to log
+     * @param out the stream to write the line to
+     * @return the number of bytes written, 0 if the event could not be serialized
+     * @throws IOException if writing to the stream fails
+     */
+    public int encode(ILoggingEvent event, OutputStream out) throws IOException {
+        checkRegistry();
+        final byte[] encoded = EncodedLoggingEvent.encodedFor(event, this);
+        if (encoded != null) {
+            out.write(encoded);
+            return encoded.length;
+        }
+        final EncodeBuffer buf = encodeToBuffer(event);
+        if (buf == null) {
+            return 0;
+        }
+        try {
+            buf.writeTo(out);
+            return buf.size();
+        } finally {
+            buffers.release(buf);
+        }
+    }
+
+    /**
+     * Encode an event into a byte buffer, without materializing it as a byte array first.
+     * @param event the event to log
+     * @param target the buffer to put the line into
+     * @return the number of bytes written, 0 if the event could not be serialized
+     * @throws BufferOverflowException if the line does not fit; the target's position is unchanged
+     */
+    public int encode(ILoggingEvent event, ByteBuffer target) {
+        checkRegistry();
+        final byte[] encoded = EncodedLoggingEvent.encodedFor(event, this);
+        if (encoded != null) {
+            if (target.remaining() < encoded.length) {
+                throw new BufferOverflowException();
+            }
+            target.put(encoded);
+            return encoded.length;
+        }
+        final EncodeBuffer buf = encodeToBuffer(event);
+        if (buf == null) {
+            return 0;
+        }
+        try {
+            buf.writeTo(target);
+            return buf.size();
+        } finally {
+            buffers.release(buf);
+        }
+    }
+
+    /**
+     * Encode an event into a pooled buffer, which the caller must release.
+     * @param event the event to encode
+     * @return the filled buffer, or null if the event could not be serialized
+     */
+    private EncodeBuffer encodeToBuffer(ILoggingEvent event) {
+        try {
+            final EncodeBuffer buf = buffers.acquire();
+            final JsonGenerator gen = generator(buf);
+            final ILoggingEvent original = EncodedLoggingEvent.original(event);
+            if (isStreaming() && writer.canWrite(original)) {
+                writer.write(original, gen, sequenceAllocation.next(), buf.scratch());
+            } else {
+                mapper.writeValue(gen, convertToObjectNode(event));
+            }
+            return endLine(buf, gen);
+        } catch (IOException e) {
+            addError("while serializing log event", e);
+            return null;
+        }
+    }
+
+    private JsonGenerator generator(EncodeBuffer buf) throws IOException {
+        if (customFactory == null) {
+            return buf.generator(mapper.getFactory());
+        }
+        // Binary formats carry state such as back-reference tables across values of one generator,
+        // so each record gets a fresh generator to stay decodable on its own.
+        return mapper.getFactory().createGenerator((OutputStream) buf);
+    }
+
+    // A buffer whose event failed to serialize is never released: its generator may be left
+    // mid-object, so it is simply dropped and the pool creates a fresh one.
+    private EncodeBuffer endLine(EncodeBuffer buf, JsonGenerator gen) throws IOException {
+        if (customFactory == null) {
+            gen.flush();
+            buf.write('\n');
+        } else {
+            gen.close();
+        }
+        return buf;
+    }
+
+    private byte[] toByteArray(EncodeBuffer buf) {
+        try {
+            return buf.toByteArray();
+        } finally {
+            buffers.release(buf);
+        }
+    }
+
     @Override
     public byte[] headerBytes() {
         return NADA;
@@ -123,7 +734,65 @@ public class JsonLogEncoder extends EncoderBase<ILoggingEvent> {
 
     @Override
     public byte[] encode(ILoggingEvent event) {
-        return getLogMessage(convertToObjectNode(event));
+        checkRegistry();
+        // Already encoded by a FanOutAppender in this very format
+        final byte[] encoded = EncodedLoggingEvent.encodedFor(event, this);
+        if (encoded != null) {
+            return encoded;
+        }
+        final ILoggingEvent original = EncodedLoggingEvent.original(event);
+        if (isStreaming() && writer.canWrite(original)) {
+            return getStreamedLogMessage(original);
+        }
+        return getLogMessage(convertToObjectNode(original));
+    }
+
+    /**
+     * Check whether this encoder would write the same fields as another, so that bytes the other one encoded
+     * can be reused.  Message ids, sequence numbers and caches don't count, the shared bytes carry their own.
+     * Throwable renderers have no notion of equal settings, so only the same renderer instance matches.
+     * @param other the encoder that produced the bytes
+     * @return true if the class, the registered mapper and every setting that shapes the output match
+     */
+    boolean writesSameBytesAs(JsonLogEncoder other) {
+        return other == this || other.getClass() == getClass()
+                && other.isStreaming() == isStreaming()
+                && other.formattedMessage == formattedMessage
+                && other.messageTemplate == messageTemplate
+                && other.timestampFormat == timestampFormat
+                && other.limits.getMaxFieldBytes() == limits.getMaxFieldBytes()
+                && other.limits.getMaxEventBytes() == limits.getMaxEventBytes()
+                && other.projection.hasSameRules(projection)
+                && Objects.equals(other.throwableRenderer, throwableRenderer)
+                && other.registeredMapper == registeredMapper;
+    }
+
+    /**
+     * Draw the sequence number for an event that will be encoded later, possibly on another thread,
+     * see {@link #encode(ILoggingEvent, long)}.
+     * @return the next sequence number of this encoder
+     */
+    long nextSequenceNumber() {
+        return sequenceAllocation.next();
+    }
+
+    /**
+     * Encode an event with a sequence number drawn earlier by {@link #nextSequenceNumber()}.
+     * @param event the event to encode
+     * @param sequenceNumber the sequence number to write
+     * @return the encoded line
+     */
+    byte[] encode(ILoggingEvent event, long sequenceNumber) {
+        checkRegistry();
+        final byte[] encoded = EncodedLoggingEvent.encodedFor(event, this);
+        if (encoded != null) {
+            return encoded;
+        }
+        final ILoggingEvent original = EncodedLoggingEvent.original(event);
+        if (isStreaming() && writer.canWrite(original)) {
+            return getStreamedLogMessage(original, sequenceNumber);
+        }
+        return getLogMessage(convertToObjectNode(original, sequenceNumber));
     }
 
     @Override
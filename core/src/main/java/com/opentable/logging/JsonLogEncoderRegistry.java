@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Process wide configuration picked up by every {@link JsonLogEncoder}, for frameworks such as otj-server
+ * that are set up long after logback has configured its appenders.
+ * <p>
+ * Started encoders are updated on the thread that registers a change: they switch to a copy of the registered
+ * mapper and pre-resolve serializers for newly registered types, so the first log lines of those types are not
+ * slowed down.  Encoders that miss an update, for example because they started concurrently, switch mappers on
+ * the next event they encode.
+ */
+public final class JsonLogEncoderRegistry
+{
+    private static final Object LOCK = new Object();
+
+    private static volatile ObjectMapper objectMapper;
+    private static volatile Set<Class<?>> warmUpTypes = Collections.emptySet();
+    // Bumped whenever one of the values above changes, so encoders know to pick them up.
+    private static final AtomicInteger GENERATION = new AtomicInteger();
+    // Started encoders, updated when something changes.  Guarded by LOCK.
+    private static final Set<JsonLogEncoder> ENCODERS = Collections.newSetFromMap(new WeakHashMap<>());
+
+    private JsonLogEncoderRegistry() { }
+
+    /**
+     * Use a preconfigured mapper, for example one with the application's modules and customizations.
+     * Encoders work on a copy, with the settings the log format depends on (inclusion, date handling) applied on top.
+     * @param mapper the mapper, or null to go back to the encoder's own default
+     */
+    public static void setObjectMapper(ObjectMapper mapper) {
+        synchronized (LOCK) {
+            objectMapper = mapper;
+            GENERATION.incrementAndGet();
+        }
+        refreshEncoders();
+    }
+
+    /**
+     * @return the registered mapper, or null if none
+     */
+    public static ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    /**
+     * Register OTL types (for example {@code HttpV1}) whose serializers encoders resolve ahead of the first event.
+     * @param types the types to warm up
+     */
+    public static void registerWarmUpTypes(Class<?>... types) {
+        synchronized (LOCK) {
+            final Set<Class<?>> updated = new LinkedHashSet<>(warmUpTypes);
+            if (!updated.addAll(Arrays.asList(types))) {
+                return;
+            }
+            warmUpTypes = Collections.unmodifiableSet(updated);
+            GENERATION.incrementAndGet();
+        }
+        refreshEncoders();
+    }
+
+    /**
+     * Apply a change to the started encoders, on the calling thread rather than on a logging one.
+     */
+    private static void refreshEncoders() {
+        final List<JsonLogEncoder> encoders;
+        synchronized (LOCK) {
+            encoders = new ArrayList<>(ENCODERS);
+        }
+        for (JsonLogEncoder encoder : encoders) {
+            encoder.refresh();
+        }
+    }
+
+    static void track(JsonLogEncoder encoder) {
+        synchronized (LOCK) {
+            ENCODERS.add(encoder);
+        }
+    }
+
+    static void untrack(JsonLogEncoder encoder) {
+        synchronized (LOCK) {
+            ENCODERS.remove(encoder);
+        }
+    }
+
+    /**
+     * @return the types registered for warm-up
+     */
+    public static Set<Class<?>> getWarmUpTypes() {
+        return warmUpTypes;
+    }
+
+    /**
+     * The generation changes whenever the mapper or the warm-up types change.
+     * @return the current generation
+     */
+    static int getGeneration() {
+        return GENERATION.get();
+    }
+}
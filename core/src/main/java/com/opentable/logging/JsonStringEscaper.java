@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Escapes long string values for JSON output faster than the generator's per-character loop.
+ * <p>
+ * The string is narrowed to Latin-1 bytes with the JDK's intrinsic encoder, then scanned eight bytes at a time
+ * for quotes, backslashes, control characters and non-ASCII bytes.  Runs of clean bytes are copied in bulk, and
+ * the result is handed to {@link JsonGenerator#writeRawUTF8String(byte[], int, int)}.  The output is byte for
+ * byte what Jackson would have written.  Strings outside Latin-1, generators with custom escaping and very short
+ * or very long strings are left to the generator.
+ * <p>
+ * Not thread safe, each {@link LogEventWriter.Scratch} has its own.
+ */
+final class JsonStringEscaper {
+    /** Shorter strings are not worth the extra passes. */
+    static final int MIN_LENGTH = 64;
+    /** Longer strings are not worth keeping buffers around for. */
+    static final int MAX_LENGTH = 32 * 1024;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH = 0x8080808080808080L;
+    private static final long SPACES = ONES * ' ';
+    private static final long QUOTES = ONES * '"';
+    private static final long BACKSLASHES = ONES * '\\';
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    // For ASCII bytes: 0 if written as is, otherwise the character following the backslash ('u' for the six character form)
+    private static final byte[] ESCAPES = new byte[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = 'u';
+        }
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\t'] = 't';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['"'] = '"';
+        ESCAPES['\\'] = '\\';
+    }
+
+    private final CharsetEncoder latin1 = StandardCharsets.ISO_8859_1.newEncoder();
+    private char[] chars = new char[0];
+    private byte[] bytes = new byte[0];
+    private byte[] out = new byte[0];
+    private CharBuffer charBuffer = CharBuffer.wrap(chars);
+    private ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+
+    /**
+     * Write a string value if it can take the fast path.
+     * @param gen the generator to write to, which must produce UTF-8 encoded JSON
+     * @param value the value
+     * @return true if the value was written, false if it must be written through the generator
+     * @throws IOException if the generator fails
+     */
+    boolean write(JsonGenerator gen, String value) throws IOException {
+        final int length = value.length();
+        if (length < MIN_LENGTH || length > MAX_LENGTH
+                || gen.getHighestEscapedChar() != 0 || gen.getCharacterEscapes() != null
+                || !toLatin1(value, length)) {
+            return false;
+        }
+        final int escaped = escape(length);
+        if (escaped < 0) {
+            gen.writeRawUTF8String(bytes, 0, length);
+        } else {
+            gen.writeRawUTF8String(out, 0, escaped);
+        }
+        return true;
+    }
+
+    /**
+     * Narrow the string to {@link #bytes}.
+     * @return false if it has characters outside Latin-1
+     */
+    private boolean toLatin1(String value, int length) {
+        if (chars.length < length) {
+            final int capacity = Math.min(MAX_LENGTH, Math.max(length, chars.length * 2));
+            chars = new char[capacity];
+            bytes = new byte[capacity];
+            charBuffer = CharBuffer.wrap(chars);
+            byteBuffer = ByteBuffer.wrap(bytes);
+        }
+        // Try a prefix first, so that text in other scripts is turned away before copying all of it
+        value.getChars(0, MIN_LENGTH, chars, 0);
+        charBuffer.limit(MIN_LENGTH).position(0);
+        byteBuffer.clear();
+        latin1.reset();
+        if (latin1.encode(charBuffer, byteBuffer, false).isError()) {
+            return false;
+        }
+        value.getChars(MIN_LENGTH, length, chars, MIN_LENGTH);
+        charBuffer.limit(length);
+        final CoderResult result = latin1.encode(charBuffer, byteBuffer, true);
+        return !result.isError() && !charBuffer.hasRemaining();
+    }
+
+    /**
+     * Escape the Latin-1 {@link #bytes} as UTF-8 JSON string content into {@link #out}.
+     * @return the number of bytes written, or -1 if nothing needed escaping and the bytes can be used as they are
+     */
+    private int escape(int length) {
+        final byte[] in = bytes;
+        int written = 0;
+        int start = 0;
+        int i = 0;
+        while (i < length) {
+            if (i <= length - 8 && isClean((long) LONGS.get(in, i))) {
+                i += 8;
+                continue;
+            }
+            final int b = in[i] & 0xFF;
+            if (b < 0x80 && ESCAPES[b] == 0) {
+                i++;
+                continue;
+            }
+            if (start == 0) {
+                reserve(length + (length >> 3));
+            }
+            written = copy(start, i, written);
+            written = escape(b, written);
+            start = ++i;
+        }
+        return start == 0 ? -1 : copy(start, length, written);
+    }
+
+    /**
+     * @return true if none of the eight bytes is a quote, a backslash, a control character or non-ASCII
+     */
+    private static boolean isClean(long word) {
+        final long quotes = word ^ QUOTES;
+        final long backslashes = word ^ BACKSLASHES;
+        // Per-byte "less than" tests in the style of haszero(); any borrow between bytes only happens
+        // when a lower byte already matched, so the word as a whole is never misjudged
+        return (((word - SPACES) & ~word
+                | (quotes - ONES) & ~quotes
+                | (backslashes - ONES) & ~backslashes
+                | word) & HIGH) == 0;
+    }
+
+    private int copy(int from, int to, int written) {
+        final int count = to - from;
+        if (count > 0) {
+            reserve(written + count);
+            System.arraycopy(bytes, from, out, written, count);
+        }
+        return written + count;
+    }
+
+    private int escape(int b, int written) {
+        reserve(written + 6);
+        final byte[] o = out;
+        if (b >= 0x80) {
+            o[written++] = (byte) (0xC0 | b >> 6);
+            o[written++] = (byte) (0x80 | b & 0x3F);
+            return written;
+        }
+        final byte escape = ESCAPES[b];
+        o[written++] = '\\';
+        o[written++] = escape;
+        if (escape == 'u') {
+            o[written++] = '0';
+            o[written++] = '0';
+            o[written++] = HEX[b >> 4];
+            o[written++] = HEX[b & 0xF];
+        }
+        return written;
+    }
+
+    private void reserve(int capacity) {
+        if (out.length < capacity) {
+            out = Arrays.copyOf(out, Math.max(capacity, Math.max(MIN_LENGTH, out.length + (out.length >> 1))));
+        }
+    }
+}
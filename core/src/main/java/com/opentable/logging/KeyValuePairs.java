@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Reads the key/value pairs attached through the SLF4J 2 fluent API ({@code log.atInfo().addKeyValue(...)}).
+ * <p>
+ * {@code ILoggingEvent.getKeyValuePairs()} only exists from Logback 1.3 on, so it is looked up per event class
+ * and called through a method handle.  On older versions, or for events that don't have it, there are no pairs.
+ * The pairs are {@code org.slf4j.event.KeyValuePair}s, read through their public {@code key} and {@code value}
+ * fields, or {@link Map.Entry}s.
+ */
+final class KeyValuePairs {
+    private static final MethodType LIST_OF_OBJECT = MethodType.methodType(List.class, Object.class);
+
+    private static final ClassValue<MethodHandle> PAIRS = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            return getter(type, "getKeyValuePairs");
+        }
+    };
+
+    private static final ClassValue<MethodHandle[]> FIELDS = new ClassValue<MethodHandle[]>() {
+        @Override
+        protected MethodHandle[] computeValue(Class<?> type) {
+            try {
+                final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                return new MethodHandle[] {
+                    lookup.findGetter(type, "key", String.class).asType(MethodType.methodType(Object.class, Object.class)),
+                    lookup.findGetter(type, "value", Object.class).asType(MethodType.methodType(Object.class, Object.class)),
+                };
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+    };
+
+    private KeyValuePairs() { }
+
+    /**
+     * @param event the logging event
+     * @return the key/value pairs of the event, possibly empty, never null
+     */
+    static List<?> of(ILoggingEvent event) {
+        final MethodHandle handle = PAIRS.get(event.getClass());
+        if (handle == null) {
+            return Collections.emptyList();
+        }
+        final List<?> pairs;
+        try {
+            pairs = (List<?>) handle.invokeExact((Object) event);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("while reading key/value pairs", e);
+        }
+        return pairs == null ? Collections.emptyList() : pairs;
+    }
+
+    /**
+     * @param pair a pair from {@link #of(ILoggingEvent)}
+     * @return the key of the pair, or null if it has none or is not a pair
+     */
+    static String key(Object pair) {
+        if (pair instanceof Map.Entry) {
+            final Object key = ((Map.Entry<?, ?>) pair).getKey();
+            return key == null ? null : key.toString();
+        }
+        return (String) field(pair, 0);
+    }
+
+    /**
+     * @param pair a pair from {@link #of(ILoggingEvent)}
+     * @return the value of the pair, or null
+     */
+    static Object value(Object pair) {
+        if (pair instanceof Map.Entry) {
+            return ((Map.Entry<?, ?>) pair).getValue();
+        }
+        return field(pair, 1);
+    }
+
+    /**
+     * Check whether one of the first pairs has a key and a value, so that later pairs and the MDC don't repeat it.
+     * @param pairs the pairs
+     * @param count the number of pairs to look at
+     * @param key the key to look for
+     * @return true if the key is taken
+     */
+    static boolean contains(List<?> pairs, int count, String key) {
+        for (int i = 0; i < count; i++) {
+            final Object pair = pairs.get(i);
+            if (key.equals(key(pair)) && value(pair) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param pairs the pairs
+     * @return true if a value needs a Jackson serializer, see {@link #writeScalar(JsonGenerator, Object)}
+     */
+    static boolean hasObjects(List<?> pairs) {
+        for (int i = 0; i < pairs.size(); i++) {
+            final Object value = value(pairs.get(i));
+            if (value != null && !(value instanceof String) && !isScalar(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write a number or boolean value without going through a serializer.
+     * @param gen the generator to write to
+     * @param value the value
+     * @return true if the value was written, false if it needs a serializer
+     * @throws IOException if the generator fails
+     */
+    static boolean writeScalar(JsonGenerator gen, Object value) throws IOException {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            gen.writeNumber(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            gen.writeNumber((Long) value);
+        } else if (value instanceof Double) {
+            gen.writeNumber((Double) value);
+        } else if (value instanceof Float) {
+            gen.writeNumber((Float) value);
+        } else if (value instanceof BigDecimal) {
+            gen.writeNumber((BigDecimal) value);
+        } else if (value instanceof BigInteger) {
+            gen.writeNumber((BigInteger) value);
+        } else if (value instanceof Boolean) {
+            gen.writeBoolean((Boolean) value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isScalar(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Double || value instanceof Short
+                || value instanceof Byte || value instanceof Float || value instanceof BigDecimal || value instanceof BigInteger
+                || value instanceof Boolean;
+    }
+
+    private static Object field(Object pair, int index) {
+        if (pair == null) {
+            return null;
+        }
+        final MethodHandle[] fields = FIELDS.get(pair.getClass());
+        if (fields == null) {
+            return null;
+        }
+        try {
+            return fields[index].invokeExact(pair);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("while reading a key/value pair", e);
+        }
+    }
+
+    private static MethodHandle getter(Class<?> type, String name) {
+        final Method method;
+        try {
+            method = type.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+        if (Modifier.isStatic(method.getModifiers()) || !List.class.isAssignableFrom(method.getReturnType())) {
+            return null;
+        }
+        try {
+            return MethodHandles.lookup().unreflect(method).asType(LIST_OF_OBJECT);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+}
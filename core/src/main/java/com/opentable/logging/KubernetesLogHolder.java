@@ -13,6 +13,7 @@
  */
 package com.opentable.logging;
 
+import java.util.Objects;
 import java.util.Optional;
 
 import com.opentable.service.K8sInfo;
@@ -20,28 +21,60 @@ import com.opentable.service.K8sInfo;
 public class KubernetesLogHolder {
     public static final KubernetesLogHolder EMPTY = new KubernetesLogHolder(Optional.empty());
 
-    private final K8sInfo k8sInfo;
+    private final String clusterName;
+    private final String nameSpace;
+    private final String nodeHost;
+    private final String podName;
+    private final String serviceName;
+
     public KubernetesLogHolder(Optional<K8sInfo> k8sInfo) {
-        this.k8sInfo = k8sInfo.orElse(new K8sInfo());
+        final K8sInfo info = k8sInfo.orElse(new K8sInfo());
+        // Unwrapped once here, since these are read for every log line.
+        this.clusterName = info.getClusterName().orElse(null);
+        this.nameSpace = info.getNamespace().orElse(null);
+        this.nodeHost = info.getNodeHost().orElse(null);
+        this.podName = info.getPodName().orElse(null);
+        this.serviceName = info.getServiceName().orElse(null);
     }
 
     public String getClusterName() {
-        return k8sInfo.getClusterName().orElse(null);
+        return clusterName;
     }
 
     public String getNameSpace() {
-        return k8sInfo.getNamespace().orElse(null);
+        return nameSpace;
     }
 
     public String getNodeHost() {
-        return k8sInfo.getNodeHost().orElse(null);
+        return nodeHost;
     }
 
     public String getPodName() {
-        return k8sInfo.getPodName().orElse(null);
+        return podName;
     }
 
     public String getServiceName() {
-        return k8sInfo.getServiceName().orElse(null);
+        return serviceName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final KubernetesLogHolder that = (KubernetesLogHolder) o;
+        return Objects.equals(clusterName, that.clusterName)
+                && Objects.equals(nameSpace, that.nameSpace)
+                && Objects.equals(nodeHost, that.nodeHost)
+                && Objects.equals(podName, that.podName)
+                && Objects.equals(serviceName, that.serviceName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(clusterName, nameSpace, nodeHost, podName, serviceName);
     }
 }
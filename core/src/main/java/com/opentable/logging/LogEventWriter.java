@@ -0,0 +1,1021 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.DefaultSerializerProvider;
+
+import org.slf4j.Marker;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import com.opentable.httpheaders.HeaderBlacklist;
+import com.opentable.logging.otl.OtlMarker;
+import com.opentable.logging.otl.OtlType;
+
+/**
+ * Writes a logging event straight to a {@link JsonGenerator}, without building an intermediate tree.
+ * <p>
+ * The output is byte for byte what {@link JsonLogEncoder#convertToObjectNode(ILoggingEvent)} serializes to,
+ * so the fields come in the same order: the event's properties in the order the mapper's bean serializer has
+ * them (the sequence number included), then the message template and arguments.  Fields of an attached
+ * {@link OtlMarker} replace those already present in place and follow them otherwise, as
+ * {@link com.fasterxml.jackson.databind.node.ObjectNode#setAll} does.  SLF4J key/value pairs and then MDC
+ * entries come last; they never override a field that is already present and must pass the {@link HeaderBlacklist}.
+ * The only difference is {@link FieldLimits#setMaxEventBytes(int)}, which the tree encoding does not apply.
+ */
+final class LogEventWriter {
+    static final int DEFAULT_THROWABLE_CACHE_SIZE = 1024;
+
+    private static final SerializableString SEQUENCE_NUMBER = new SerializedString(CommonLogFields.SEQUENCE_NUMBER_KEY);
+
+    private volatile ObjectMapper mapper;
+    private volatile BeanFields.Cache beanFields;
+    private final BiConsumer<String, Throwable> warn;
+    // The order the tree encoding writes the common fields in, resolved with the mapper
+    private volatile CommonField[] order;
+    // Pre-serialized JSON can only be spliced into JSON output
+    private volatile boolean json;
+
+    private volatile ConstantFields constantFields = ConstantFields.none();
+    private volatile TimestampFormat timestampFormat = TimestampFormat.ISO;
+    private volatile MessageIdGenerator messageIds;
+    private volatile ThrowableRenderer throwables = newThrowableCache(null, DEFAULT_THROWABLE_CACHE_SIZE);
+    private volatile boolean recycleEvents;
+    private volatile FieldProjection projection;
+    private volatile FieldLimits limits;
+    private volatile EscapedValueCache escapes;
+    private volatile boolean formattedMessage = true;
+    private volatile boolean messageTemplate;
+
+    /**
+     * @param mapper the mapper to serialize with
+     * @param warn reports problems that do not stop events from being written
+     */
+    LogEventWriter(ObjectMapper mapper, BiConsumer<String, Throwable> warn) {
+        this.mapper = mapper;
+        this.warn = warn;
+        this.beanFields = new BeanFields.Cache(mapper, warn);
+        this.order = order(beanFields);
+        this.json = isJson(mapper);
+        this.escapes = new EscapedValueCache(mapper.getFactory(), EscapedValueCache.DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Switch to a different mapper, dropping everything resolved with the old one.
+     * @param mapper the new mapper
+     */
+    void setMapper(ObjectMapper mapper) {
+        final BeanFields.Cache cache = new BeanFields.Cache(mapper, warn);
+        this.beanFields = cache;
+        this.order = order(cache);
+        this.json = isJson(mapper);
+        this.mapper = mapper;
+        this.constantFields = ConstantFields.none();
+        final EscapedValueCache e = escapes;
+        if (e != null) {
+            e.setFactory(mapper.getFactory());
+        }
+        final FieldProjection p = projection;
+        if (p != null) {
+            p.reset();
+        }
+    }
+
+    /**
+     * Resolve the order of the common fields from the mapper's serializer for {@link ApplicationLogEvent}.
+     * The tree encoding adds the message template and arguments after serializing the event.
+     */
+    private static CommonField[] order(BeanFields.Cache cache) {
+        final BeanFields fields = cache.get(ApplicationLogEvent.class);
+        if (fields == null) {
+            return CommonField.VALUES;
+        }
+        final List<CommonField> result = new ArrayList<>();
+        for (String name : fields.names()) {
+            final CommonField field = CommonField.BY_NAME.get(name);
+            if (field != null) {
+                result.add(field);
+            }
+        }
+        for (CommonField field : new CommonField[] { CommonField.MESSAGE_TEMPLATE, CommonField.MESSAGE_ARGUMENTS }) {
+            if (!result.contains(field)) {
+                result.add(field);
+            }
+        }
+        return result.toArray(new CommonField[0]);
+    }
+
+    private static boolean isJson(ObjectMapper mapper) {
+        return JsonFactory.FORMAT_NAME_JSON.equals(mapper.getFactory().getFormatName());
+    }
+
+    /**
+     * Resolve serializers for application log events and the given types, so that is not done on the first events.
+     * No sample event is written: that would read {@link CommonLogHolder} before the application has set it up.
+     * @param types additional OTL types to resolve
+     */
+    void warmUp(Collection<Class<?>> types) {
+        final BeanFields.Cache cache = beanFields;
+        cache.get(ApplicationLogEvent.class);
+        for (Class<?> type : types) {
+            cache.get(type);
+        }
+        TimestampCache.INSTANCE.format(System.currentTimeMillis());
+    }
+
+    /**
+     * @param timestampFormat how to write the {@code @timestamp} field
+     */
+    void setTimestampFormat(TimestampFormat timestampFormat) {
+        this.timestampFormat = timestampFormat;
+    }
+
+    /**
+     * @param messageIds the generator for message ids, or null to use {@link CommonLogHolder#getMessageIdGenerator()}
+     */
+    void setMessageIdGenerator(MessageIdGenerator messageIds) {
+        this.messageIds = messageIds;
+    }
+
+    /**
+     * @return the generator for message ids
+     */
+    MessageIdGenerator getMessageIdGenerator() {
+        final MessageIdGenerator result = messageIds;
+        return result == null ? CommonLogHolder.getMessageIdGenerator() : result;
+    }
+
+    /**
+     * @return the renderer for exceptions
+     */
+    ThrowableRenderer getThrowableRenderer() {
+        return throwables;
+    }
+
+    /**
+     * @param throwables the renderer for exceptions
+     */
+    void setThrowableRenderer(ThrowableRenderer throwables) {
+        this.throwables = throwables;
+    }
+
+    /**
+     * @param recycleEvents true to write plain events through the {@link ApplicationLogEvent} view of the
+     *                      {@link Scratch} passed in, instead of wrapping each event in a new one
+     */
+    void setRecycleEvents(boolean recycleEvents) {
+        this.recycleEvents = recycleEvents;
+    }
+
+    /**
+     * @param projection the fields to leave out per OTL type, or null to write every field
+     */
+    void setProjection(FieldProjection projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * @param maxEntries the number of escaped values to cache per field, 0 to escape every value anew
+     */
+    void setEscapeCacheSize(int maxEntries) {
+        this.escapes = maxEntries == 0 ? null : new EscapedValueCache(mapper.getFactory(), maxEntries);
+    }
+
+    /**
+     * @return the escaped value cache, or null if disabled
+     */
+    EscapedValueCache getEscapeCache() {
+        return escapes;
+    }
+
+    /**
+     * @param limits the caps on field and event sizes, or null for none
+     */
+    void setLimits(FieldLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * @param renderer the renderer to cache, or null for the standard logback rendering
+     * @param maxEntries the number of renderings to cache
+     * @return a renderer that caches the given one, or the renderer itself if {@code maxEntries} is 0
+     */
+    static ThrowableRenderer newThrowableCache(ThrowableRenderer renderer, int maxEntries) {
+        final ThrowableRenderer plain = renderer == null ? ApplicationLogEvent.ThrowableConverterHack.INSTANCE : renderer;
+        return maxEntries == 0 ? plain : new CachingThrowableRenderer(plain, maxEntries);
+    }
+
+    /**
+     * Wrap a plain logging event as an application log message.
+     * @param event the event to wrap
+     * @return the application log message
+     */
+    ApplicationLogEvent applicationEvent(ILoggingEvent event) {
+        return new ApplicationLogEvent(event, getMessageIdGenerator(), throwables)
+                .messageFields(formattedMessage, messageTemplate);
+    }
+
+    /**
+     * @param formattedMessage whether to write the formatted {@code message} of application events
+     */
+    void setFormattedMessage(boolean formattedMessage) {
+        this.formattedMessage = formattedMessage;
+    }
+
+    /**
+     * @param messageTemplate whether to write the SLF4J pattern and arguments of application events
+     */
+    void setMessageTemplate(boolean messageTemplate) {
+        this.messageTemplate = messageTemplate;
+    }
+
+    /**
+     * Check whether an event can be streamed.  Events carrying a payload with a shape we do not
+     * understand (custom serializers, any-getters, unwrapped properties) must use the tree encoding.
+     * @param event the event to check
+     * @return true if {@link #write(ILoggingEvent, JsonGenerator, long)} supports the event
+     */
+    boolean canWrite(ILoggingEvent event) {
+        if (event instanceof OtlType && beanFields.get(event.getClass()) == null) {
+            return false;
+        }
+        final Marker marker = event.getMarker();
+        return !(marker instanceof OtlMarker) || beanFields.get(((OtlMarker) marker).getOtl().getClass()) != null;
+    }
+
+    /**
+     * Write a single event as a JSON object.
+     * @param event the event to write
+     * @param gen the generator to write to
+     * @param sequenceNumber the tie breaking sequence number for this event
+     * @throws IOException if the generator fails
+     */
+    void write(ILoggingEvent event, JsonGenerator gen, long sequenceNumber) throws IOException {
+        write(event, gen, sequenceNumber, new Scratch());
+    }
+
+    /**
+     * Write a single event as a JSON object.
+     * @param event the event to write
+     * @param gen the generator to write to
+     * @param sequenceNumber the tie breaking sequence number for this event
+     * @param scratch state to reuse, which must not be shared with a concurrent call
+     * @throws IOException if the generator fails
+     */
+    void write(ILoggingEvent event, JsonGenerator gen, long sequenceNumber, Scratch scratch) throws IOException {
+        try {
+            writeEvent(event, gen, sequenceNumber, scratch);
+        } finally {
+            scratch.clear();
+        }
+    }
+
+    private void writeEvent(ILoggingEvent event, JsonGenerator gen, long sequenceNumber, Scratch scratch) throws IOException {
+        final Marker marker = event.getMarker();
+        final Object otl = marker instanceof OtlMarker ? ((OtlMarker) marker).getOtl() : null;
+        final BeanFields otlFields = otl == null ? null : beanFields.get(otl.getClass());
+        final List<?> pairs = KeyValuePairs.of(event);
+        final SerializerProvider provider = otl != null || event instanceof OtlType || KeyValuePairs.hasObjects(pairs)
+                ? newProvider() : null;
+
+        final BeanFields eventFields = event instanceof OtlType ? beanFields.get(event.getClass()) : null;
+        final FieldProjection projection = this.projection;
+        final FieldProjection.Projection projected = projection == null
+                ? null : projection.forType(otlType(event, eventFields, otl, otlFields));
+        scratch.projected = projected;
+        final FieldLimits limits = this.limits;
+        if (limits != null && limits.isEnabled()) {
+            scratch.limits = limits;
+            scratch.eventStart = FieldLimits.position(gen);
+        }
+        final BeanFields.StringWriter strings = scratch.limits == null ? null : scratch;
+        scratch.escapes = escapes;
+        scratch.json = json;
+
+        gen.writeStartObject();
+
+        long commonWritten = 0;
+        if (eventFields != null) {
+            eventFields.write(event, gen, provider,
+                    name -> writeEventProperty(event, eventFields, otl, otlFields, name, gen, provider, sequenceNumber, scratch),
+                    strings);
+        } else {
+            final ApplicationLogEvent fields = recycleEvents
+                    ? scratch.view.recycle(event, getMessageIdGenerator(), throwables).messageFields(formattedMessage, messageTemplate)
+                    : applicationEvent(event);
+            commonWritten = writeCommonFields(fields, event.getTimeStamp(), gen, provider, otlFields, otl, sequenceNumber, scratch);
+        }
+
+        if (otlFields != null) {
+            final long written = commonWritten;
+            otlFields.write(otl, gen, provider,
+                    name -> writeOtlTail(event, eventFields, written, otl, otlFields, name, gen, sequenceNumber, scratch),
+                    strings);
+        }
+
+        scratch.writeContext(event, gen, commonWritten, eventFields, otl, otlFields, pairs, provider);
+
+        if (!scratch.sequenceWritten) {
+            gen.writeFieldName(SEQUENCE_NUMBER);
+            gen.writeNumber(sequenceNumber);
+        }
+        gen.writeEndObject();
+
+        if (projection != null) {
+            projection.record(scratch.excludedBytes);
+        }
+        if (scratch.truncated) {
+            scratch.limits.recordTruncatedEvent();
+        }
+    }
+
+    /**
+     * @return the {@code @loglov3-otl} the event will be written with, the attached OTL's taking precedence
+     */
+    private static String otlType(ILoggingEvent event, BeanFields eventFields, Object otl, BeanFields otlFields) {
+        final String key = CommonField.LOGLOV3_OTL.fieldName;
+        Object type = otlFields == null ? null : otlFields.get(otl, key);
+        if (type == null) {
+            type = eventFields == null ? ApplicationLogEvent.loglov3Otl(event) : eventFields.get(event, key);
+        }
+        return type == null ? null : type.toString();
+    }
+
+    private long writeCommonFields(ApplicationLogEvent fields, long timestamp, JsonGenerator gen, SerializerProvider provider,
+            BeanFields otlFields, Object otl, long sequenceNumber, Scratch scratch) throws IOException {
+        final FieldProjection.Projection projected = scratch.projected;
+        final char[] chars = scratch.chars;
+        final CommonField[] order = this.order;
+        // Runs of constant fields are spliced as one block, unless the output is not JSON or the OTL overrides one of them
+        final ConstantFields constants = json && !overridesConstant(otlFields, otl) ? constantFields(fields, projected, order) : null;
+        long written = 0;
+        for (int i = 0; i < order.length; i++) {
+            final CommonField field = order[i];
+            // A block needs a field written before it to hang its leading separator on
+            if (constants != null && constants.isRunStart(i) && gen.getOutputContext().hasCurrentIndex()) {
+                written |= constants.writeTo(gen, i);
+                scratch.excludedBytes += constants.getExcludedBytes(i);
+                i = constants.runEnd(i) - 1;
+                continue;
+            }
+            if (field == CommonField.SEQUENCE_NUMBER) {
+                writeSequenceNumber(gen, sequenceNumber, scratch);
+                continue;
+            }
+            final boolean overridden = otlFields != null && otlFields.has(otl, field.fieldName);
+            if (projected != null && projected.excludes(field)) {
+                // An overriding OTL value is counted when the OTL is written
+                if (!overridden) {
+                    scratch.excludedBytes += field.isEstimated() ? field.getEstimate() : FieldProjection.estimate(field.fieldName, field.get(fields));
+                }
+                continue;
+            }
+            if (overridden) {
+                if (field.get(fields) != null) {
+                    writeOtlProperty(otl, otlFields, field.fieldName, gen, provider, scratch);
+                    written |= field.bit;
+                }
+                continue;
+            }
+            if (field == CommonField.TIMESTAMP) {
+                gen.writeFieldName(CommonField.TIMESTAMP.serializedName);
+                timestampFormat.write(gen, Math.floorDiv(timestamp, 1000L), (int) Math.floorMod(timestamp, 1000L) * 1_000_000, chars);
+                written |= field.bit;
+                continue;
+            }
+            if (field == CommonField.MESSAGE_ID) {
+                if (fields.hasMessageId()) {
+                    gen.writeFieldName(field.serializedName);
+                    gen.writeString(chars, 0, fields.renderMessageId(chars, 0));
+                    written |= field.bit;
+                }
+                continue;
+            }
+            if (field == CommonField.MESSAGE_ARGUMENTS) {
+                final Object[] args = fields.getMessageArguments();
+                if (args != null) {
+                    gen.writeFieldName(field.serializedName);
+                    MessageArguments.write(gen, args, scratch.limits, scratch.eventStart);
+                    written |= field.bit;
+                }
+                continue;
+            }
+            final Object value = field.get(fields);
+            if (value == null) {
+                continue;
+            }
+            if (value instanceof String) {
+                if (scratch.writeIfTooLong(gen, field.fieldName, (String) value)) {
+                    written |= field.bit;
+                    continue;
+                }
+                final EscapedValueCache escapes = scratch.escapes;
+                if (escapes != null && escapes.write(gen, field, (String) value, json && gen.getOutputContext().hasCurrentIndex())) {
+                    written |= field.bit;
+                    continue;
+                }
+            }
+            gen.writeFieldName(field.serializedName);
+            if (value instanceof Integer) {
+                gen.writeNumber((Integer) value);
+            } else {
+                scratch.writeString(gen, value.toString());
+            }
+            written |= field.bit;
+        }
+        return written;
+    }
+
+    /**
+     * Handle a property of an {@link OtlType} event: the sequence number and timestamp are written by the
+     * writer, and a property the attached OTL also has is replaced by the OTL's value.
+     * @return true if the property has been dealt with
+     */
+    private boolean writeEventProperty(ILoggingEvent event, BeanFields eventFields, Object otl, BeanFields otlFields,
+            String name, JsonGenerator gen, SerializerProvider provider, long sequenceNumber, Scratch scratch) throws IOException {
+        if (CommonLogFields.SEQUENCE_NUMBER_KEY.equals(name)) {
+            writeSequenceNumber(gen, sequenceNumber, scratch);
+            return true;
+        }
+        if (otlFields != null && otlFields.has(otl, name)) {
+            if (!scratch.isExcluded(name) && eventFields.has(event, name)) {
+                writeOtlProperty(otl, otlFields, name, gen, provider, scratch);
+            }
+            return true;
+        }
+        return scratch.excludes(eventFields, event, name)
+                || CommonLogFields.TIMESTAMP_KEY.equals(name) && writeTimestamp(event, eventFields, gen);
+    }
+
+    /**
+     * Handle a property of an attached OTL after the event's own fields: those that replaced a field of the
+     * event have already been written in its place.
+     * @return true if the property has been dealt with
+     */
+    private boolean writeOtlTail(ILoggingEvent event, BeanFields eventFields, long commonWritten, Object otl, BeanFields otlFields,
+            String name, JsonGenerator gen, long sequenceNumber, Scratch scratch) throws IOException {
+        if (CommonLogFields.SEQUENCE_NUMBER_KEY.equals(name)) {
+            if (!scratch.sequenceWritten) {
+                writeSequenceNumber(gen, sequenceNumber, scratch);
+            }
+            return true;
+        }
+        final boolean replaced;
+        if (eventFields != null) {
+            replaced = eventFields.has(event, name);
+        } else {
+            final CommonField field = CommonField.BY_NAME.get(name);
+            replaced = field != null && (commonWritten & field.bit) != 0;
+        }
+        return replaced
+                || scratch.excludes(otlFields, otl, name)
+                || CommonLogFields.TIMESTAMP_KEY.equals(name) && writeTimestamp(otl, otlFields, gen);
+    }
+
+    private void writeOtlProperty(Object otl, BeanFields otlFields, String name, JsonGenerator gen, SerializerProvider provider,
+            Scratch scratch) throws IOException {
+        if (CommonLogFields.TIMESTAMP_KEY.equals(name) && writeTimestamp(otl, otlFields, gen)) {
+            return;
+        }
+        otlFields.writeProperty(otl, name, gen, provider, scratch.limits == null ? null : scratch);
+    }
+
+    /**
+     * Write the sequence number where the event has it.  If the projection leaves it out there, the tree
+     * encoding adds it back at the end, and so does {@link #write(ILoggingEvent, JsonGenerator, long, Scratch)}.
+     */
+    private static void writeSequenceNumber(JsonGenerator gen, long sequenceNumber, Scratch scratch) throws IOException {
+        if (scratch.isExcluded(CommonLogFields.SEQUENCE_NUMBER_KEY)) {
+            return;
+        }
+        gen.writeFieldName(SEQUENCE_NUMBER);
+        gen.writeNumber(sequenceNumber);
+        scratch.sequenceWritten = true;
+    }
+
+    /**
+     * Write an {@link Instant} valued {@code @timestamp} property of a bean through the {@link TimestampFormat}.
+     * With a numeric format, ISO-8601 strings are converted too, as the tree encoding does.
+     * Any other kind of value is left for the bean serializer.
+     * @return true if the property was written and must be skipped when writing the bean
+     */
+    private boolean writeTimestamp(Object bean, BeanFields fields, JsonGenerator gen) throws IOException {
+        final Object value = fields.get(bean, CommonLogFields.TIMESTAMP_KEY);
+        final Instant instant;
+        if (value instanceof Instant) {
+            instant = (Instant) value;
+        } else if (value instanceof String && timestampFormat != TimestampFormat.ISO) {
+            try {
+                instant = Instant.parse((String) value);
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        } else {
+            return false;
+        }
+        gen.writeFieldName(CommonField.TIMESTAMP.serializedName);
+        timestampFormat.write(gen, instant.getEpochSecond(), instant.getNano());
+        return true;
+    }
+
+    private static boolean overridesConstant(BeanFields otlFields, Object otl) {
+        if (otlFields == null) {
+            return false;
+        }
+        for (CommonField field : CommonField.VALUES) {
+            if (field.constant && otlFields.has(otl, field.fieldName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ConstantFields constantFields(CommonLogFields fields, FieldProjection.Projection projected, CommonField[] order) throws IOException {
+        final int generation = CommonLogHolder.getGeneration();
+        if (projected != null && projected.commonMask != 0) {
+            ConstantFields result = projected.constants;
+            if (result.isStale(generation, order)) {
+                result = ConstantFields.build(mapper.getFactory(), fields, generation, projected.commonMask, order);
+                projected.constants = result;
+            }
+            return result;
+        }
+        ConstantFields result = constantFields;
+        if (result.isStale(generation, order)) {
+            result = ConstantFields.build(mapper.getFactory(), fields, generation, 0, order);
+            constantFields = result;
+        }
+        return result;
+    }
+
+    private static boolean isPresent(MdcKeys.Verdict verdict, String key, long commonWritten,
+            ILoggingEvent event, BeanFields eventFields, Object otl, BeanFields otlFields) {
+        if (verdict.isWritten(commonWritten)) {
+            return true;
+        }
+        if (eventFields != null && eventFields.has(event, key)) {
+            return true;
+        }
+        return otlFields != null && otlFields.has(otl, key);
+    }
+
+    /**
+     * Per-call state that the writer would otherwise allocate for every event: a recyclable
+     * {@link ApplicationLogEvent} view, a char buffer for timestamps and ids, and the key/value and MDC iteration state.
+     * Pooled along with the output buffer, see {@link EncodeBuffer#scratch()}.
+     */
+    static final class Scratch implements BiConsumer<String, String>, BeanFields.StringWriter {
+        final ApplicationLogEvent view = new ApplicationLogEvent();
+        final char[] chars = new char[TimestampCache.MAX_LENGTH];
+
+        private ILoggingEvent event;
+        private JsonGenerator gen;
+        private long commonWritten;
+        private BeanFields eventFields;
+        private Object otl;
+        private BeanFields otlFields;
+        private List<?> pairs;
+        private IOException failure;
+        private boolean sequenceWritten;
+
+        // Projection state for the current event
+        private FieldProjection.Projection projected;
+        private long excludedBytes;
+
+        // Size caps for the current event, null if there are none
+        private FieldLimits limits;
+        private long eventStart;
+        private boolean truncated;
+
+        private EscapedValueCache escapes;
+
+        // Long strings in JSON output are escaped by the JsonStringEscaper, created on first use
+        private boolean json;
+        private JsonStringEscaper escaper;
+
+        /**
+         * Write a string field if it is over the size caps, see {@link FieldLimits#writeIfTooLong}.
+         */
+        boolean writeIfTooLong(JsonGenerator gen, String name, String value) throws IOException {
+            if (limits == null || !limits.writeIfTooLong(gen, name, value, eventStart)) {
+                return false;
+            }
+            truncated = true;
+            return true;
+        }
+
+        @Override
+        public boolean write(JsonGenerator gen, String name, String value) throws IOException {
+            return writeIfTooLong(gen, name, value);
+        }
+
+        boolean isExcluded(String name) {
+            return projected != null && projected.excludes(name);
+        }
+
+        /**
+         * Check whether a bean property is excluded from the current event, counting the bytes saved if so.
+         * Properties named like a common field that is costly to read are not read, see {@link CommonField#isEstimated()}.
+         */
+        boolean excludes(BeanFields fields, Object bean, String name) {
+            if (projected == null || !projected.excludes(name)) {
+                return false;
+            }
+            final CommonField field = CommonField.BY_NAME.get(name);
+            excludedBytes += field != null && field.isEstimated() ? field.getEstimate() : FieldProjection.estimate(name, fields.get(bean, name));
+            return true;
+        }
+
+        /**
+         * Write the SLF4J key/value pairs and then the MDC entries that are not already present.
+         * The pairs are walked by index and the MDC with {@link Map#forEach} with this object as the
+         * action, so that no iterator is created.
+         */
+        void writeContext(ILoggingEvent event, JsonGenerator gen, long commonWritten,
+                BeanFields eventFields, Object otl, BeanFields otlFields, List<?> pairs, SerializerProvider provider)
+                throws IOException {
+            this.event = event;
+            this.gen = gen;
+            this.commonWritten = commonWritten;
+            this.eventFields = eventFields;
+            this.otl = otl;
+            this.otlFields = otlFields;
+            this.pairs = pairs;
+            for (int i = 0; i < pairs.size(); i++) {
+                writePair(i, provider);
+            }
+            event.getMDCPropertyMap().forEach(this);
+            final IOException e = failure;
+            if (e != null) {
+                failure = null;
+                throw e;
+            }
+        }
+
+        private void writePair(int index, SerializerProvider provider) throws IOException {
+            final Object pair = pairs.get(index);
+            final String key = KeyValuePairs.key(pair);
+            final Object value = KeyValuePairs.value(pair);
+            if (key == null || value == null) {
+                return;
+            }
+            final MdcKeys.Verdict verdict = MdcKeys.of(key);
+            if (!verdict.isLoggable()
+                    || isPresent(verdict, key, commonWritten, event, eventFields, otl, otlFields)
+                    || KeyValuePairs.contains(pairs, index, key)) {
+                return;
+            }
+            if (projected != null && projected.excludes(key)) {
+                excludedBytes += FieldProjection.estimate(key, value);
+                return;
+            }
+            if (value instanceof String) {
+                writeString(key, (String) value);
+                return;
+            }
+            writeName(key);
+            if (!KeyValuePairs.writeScalar(gen, value)) {
+                provider.defaultSerializeValue(value, gen);
+            }
+        }
+
+        @Override
+        public void accept(String key, String value) {
+            if (failure != null) {
+                return;
+            }
+            final MdcKeys.Verdict verdict = MdcKeys.of(key);
+            if (!verdict.isLoggable()
+                    || isPresent(verdict, key, commonWritten, event, eventFields, otl, otlFields)
+                    || KeyValuePairs.contains(pairs, pairs.size(), key)) {
+                return;
+            }
+            if (projected != null && projected.excludes(key)) {
+                excludedBytes += FieldProjection.estimate(key, value);
+                return;
+            }
+            try {
+                if (value == null) {
+                    // The tree encoding keeps these as null nodes
+                    writeName(key);
+                    gen.writeNull();
+                } else {
+                    writeString(key, value);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private void writeString(String key, String value) throws IOException {
+            if (writeIfTooLong(gen, key, value)) {
+                return;
+            }
+            writeName(key);
+            writeString(gen, value);
+        }
+
+        /**
+         * Write a string value, taking the {@link JsonStringEscaper} fast path for long values in JSON output.
+         */
+        void writeString(JsonGenerator gen, String value) throws IOException {
+            if (json && value.length() >= JsonStringEscaper.MIN_LENGTH) {
+                if (escaper == null) {
+                    escaper = new JsonStringEscaper();
+                }
+                if (escaper.write(gen, value)) {
+                    return;
+                }
+            }
+            gen.writeString(value);
+        }
+
+        private void writeName(String key) throws IOException {
+            final SerializableString name = escapes == null ? null : escapes.mdcKey(key);
+            if (name == null) {
+                gen.writeFieldName(key);
+            } else {
+                gen.writeFieldName(name);
+            }
+        }
+
+        void clear() {
+            view.clear();
+            event = null;
+            gen = null;
+            eventFields = null;
+            otl = null;
+            otlFields = null;
+            pairs = null;
+            failure = null;
+            sequenceWritten = false;
+            projected = null;
+            excludedBytes = 0;
+            limits = null;
+            truncated = false;
+            escapes = null;
+            json = false;
+        }
+    }
+
+    private SerializerProvider newProvider() {
+        return ((DefaultSerializerProvider) mapper.getSerializerProvider())
+                .createInstance(mapper.getSerializationConfig(), mapper.getSerializerFactory());
+    }
+
+    /**
+     * The fields of {@link CommonLogFields}, plus the message template and arguments of {@link ApplicationLogEvent}.
+     * They are written in the order the mapper serializes them; the order here is only used if the mapper
+     * cannot tell.  The sequence number is written by the encoder itself.
+     * Constant fields come from {@link CommonLogHolder} and are written as {@link ConstantFields} blocks.
+     */
+    enum CommonField {
+        TIMESTAMP("@timestamp") {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getTimestamp();
+            }
+        },
+        MESSAGE_ID("@uuid", MessageIdGenerators.UUID_LENGTH + 2) {
+            @Override
+            Object get(CommonLogFields f) {
+                final UUID id = f.getMessageId();
+                return id == null ? null : id.toString();
+            }
+        },
+        LOGLOV3_OTL("@loglov3-otl") {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getLoglov3Otl();
+            }
+        },
+        LOG_NAME("log-name") {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getLogTypeName();
+            }
+        },
+        SEVERITY("severity") {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getSeverity();
+            }
+        },
+        LOGGER_NAME("logger-name") {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getLogClass();
+            }
+        },
+        THREAD_NAME("thread-name") {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getThreadName();
+            }
+        },
+        MESSAGE("message") {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getMessage();
+            }
+        },
+        MESSAGE_TEMPLATE(ApplicationLogEvent.MESSAGE_TEMPLATE_KEY) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f instanceof ApplicationLogEvent ? ((ApplicationLogEvent) f).getMessageTemplate() : null;
+            }
+        },
+        MESSAGE_ARGUMENTS(ApplicationLogEvent.MESSAGE_ARGUMENTS_KEY) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f instanceof ApplicationLogEvent ? ((ApplicationLogEvent) f).getMessageArguments() : null;
+            }
+        },
+        EXCEPTION("exception", 0) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getThrowable();
+            }
+        },
+        EXCEPTION_FINGERPRINT("exception-fingerprint", 0) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getThrowableFingerprint();
+            }
+        },
+        SEQUENCE_NUMBER(CommonLogFields.SEQUENCE_NUMBER_KEY) {
+            @Override
+            Object get(CommonLogFields f) {
+                return null;
+            }
+        },
+        SERVICE_TYPE("service-type", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getServiceType();
+            }
+        },
+        COMPONENT_ID("component-id", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getComponentId();
+            }
+        },
+        HOST("host", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getHost();
+            }
+        },
+        INSTANCE_NO("instance-no", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getInstanceNo();
+            }
+        },
+        OT_ENV("ot-env", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getOtEnv();
+            }
+        },
+        OT_ENV_TYPE("ot-env-type", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getOtEnvType();
+            }
+        },
+        OT_ENV_LOCATION("ot-env-location", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getOtEnvLocation();
+            }
+        },
+        OT_ENV_FLAVOR("ot-env-flavor", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getOtEnvFlavor();
+            }
+        },
+        K8S_CLUSTER_NAME("k8s-cluster-name", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getClusterName();
+            }
+        },
+        K8S_NAMESPACE("k8s-namespace", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getNamespace();
+            }
+        },
+        K8S_NODE_HOST("k8s-node-host", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getNodeHost();
+            }
+        },
+        K8S_POD_NAME("k8s-pod-name", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getPodName();
+            }
+        },
+        K8S_SERVICE_NAME("k8s-service-name", true) {
+            @Override
+            Object get(CommonLogFields f) {
+                return f.getServiceName();
+            }
+        };
+
+        static final CommonField[] VALUES = values();
+        static final Map<String, CommonField> BY_NAME = new HashMap<>();
+
+        static {
+            for (CommonField f : VALUES) {
+                BY_NAME.put(f.fieldName, f);
+            }
+        }
+
+        final String fieldName;
+        final SerializableString serializedName;
+        final long bit;
+        final boolean constant;
+        // The bytes an excluded value is counted as, or -1 to measure the value
+        private final int valueBytes;
+
+        CommonField(String name) {
+            this(name, false, -1);
+        }
+
+        CommonField(String name, boolean constant) {
+            this(name, constant, -1);
+        }
+
+        /**
+         * A field that is costly to read: rendering a stack trace or allocating an id just to measure it
+         * would undo the point of leaving it out.
+         * @param valueBytes the bytes the value is counted as when excluded
+         */
+        CommonField(String name, int valueBytes) {
+            this(name, false, valueBytes);
+        }
+
+        private CommonField(String name, boolean constant, int valueBytes) {
+            this.fieldName = name;
+            this.serializedName = new SerializedString(name);
+            this.bit = 1L << ordinal();
+            this.constant = constant;
+            this.valueBytes = valueBytes;
+        }
+
+        /**
+         * @return true if an excluded value is counted as {@link #getEstimate()} instead of being read and measured
+         */
+        boolean isEstimated() {
+            return valueBytes >= 0;
+        }
+
+        /**
+         * @return the bytes an excluded value is counted as
+         */
+        int getEstimate() {
+            return valueBytes == 0 ? 0 : FieldProjection.estimate(fieldName, valueBytes);
+        }
+
+        /**
+         * Read the value of this field.
+         * @param f the fields to read from
+         * @return the field value, or null if it should be omitted
+         */
+        abstract Object get(CommonLogFields f);
+    }
+}
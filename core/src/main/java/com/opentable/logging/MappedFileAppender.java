@@ -0,0 +1,302 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.util.FileSize;
+
+/**
+ * An appender that writes encoded lines, usually NDJSON from a {@link JsonLogEncoder}, into memory-mapped
+ * segment files, for a log shipper to tail.
+ * <p>
+ * Appending reserves room in the current segment with a CAS and copies the line into the mapping, without
+ * a lock or a system call, so many threads can append at once.  Once a segment is full the next one is
+ * created and the old one is synced to disk and truncated to its data on a background thread.  Segments are
+ * named {@code <file>.000001}, {@code <file>.000002} and so on, continuing after the segments already there.
+ * <p>
+ * Segments being written are named {@code <file>.000001.open} and are created at their full {@code <segmentSize>},
+ * so log shippers that pick up files by name, such as Filebeat or Fluent Bit, should only match closed segments
+ * (for example {@code <file>.??????}).  A closed segment holds nothing but whole lines and ends in a newline, unless a write to it failed.
+ * Readers that tail the segment being written follow this protocol:
+ * <ol>
+ *   <li>If the file ends in a newline or is empty, it is closed and all of it is data.</li>
+ *   <li>Otherwise it ends in an eight byte trailer, a big-endian int followed by four NUL bytes.  The int is the
+ *   committed length: the bytes below it are whole lines, and it never moves backwards.  A write that failed
+ *   leaves a hole, a partial line ending in NUL bytes, which readers skip up to the last NUL byte.  Data past it, whether
+ *   NUL bytes or lines, may still be being copied and must not be read.</li>
+ *   <li>Read the trailer again to follow the segment.  Once {@code <file>.000001.open} is gone the segment was
+ *   closed, truncated to its committed length and renamed to {@code <file>.000001}; continue with the next one.</li>
+ * </ol>
+ * Data copied into the mapping survives a crash of the process.  On start any segment that was not closed
+ * cleanly keeps its committed lines and the whole lines after them that were copied around ranges left
+ * unfinished (runs of NUL bytes), and is then truncated and renamed like a closed segment.
+ * <pre>
+ * &lt;appender name="FILE" class="com.opentable.logging.MappedFileAppender"&gt;
+ *   &lt;file&gt;/var/log/app/app.json&lt;/file&gt;
+ *   &lt;segmentSize&gt;64MB&lt;/segmentSize&gt;
+ *   &lt;encoder class="com.opentable.logging.JsonLogEncoder"/&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+public class MappedFileAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_FLUSH_TIME = 10_000;
+    private static final int SYNC_POLL_MILLIS = 100;
+
+    private final BlockingQueue<MappedSegment> sealed = new LinkedBlockingQueue<>();
+    private final LongAdder dropped = new LongAdder();
+    private final Object rollLock = new Object();
+
+    private Encoder<ILoggingEvent> encoder;
+    private String file;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private int maxFlushTime = DEFAULT_MAX_FLUSH_TIME;
+
+    private Path base;
+    private volatile MappedSegment current;
+    // Guarded by rollLock
+    private int segmentIndex;
+    private Thread syncer;
+    private volatile boolean running;
+
+    @Override
+    public void start() {
+        if (isStarted()) {
+            return;
+        }
+        if (encoder == null) {
+            addError("No encoder set for the appender named \"" + name + "\".");
+            return;
+        }
+        if (file == null) {
+            addError("No file set for the appender named \"" + name + "\".");
+            return;
+        }
+        if (segmentSize < 1 || segmentSize > Integer.MAX_VALUE - 2 * MappedSegment.TRAILER) {
+            addError("Invalid segment size " + segmentSize + ", segments are mapped whole and must be under 2GB");
+            return;
+        }
+        try {
+            base = Paths.get(file).toAbsolutePath();
+            Files.createDirectories(base.getParent());
+            segmentIndex = recoverSegments();
+            current = MappedSegment.create(segmentPath(++segmentIndex), (int) segmentSize);
+        } catch (IOException | RuntimeException e) {
+            addError("Could not open segments of " + file, e);
+            return;
+        }
+        running = true;
+        syncer = new Thread(this::sync, "MappedFileAppender-Sync-" + getName());
+        syncer.setDaemon(true);
+        super.start();
+        syncer.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        super.stop();
+        synchronized (rollLock) {
+            current.seal();
+            sealed.add(current);
+        }
+        running = false;
+
+        final CleanShutdown shutdown = new CleanShutdown(maxFlushTime);
+        if (!shutdown.join(syncer)) {
+            addWarn("Max flush time of " + maxFlushTime + " ms exceeded, " + sealed.size() + " segments were not synced.");
+        }
+        shutdown.restoreInterrupt();
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        final byte[] line;
+        try {
+            line = encoder.encode(event);
+        } catch (RuntimeException e) {
+            addError("Encoding an event failed in the appender named \"" + name + "\".", e);
+            return;
+        }
+        if (line == null || line.length == 0) {
+            return;
+        }
+        MappedSegment segment = current;
+        try {
+            while (!segment.append(line)) {
+                segment = roll(segment, line.length);
+                if (segment == null) {
+                    dropped.increment();
+                    return;
+                }
+            }
+        } catch (InternalError e) {
+            // A fault in the mapping, such as a full disk; the segment is sealed and the next event rolls over
+            dropped.increment();
+            addError("Could not write to segment " + segment.getPath() + ", dropped an event.", e);
+        }
+    }
+
+    /**
+     * Replace a segment that a line did not fit into, unless another thread already has.
+     * @return the segment to try next, or null if the appender stopped or no segment could be created
+     */
+    private MappedSegment roll(MappedSegment full, int length) {
+        synchronized (rollLock) {
+            if (!isStarted()) {
+                return null;
+            }
+            if (current != full) {
+                return current;
+            }
+            final MappedSegment next;
+            try {
+                // A line longer than a segment gets a segment of its own
+                next = MappedSegment.create(segmentPath(++segmentIndex), (int) Math.max(segmentSize, length));
+            } catch (IOException | RuntimeException e) {
+                addError("Could not create segment " + segmentIndex + " of " + file, e);
+                return null;
+            }
+            full.seal();
+            current = next;
+            sealed.add(full);
+            return next;
+        }
+    }
+
+    /**
+     * Sync and truncate sealed segments once their last appends have completed.
+     */
+    private void sync() {
+        while (running || !sealed.isEmpty()) {
+            final MappedSegment segment;
+            try {
+                segment = sealed.poll(SYNC_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Never let a stray interrupt stop the syncing
+                addWarn("Sync thread of the appender named \"" + name + "\" was interrupted, cleared the interrupt flag.");
+                continue;
+            }
+            if (segment == null) {
+                continue;
+            }
+            while (!segment.isQuiescent()) {
+                Thread.yield();
+            }
+            try {
+                segment.close();
+            } catch (IOException | RuntimeException e) {
+                addError("Could not sync segment " + segment.getPath(), e);
+            }
+        }
+    }
+
+    /**
+     * Trim the segments a crash left behind.
+     * @return the highest existing segment index, or 0 if there are none
+     */
+    private int recoverSegments() throws IOException {
+        int highest = 0;
+        final String prefix = base.getFileName() + ".";
+        try (DirectoryStream<Path> existing = Files.newDirectoryStream(base.getParent(), prefix + "*")) {
+            for (Path path : existing) {
+                String suffix = path.getFileName().toString().substring(prefix.length());
+                if (suffix.endsWith(MappedSegment.OPEN_SUFFIX)) {
+                    suffix = suffix.substring(0, suffix.length() - MappedSegment.OPEN_SUFFIX.length());
+                }
+                final int index;
+                try {
+                    index = Integer.parseInt(suffix);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                highest = Math.max(highest, index);
+                if (MappedSegment.recover(path)) {
+                    addWarn("Trimmed segment " + path + " that was not closed cleanly.");
+                }
+            }
+        }
+        return highest;
+    }
+
+    private Path segmentPath(int index) {
+        return base.resolveSibling(String.format(Locale.ROOT, "%s.%06d", base.getFileName(), index));
+    }
+
+    public Encoder<ILoggingEvent> getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * @param encoder the encoder, which is called from several threads at once
+     */
+    public void setEncoder(Encoder<ILoggingEvent> encoder) {
+        this.encoder = encoder;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * @param file the path segments are named after
+     */
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    /**
+     * @param segmentSize the size segment files are created with, under 2GB
+     */
+    public void setSegmentSize(FileSize segmentSize) {
+        this.segmentSize = segmentSize.getSize();
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @param maxFlushTime how long {@link #stop()} waits for segments to be synced, in milliseconds
+     */
+    public void setMaxFlushTime(int maxFlushTime) {
+        this.maxFlushTime = maxFlushTime;
+    }
+
+    public int getMaxFlushTime() {
+        return maxFlushTime;
+    }
+
+    /**
+     * @return the number of events dropped because no segment could be created or written to
+     */
+    public long getDroppedEvents() {
+        return dropped.sum();
+    }
+}
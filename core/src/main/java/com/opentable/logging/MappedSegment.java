@@ -0,0 +1,278 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * One memory-mapped file of a {@link MappedFileAppender}.
+ * <p>
+ * Lines are appended by reserving a range with a CAS on the write position and copying into the mapping,
+ * so any number of threads can append at once.  While it is written the segment is named
+ * {@code <path>.open}, has its full size and ends in an eight byte trailer: the committed length as a
+ * big-endian int, followed by four NUL bytes.  The committed length only ever advances over ranges that are
+ * done copying, in order, so everything below it is whole lines even while later ranges are still being
+ * copied.  A copy that fails, for example because the disk filled up under the mapping, is committed anyway
+ * as a hole that ends in NUL bytes, so the writers after it are not held up, and the segment is sealed.
+ * {@link #seal()} stops further appends, after which {@link #close()} syncs the file, truncates it
+ * to the data written and renames it to {@code <path>}.  {@link #recover(Path)} does the same for a file left
+ * behind by a crash.
+ */
+final class MappedSegment {
+    static final String OPEN_SUFFIX = ".open";
+    static final int TRAILER = 8;
+
+    // Write position of a sealed segment, no reservation fits after it
+    private static final int SEALED = Integer.MIN_VALUE;
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int trailer;
+    private final BiConsumer<ByteBuffer, byte[]> copy;
+    private final AtomicInteger position = new AtomicInteger();
+    // End of the ranges copied so far, each writer advances it past its own range once it reaches it
+    private final AtomicInteger committed = new AtomicInteger();
+    // Threads between reserving and finishing their copy
+    private final AtomicInteger writers = new AtomicInteger();
+    private volatile int end = -1;
+
+    private MappedSegment(Path path, FileChannel channel, MappedByteBuffer buffer, int capacity, BiConsumer<ByteBuffer, byte[]> copy) {
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.trailer = buffer.capacity() - TRAILER;
+        this.copy = copy;
+    }
+
+    /**
+     * Create a new segment file, named {@code <path>.open} until it is closed.
+     * @param path the final name of the file, which must not exist yet
+     * @param capacity the number of bytes of lines the file holds
+     * @return the segment
+     * @throws IOException if the file cannot be created or mapped
+     */
+    static MappedSegment create(Path path, int capacity) throws IOException {
+        return create(path, capacity, ByteBuffer::put);
+    }
+
+    /**
+     * Create a new segment file that copies lines with the given function, to inject failures in tests.
+     */
+    static MappedSegment create(Path path, int capacity, BiConsumer<ByteBuffer, byte[]> copy) throws IOException {
+        final FileChannel channel = FileChannel.open(openPath(path),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // The trailer is aligned, so the committed length is written as a whole
+            final int size = ((capacity + 3) & ~3) + TRAILER;
+            return new MappedSegment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size), capacity, copy);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Append a line.
+     * @param line the bytes to append
+     * @return false if the segment is sealed or the line does not fit
+     * @throws InternalError if the copy into the mapping faulted, after sealing the segment
+     */
+    boolean append(byte[] line) {
+        writers.incrementAndGet();
+        try {
+            final int offset = reserve(line.length);
+            if (offset < 0) {
+                return false;
+            }
+            try {
+                final ByteBuffer target = buffer.duplicate();
+                target.position(offset);
+                copy.accept(target, line);
+            } finally {
+                // A failed copy is committed as a hole: it stops short of the newline and what it missed stays NUL
+                commit(offset, offset + line.length);
+            }
+            return true;
+        } catch (InternalError e) {
+            // A fault in the mapping, which compiled code may only report at a later access; the rest of the
+            // mapping is likely no better, so take no more lines
+            seal();
+            throw e;
+        } finally {
+            writers.decrementAndGet();
+        }
+    }
+
+    private int reserve(int length) {
+        while (true) {
+            final int offset = position.get();
+            if (offset == SEALED || length > capacity - offset) {
+                return -1;
+            }
+            if (position.compareAndSet(offset, offset + length)) {
+                return offset;
+            }
+        }
+    }
+
+    /**
+     * Wait for the ranges before a copied one to be committed, then commit it.  The copies before it were
+     * reserved earlier and are short, so the wait is too.
+     */
+    private void commit(int offset, int next) {
+        for (int attempt = 0; committed.get() != offset; attempt++) {
+            WaitStrategy.YIELD.idle(attempt);
+        }
+        try {
+            // Publish the copied bytes before the length, and the length before the next writer may publish its own
+            INT.setRelease(buffer, trailer, next);
+        } finally {
+            // Even if the trailer faulted, so that no writer waits for this range forever
+            committed.set(next);
+        }
+    }
+
+    /**
+     * Stop further appends.  Appends already under way complete, see {@link #isQuiescent()}.
+     */
+    void seal() {
+        final int written = position.getAndSet(SEALED);
+        if (written != SEALED) {
+            end = written;
+        }
+    }
+
+    /**
+     * @return true once the segment is sealed and no thread is still copying into it
+     */
+    boolean isQuiescent() {
+        return end >= 0 && writers.get() == 0;
+    }
+
+    /**
+     * Sync a sealed, quiescent segment to disk, truncate the file to the data written and give it its final name.
+     * @throws IOException if the file cannot be synced, truncated or renamed
+     */
+    void close() throws IOException {
+        try (FileChannel c = channel) {
+            buffer.force();
+            c.truncate(end);
+            c.force(true);
+        }
+        Files.move(openPath(path), path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes reserved so far, or written in total once sealed
+     */
+    int size() {
+        final int offset = position.get();
+        return offset == SEALED ? end : offset;
+    }
+
+    /**
+     * @return the length of the whole lines at the start of the segment
+     */
+    int committed() {
+        return committed.get();
+    }
+
+    static Path openPath(Path path) {
+        return path.resolveSibling(path.getFileName() + OPEN_SUFFIX);
+    }
+
+    /**
+     * Finish a segment file that was not closed cleanly: keep the committed lines, and the whole lines
+     * past them that are separated by runs of NUL bytes from ranges a crash left uncopied, then truncate
+     * the file and rename it from {@code <path>.open} to {@code <path>}.  Files that end in a newline were
+     * closed and are left alone.
+     * @param path the file to check, either name
+     * @return true if the file was trimmed
+     * @throws IOException if the file cannot be read, truncated or renamed
+     */
+    static boolean recover(Path path) throws IOException {
+        final boolean trimmed;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            trimmed = trim(channel);
+        }
+        final String name = path.getFileName().toString();
+        if (name.endsWith(OPEN_SUFFIX)) {
+            Files.move(path, path.resolveSibling(name.substring(0, name.length() - OPEN_SUFFIX.length())), StandardCopyOption.ATOMIC_MOVE);
+        }
+        return trimmed;
+    }
+
+    private static boolean trim(FileChannel channel) throws IOException {
+        final long length = channel.size();
+        if (length == 0 || length > Integer.MAX_VALUE) {
+            return false;
+        }
+        final ByteBuffer last = ByteBuffer.allocate(1);
+        channel.read(last, length - 1);
+        if (last.get(0) == '\n') {
+            return false;
+        }
+        final MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        final int limit = (int) Math.max(0, length - TRAILER);
+        int committed = length < TRAILER ? 0 : data.getInt(limit);
+        // The committed range ends in a whole line or a hole
+        if (committed < 0 || committed > limit || committed > 0 && data.get(committed - 1) != '\n' && data.get(committed - 1) != 0) {
+            // No usable trailer, salvage the whole file
+            committed = 0;
+        }
+        // Salvage the whole lines past the committed ones, a line touching a NUL byte was not fully copied
+        final ByteArrayOutputStream salvaged = new ByteArrayOutputStream();
+        int lineStart = committed;
+        for (int i = committed; i < limit; i++) {
+            final byte b = data.get(i);
+            if (b == 0) {
+                lineStart = i + 1;
+            } else if (b == '\n') {
+                final byte[] line = new byte[i + 1 - lineStart];
+                data.get(lineStart, line);
+                salvaged.write(line, 0, line.length);
+                lineStart = i + 1;
+            }
+        }
+        channel.write(ByteBuffer.wrap(salvaged.toByteArray()), committed);
+        channel.truncate(committed + salvaged.size());
+        channel.force(true);
+        return true;
+    }
+}
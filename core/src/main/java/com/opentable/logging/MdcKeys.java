@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.opentable.httpheaders.HeaderBlacklist;
+import com.opentable.logging.LogEventWriter.CommonField;
+
+/**
+ * Remembers what is known about each MDC (and key/value pair) key: whether the {@link HeaderBlacklist} lets it
+ * be logged, and which of the fields written for every event it would collide with.  Request MDCs carry the same
+ * couple dozen header keys on every line, so this turns a blacklist check and a field name lookup per key into
+ * a single map lookup.
+ * <p>
+ * The blacklist is fixed for the life of the process, so verdicts never go stale.  At most {@link #MAX_ENTRIES}
+ * keys are remembered; when full, an arbitrary entry is evicted to make room.
+ */
+final class MdcKeys {
+    static final int MAX_ENTRIES = 4096;
+
+    private static final HeaderBlacklist HEADER_BLACKLIST = HeaderBlacklist.INSTANCE;
+    private static final ConcurrentMap<String, Verdict> VERDICTS = new ConcurrentHashMap<>();
+
+    private MdcKeys() { }
+
+    /**
+     * @param key the MDC key
+     * @return what is known about the key
+     */
+    static Verdict of(String key) {
+        Verdict verdict = VERDICTS.get(key);
+        if (verdict == null) {
+            verdict = new Verdict(key);
+            if (VERDICTS.size() >= MAX_ENTRIES) {
+                evictOne();
+            }
+            VERDICTS.put(key, verdict);
+        }
+        return verdict;
+    }
+
+    private static void evictOne() {
+        final Iterator<String> iter = VERDICTS.keySet().iterator();
+        if (iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * @return the number of keys currently remembered
+     */
+    static int size() {
+        return VERDICTS.size();
+    }
+
+    static final class Verdict {
+        private final boolean loggable;
+        private final boolean reserved;
+        private final long commonBit;
+
+        private Verdict(String key) {
+            this.loggable = HEADER_BLACKLIST.canLogFromMDC(key);
+            this.reserved = CommonLogFields.SEQUENCE_NUMBER_KEY.equals(key);
+            final CommonField common = CommonField.BY_NAME.get(key);
+            this.commonBit = common == null ? 0 : common.bit;
+        }
+
+        /**
+         * @return true if the blacklist allows logging the key
+         */
+        boolean isLoggable() {
+            return loggable;
+        }
+
+        /**
+         * @return true if the key is the name of a {@link CommonField} or the sequence number, the only
+         *         fields a plain event can have
+         */
+        boolean isCommonField() {
+            return reserved || commonBit != 0;
+        }
+
+        /**
+         * @param commonWritten the {@link CommonField} bits written for the event
+         * @return true if the key names a field that has been written, or the sequence number that always will be
+         */
+        boolean isWritten(long commonWritten) {
+            return reserved || (commonWritten & commonBit) != 0;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+import org.slf4j.helpers.MessageFormatter;
+
+/**
+ * Writes the arguments of an SLF4J message as a JSON array.  Numbers and booleans keep their JSON type,
+ * {@code null} stays null, and everything else is written as the text SLF4J would have put in the message.
+ */
+final class MessageArguments {
+    private MessageArguments() { }
+
+    /**
+     * Write the arguments as an array value.
+     * @param gen the generator to write to
+     * @param args the arguments
+     * @param limits caps for string arguments, or null
+     * @param eventStart the {@link FieldLimits#position(JsonGenerator)} where the event started
+     * @throws IOException if the generator fails
+     */
+    static void write(JsonGenerator gen, Object[] args, FieldLimits limits, long eventStart) throws IOException {
+        gen.writeStartArray();
+        for (Object arg : args) {
+            if (arg == null) {
+                gen.writeNull();
+            } else if (arg instanceof Integer || arg instanceof Long || arg instanceof Short || arg instanceof Byte) {
+                gen.writeNumber(((Number) arg).longValue());
+            } else if (arg instanceof Double || arg instanceof Float) {
+                gen.writeNumber(((Number) arg).doubleValue());
+            } else if (arg instanceof BigDecimal) {
+                gen.writeNumber((BigDecimal) arg);
+            } else if (arg instanceof BigInteger) {
+                gen.writeNumber((BigInteger) arg);
+            } else if (arg instanceof Boolean) {
+                gen.writeBoolean((Boolean) arg);
+            } else {
+                final String text = text(arg);
+                if (limits == null || !limits.writeElementIfTooLong(gen, text, eventStart)) {
+                    gen.writeString(text);
+                }
+            }
+        }
+        gen.writeEndArray();
+    }
+
+    /**
+     * Add the arguments to an array node.
+     * @param array the array to add to
+     * @param args the arguments
+     */
+    static void addTo(ArrayNode array, Object[] args) {
+        for (Object arg : args) {
+            if (arg == null) {
+                array.addNull();
+            } else if (arg instanceof Integer || arg instanceof Long || arg instanceof Short || arg instanceof Byte) {
+                array.add(((Number) arg).longValue());
+            } else if (arg instanceof Double || arg instanceof Float) {
+                array.add(((Number) arg).doubleValue());
+            } else if (arg instanceof BigDecimal) {
+                array.add((BigDecimal) arg);
+            } else if (arg instanceof BigInteger) {
+                array.add((BigInteger) arg);
+            } else if (arg instanceof Boolean) {
+                array.add((Boolean) arg);
+            } else {
+                array.add(text(arg));
+            }
+        }
+    }
+
+    private static String text(Object arg) {
+        if (arg instanceof String) {
+            return (String) arg;
+        }
+        // Arrays and failing toString() methods are rendered the way SLF4J does
+        return MessageFormatter.format("{}", arg).getMessage();
+    }
+}
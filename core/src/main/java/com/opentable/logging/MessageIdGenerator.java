@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.UUID;
+
+/**
+ * Creates the {@code @uuid} of each log message.
+ * <p>
+ * Implementations must be thread safe and should not contend on shared state, since every logging thread calls them.
+ * See {@link MessageIdGenerators} for the built-in implementations.  A custom implementation can be used from
+ * logback configuration by giving its class name, it then needs a public no-argument constructor.
+ */
+@FunctionalInterface
+public interface MessageIdGenerator {
+    /**
+     * @return a new, unique message id
+     */
+    UUID nextId();
+
+    /**
+     * Create a new message id without allocating a {@link UUID}.  The default implementation
+     * unpacks {@link #nextId()}; the built-in generators compute the bits directly.
+     * @param dest receives the most significant bits at index 0 and the least significant bits at index 1
+     */
+    default void nextId(long[] dest) {
+        final UUID id = nextId();
+        dest[0] = id.getMostSignificantBits();
+        dest[1] = id.getLeastSignificantBits();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The built-in {@link MessageIdGenerator}s.
+ */
+public final class MessageIdGenerators {
+    /** The length of a UUID in its canonical form. */
+    static final int UUID_LENGTH = 36;
+
+    private static final MessageIdGenerator SECURE = UUID::randomUUID;
+    private static final MessageIdGenerator TIME_ORDERED = new TimeOrdered();
+    private static final MessageIdGenerator COUNTER = new Counter();
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private MessageIdGenerators() { }
+
+    /**
+     * Random (version 4) UUIDs from {@link UUID#randomUUID()}.  These come from a shared {@code SecureRandom},
+     * which becomes a point of contention when many threads log at once.  This is the default, since these ids
+     * reveal nothing about when or where they were made.
+     * @return the secure generator
+     */
+    public static MessageIdGenerator secure() {
+        return SECURE;
+    }
+
+    /**
+     * Time ordered (version 7) UUIDs: the current time in milliseconds followed by 74 random bits from
+     * {@link ThreadLocalRandom}.  Much cheaper under contention and garbage free, but ids reveal when they were made
+     * and are not suited to be unguessable.
+     * @return the time ordered generator
+     */
+    public static MessageIdGenerator timeOrdered() {
+        return TIME_ORDERED;
+    }
+
+    /**
+     * Counter based (version 8) UUIDs: a random per-thread prefix followed by a per-thread counter.
+     * The cheapest option, but ids reveal how many messages a thread has logged.
+     * @return the counter generator
+     */
+    public static MessageIdGenerator counter() {
+        return COUNTER;
+    }
+
+    /**
+     * Look up a generator by name, as used in logback configuration.
+     * @param name {@code secure}, {@code time-ordered}, {@code counter}, or the class name of a custom {@link MessageIdGenerator}
+     * @return the generator
+     * @throws IllegalArgumentException if the name is neither a built-in generator nor a usable class
+     */
+    public static MessageIdGenerator forName(String name) {
+        final String trimmed = name.trim();
+        switch (trimmed.toLowerCase(Locale.ROOT)) {
+            case "secure":
+                return secure();
+            case "time-ordered":
+                return timeOrdered();
+            case "counter":
+                return counter();
+            default:
+                break;
+        }
+        try {
+            return Class.forName(trimmed).asSubclass(MessageIdGenerator.class).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown message id generator '" + name + "'", e);
+        }
+    }
+
+    /**
+     * Render a UUID in its canonical 36 character form, the same as {@link UUID#toString()}.
+     * @param id the id to render
+     * @param dest the array to render into, with at least 36 chars of room after {@code off}
+     * @param off where to start writing
+     * @return the offset just after the rendered id
+     */
+    static int render(UUID id, char[] dest, int off) {
+        return render(id.getMostSignificantBits(), id.getLeastSignificantBits(), dest, off);
+    }
+
+    /**
+     * Render the bits of a UUID in its canonical 36 character form.
+     * @param msb the most significant bits
+     * @param lsb the least significant bits
+     * @param dest the array to render into, with at least 36 chars of room after {@code off}
+     * @param off where to start writing
+     * @return the offset just after the rendered id
+     */
+    static int render(long msb, long lsb, char[] dest, int off) {
+        int pos = hex(msb >>> 32, 8, dest, off);
+        dest[pos++] = '-';
+        pos = hex(msb >>> 16, 4, dest, pos);
+        dest[pos++] = '-';
+        pos = hex(msb, 4, dest, pos);
+        dest[pos++] = '-';
+        pos = hex(lsb >>> 48, 4, dest, pos);
+        dest[pos++] = '-';
+        return hex(lsb, 12, dest, pos);
+    }
+
+    private static int hex(long value, int digits, char[] dest, int off) {
+        for (int i = digits - 1; i >= 0; i--) {
+            dest[off + i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+        return off + digits;
+    }
+
+    private static final class TimeOrdered implements MessageIdGenerator {
+        @Override
+        public UUID nextId() {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final long msb = System.currentTimeMillis() << 16 | 0x7000L | random.nextInt() & 0x0FFFL;
+            final long lsb = random.nextLong() & 0x3FFFFFFFFFFFFFFFL | 0x8000000000000000L;
+            return new UUID(msb, lsb);
+        }
+
+        @Override
+        public void nextId(long[] dest) {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            dest[0] = System.currentTimeMillis() << 16 | 0x7000L | random.nextInt() & 0x0FFFL;
+            dest[1] = random.nextLong() & 0x3FFFFFFFFFFFFFFFL | 0x8000000000000000L;
+        }
+    }
+
+    private static final class Counter implements MessageIdGenerator {
+        private final ThreadLocal<long[]> state = ThreadLocal.withInitial(() -> new long[] {
+                ThreadLocalRandom.current().nextLong() & 0xFFFFFFFFFFFF0FFFL | 0x8000L,
+                ThreadLocalRandom.current().nextLong() & 0x3FFFFFFFFFFFFFFFL
+        });
+
+        @Override
+        public UUID nextId() {
+            final long[] s = state.get();
+            final long lsb = s[1]++ & 0x3FFFFFFFFFFFFFFFL | 0x8000000000000000L;
+            return new UUID(s[0], lsb);
+        }
+
+        @Override
+        public void nextId(long[] dest) {
+            final long[] s = state.get();
+            dest[0] = s[0];
+            dest[1] = s[1]++ & 0x3FFFFFFFFFFFFFFFL | 0x8000000000000000L;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.Locale;
+
+/**
+ * What an asynchronous appender does with an event when its buffer is full.
+ */
+enum OverflowPolicy {
+    /**
+     * Wait for room, slowing the logging thread down to the rate the appender can keep up with.
+     * An interrupted thread does not wait, its event is dropped.
+     */
+    BLOCK,
+    /**
+     * Drop the event and count it, never slowing the logging thread down.
+     */
+    DROP;
+
+    /**
+     * Parse a policy name as used in logback configuration.
+     * @param name {@code block} or {@code drop}
+     * @return the policy
+     * @throws IllegalArgumentException if the name is not a known policy
+     */
+    static OverflowPolicy fromString(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.encoder.Encoder;
+
+/**
+ * An asynchronous appender that encodes events on a pool of threads and hands them to its child appenders
+ * from a single worker thread, in the order they were appended.
+ * <p>
+ * Each event takes the next slot of a preallocated window of {@code <bufferSize>} slots.  {@code <encoderThreads>}
+ * threads encode the slots in parallel with the (thread safe) {@code <encoder>}, and the worker passes them on
+ * strictly slot by slot as {@link EncodedLoggingEvent}s, so children with an equally configured {@link JsonLogEncoder}
+ * write the bytes encoded here (see {@link FanOutAppender}).  With a {@link JsonLogEncoder}, the
+ * {@code sequence-number} is drawn on the logging thread, so it follows the order of each thread's events
+ * no matter which encoder thread finishes first.
+ * <p>
+ * {@code <waitStrategy>} sets how idle threads wait (default {@code block}, see {@link RingBufferAsyncAppender}),
+ * and {@code <overflowPolicy>} what happens when all slots are taken.  No thread is ever interrupted, and the
+ * child appenders are stopped once every thread is done, see {@link AbstractAsyncAppender}.
+ * <pre>
+ * &lt;appender name="ENCODE" class="com.opentable.logging.ParallelEncodingAppender"&gt;
+ *   &lt;encoder class="com.opentable.logging.JsonLogEncoder"/&gt;
+ *   &lt;encoderThreads&gt;4&lt;/encoderThreads&gt;
+ *   &lt;appender-ref ref="KAFKA"/&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+public class ParallelEncodingAppender extends AbstractAsyncAppender {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    // Set on the tail by stop(), so that no ordinal can be claimed once the threads may have decided to exit
+    private static final long CLOSED = 1L << 62;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private Encoder<ILoggingEvent> encoder;
+    private int encoderThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    // The window of slots, indexed by ordinal & mask
+    private int mask;
+    private AtomicReferenceArray<ILoggingEvent> events;
+    private long[] sequenceNumbers;
+    private AtomicReferenceArray<byte[]> encoded;
+    // The ordinal last published to and encoded in each slot
+    private AtomicLongArray published;
+    private AtomicLongArray done;
+    // The encoder threads, and the ordinal each one sleeps until it is published, or -1
+    private Thread[] encoders;
+    private AtomicLongArray waitingFor;
+
+    // Next ordinal to hand out, next one to encode, next one to write
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong encodeCursor = new AtomicLong();
+    private volatile long head;
+
+    private JsonLogEncoder jsonEncoder;
+
+    public ParallelEncodingAppender() {
+        super(WaitStrategy.BLOCK);
+    }
+
+    @Override
+    protected boolean prepare() {
+        if (encoder == null) {
+            addError("No encoder set for the appender named \"" + name + "\".");
+            return false;
+        }
+        if (bufferSize < 1 || bufferSize > 1 << 30 || encoderThreads < 1) {
+            addError("Invalid buffer size " + bufferSize + " or encoder thread count " + encoderThreads);
+            return false;
+        }
+        final int capacity = Integer.highestOneBit(bufferSize * 2 - 1);
+        mask = capacity - 1;
+        events = new AtomicReferenceArray<>(capacity);
+        sequenceNumbers = new long[capacity];
+        encoded = new AtomicReferenceArray<>(capacity);
+        published = new AtomicLongArray(capacity);
+        done = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+            done.set(i, -1);
+        }
+        jsonEncoder = encoder instanceof JsonLogEncoder ? (JsonLogEncoder) encoder : null;
+        // Encoder threads that exited may have taken ordinals past the tail, start over from it
+        final long next = claimed();
+        tail.set(next);
+        encodeCursor.set(next);
+        head = next;
+
+        encoders = new Thread[encoderThreads];
+        waitingFor = new AtomicLongArray(encoderThreads);
+        for (int i = 0; i < encoderThreads; i++) {
+            final int encoderIndex = i;
+            waitingFor.set(i, -1);
+            encoders[i] = newThread(() -> encode(encoderIndex), "ParallelEncodingAppender-Encoder-" + getName() + "-" + i);
+        }
+        return true;
+    }
+
+    /**
+     * Close the tail before the threads are told to finish, so that a producer that got past isStarted() either
+     * claimed its ordinal before the threads read the final tail, or fails to claim and drops the event.
+     */
+    @Override
+    protected void close() {
+        tail.getAndUpdate(t -> t | CLOSED);
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        event.prepareForDeferredProcessing();
+        long ordinal = claim();
+        for (int attempt = 0; ordinal < 0; attempt++) {
+            if (overflowPolicy == OverflowPolicy.DROP || !waitForRoom(attempt)) {
+                dropped.increment();
+                return;
+            }
+            ordinal = claim();
+        }
+        final int index = (int) ordinal & mask;
+        events.set(index, event);
+        if (jsonEncoder != null) {
+            sequenceNumbers[index] = jsonEncoder.nextSequenceNumber();
+        }
+        published.set(index, ordinal);
+        // Waiters are keyed by ordinal rather than slot, as encoders may wait for several ordinals of one slot
+        for (int i = 0; i < encoders.length; i++) {
+            if (waitingFor.get(i) == ordinal) {
+                LockSupport.unpark(encoders[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the ordinal of a free slot, or -1 if the window is full or the appender is stopping
+     */
+    private long claim() {
+        long ordinal = tail.get();
+        while ((ordinal & CLOSED) == 0 && ordinal - head <= mask) {
+            if (tail.compareAndSet(ordinal, ordinal + 1)) {
+                return ordinal;
+            }
+            ordinal = tail.get();
+        }
+        return -1;
+    }
+
+    private void encode(int encoderIndex) {
+        while (true) {
+            final long ordinal = encodeCursor.getAndIncrement();
+            final int index = (int) ordinal & mask;
+            if (!awaitPublished(encoderIndex, index, ordinal)) {
+                return;
+            }
+            final ILoggingEvent event = events.get(index);
+            byte[] bytes;
+            try {
+                bytes = jsonEncoder != null ? jsonEncoder.encode(event, sequenceNumbers[index]) : encoder.encode(event);
+            } catch (RuntimeException e) {
+                addError("Encoding an event failed in the appender named \"" + name + "\".", e);
+                bytes = null;
+            }
+            encoded.set(index, bytes);
+            done.set(index, ordinal);
+            wakeWorker();
+        }
+    }
+
+    /**
+     * Wait until an event is published to a slot.
+     * @return false if the appender is stopping and no event will ever take the ordinal, or the rest are dropped
+     */
+    private boolean awaitPublished(int encoderIndex, int index, long ordinal) {
+        final WaitStrategy waitStrategy = getWaitStrategy();
+        for (int attempt = 0; published.get(index) != ordinal; attempt++) {
+            if (!isRunning() && (isAbandoned() || ordinal >= claimed())) {
+                return false;
+            }
+            if (Thread.interrupted()) {
+                addWarn("Thread " + Thread.currentThread().getName() + " was interrupted, cleared the interrupt flag.");
+            }
+            if (isRunning() && waitStrategy.blocks(attempt)) {
+                waitingFor.set(encoderIndex, ordinal);
+                if (isRunning() && published.get(index) != ordinal) {
+                    LockSupport.park(this);
+                }
+                waitingFor.set(encoderIndex, -1);
+            } else {
+                waitStrategy.idle(attempt);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected ILoggingEvent poll() {
+        final long ordinal = head;
+        final int index = (int) ordinal & mask;
+        if (done.get(index) != ordinal) {
+            return null;
+        }
+        final ILoggingEvent event = events.get(index);
+        final byte[] bytes = encoded.get(index);
+        events.set(index, null);
+        encoded.set(index, null);
+        head = ordinal + 1;
+        // An event that failed to encode is passed on as is, for the children to try their own encoders
+        return bytes == null || bytes.length == 0 ? event : new EncodedLoggingEvent(event, bytes, encoder);
+    }
+
+    @Override
+    protected boolean hasNext() {
+        final long ordinal = head;
+        return done.get((int) ordinal & mask) == ordinal;
+    }
+
+    @Override
+    protected boolean isEmpty() {
+        return head == claimed();
+    }
+
+    public Encoder<ILoggingEvent> getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * @param encoder the encoder, which is called from several threads at once
+     */
+    public void setEncoder(Encoder<ILoggingEvent> encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * @param encoderThreads the number of threads encoding in parallel
+     */
+    public void setEncoderThreads(int encoderThreads) {
+        this.encoderThreads = encoderThreads;
+    }
+
+    public int getEncoderThreads() {
+        return encoderThreads;
+    }
+
+    /**
+     * @param bufferSize the number of events that can be queued or in flight, rounded up to a power of two
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param overflowPolicy {@code block} or {@code drop}
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = OverflowPolicy.fromString(overflowPolicy);
+    }
+
+    /**
+     * @return the number of events dropped because all slots were taken
+     */
+    public long getDroppedEvents() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the approximate number of events queued or being encoded
+     */
+    @Override
+    public int getQueuedEvents() {
+        return (int) Math.max(0, claimed() - head);
+    }
+
+    /**
+     * @return the next ordinal to hand out, whether or not the tail is closed
+     */
+    private long claimed() {
+        return tail.get() & ~CLOSED;
+    }
+}
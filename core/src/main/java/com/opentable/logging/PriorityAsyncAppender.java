@@ -0,0 +1,328 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * An asynchronous appender with a separate lane per level, which sheds {@code DEBUG} and {@code INFO} events
+ * under pressure while {@code WARN} and {@code ERROR} events get through.
+ * <p>
+ * Each lane is a preallocated ring (see {@link RingBufferAsyncAppender}) with its own capacity, and the worker
+ * always appends from the most severe non-empty lane first, so events keep their order within a level but an
+ * error never waits behind queued debug noise.  When the {@code ERROR} or {@code WARN} lane is full the logging
+ * thread waits for room; when the {@code INFO} or {@code DEBUG} lane (which also takes {@code TRACE}) is full the
+ * event is dropped and counted.
+ * <p>
+ * Every {@code <summaryInterval>} milliseconds, if any events were dropped since the last summary, the worker
+ * appends a {@code WARN} event from this class with the number of dropped events per level, also as
+ * {@code dropped-<level>} MDC fields.  A last summary is appended on {@link #stop()}.
+ * <pre>
+ * &lt;appender name="ASYNC" class="com.opentable.logging.PriorityAsyncAppender"&gt;
+ *   &lt;debugBufferSize&gt;4096&lt;/debugBufferSize&gt;
+ *   &lt;appender-ref ref="KAFKA"/&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+public class PriorityAsyncAppender extends AbstractAsyncAppender {
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_SHEDDABLE_BUFFER_SIZE = 4096;
+    public static final int DEFAULT_SUMMARY_INTERVAL = 30_000;
+
+    // Lanes, most severe first
+    private static final int ERROR = 0;
+    private static final int WARN = 1;
+    private static final int INFO = 2;
+    private static final int DEBUG = 3;
+    private static final String[] LANE_NAMES = { "ERROR", "WARN", "INFO", "DEBUG" };
+
+    private final int[] bufferSizes = {
+        DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_SIZE, DEFAULT_SHEDDABLE_BUFFER_SIZE, DEFAULT_SHEDDABLE_BUFFER_SIZE
+    };
+    private final LongAdder[] dropped = { new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder() };
+    // Drop counts as of the last summary, only touched by the worker
+    private final long[] reported = new long[LANE_NAMES.length];
+
+    private int summaryInterval = DEFAULT_SUMMARY_INTERVAL;
+    private boolean includeCallerData;
+
+    private RingBuffer<ILoggingEvent>[] lanes;
+    // When the next summary is due, in System.nanoTime(), only touched by the worker
+    private long nextSummary;
+
+    public PriorityAsyncAppender() {
+        super(WaitStrategy.PARK);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected boolean prepare() {
+        final RingBuffer<ILoggingEvent>[] newLanes = (RingBuffer<ILoggingEvent>[]) new RingBuffer<?>[LANE_NAMES.length];
+        for (int lane = 0; lane < newLanes.length; lane++) {
+            try {
+                newLanes[lane] = new RingBuffer<>(bufferSizes[lane]);
+            } catch (IllegalArgumentException e) {
+                addError("Invalid " + LANE_NAMES[lane] + " buffer size " + bufferSizes[lane], e);
+                return false;
+            }
+        }
+        lanes = newLanes;
+        nextSummary = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(summaryInterval);
+        return true;
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        event.prepareForDeferredProcessing();
+        if (includeCallerData) {
+            event.getCallerData();
+        }
+        final int lane = lane(event.getLevel());
+        for (int attempt = 0; !lanes[lane].offer(event); attempt++) {
+            // Lanes that are shed never wait for room
+            if (lane > WARN || !waitForRoom(attempt)) {
+                dropped[lane].increment();
+                return;
+            }
+        }
+        wakeWorker();
+    }
+
+    private static int lane(Level level) {
+        if (level == null) {
+            return INFO;
+        }
+        if (level.isGreaterOrEqual(Level.ERROR)) {
+            return ERROR;
+        }
+        if (level.isGreaterOrEqual(Level.WARN)) {
+            return WARN;
+        }
+        return level.isGreaterOrEqual(Level.INFO) ? INFO : DEBUG;
+    }
+
+    /**
+     * Append a summary when one is due, and sleep no longer than until the next one.
+     */
+    @Override
+    protected long beforePoll() {
+        if (summaryInterval <= 0) {
+            return 0;
+        }
+        final long now = System.nanoTime();
+        if (now - nextSummary >= 0) {
+            summarize();
+            nextSummary = now + TimeUnit.MILLISECONDS.toNanos(summaryInterval);
+        }
+        return nextSummary - now;
+    }
+
+    @Override
+    protected ILoggingEvent poll() {
+        for (RingBuffer<ILoggingEvent> lane : lanes) {
+            final ILoggingEvent event = lane.poll();
+            if (event != null) {
+                return event;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected boolean hasNext() {
+        for (RingBuffer<ILoggingEvent> lane : lanes) {
+            if (lane.hasNext()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean isEmpty() {
+        for (RingBuffer<ILoggingEvent> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Close the lanes before the worker is told to finish, so that an event either gets a slot the worker
+     * still drains, or is dropped and counted.
+     */
+    @Override
+    protected void close() {
+        for (RingBuffer<ILoggingEvent> lane : lanes) {
+            lane.close();
+        }
+    }
+
+    @Override
+    protected void drained() {
+        summarize();
+    }
+
+    /**
+     * Append a summary of the events dropped since the last one, if there were any.
+     */
+    private void summarize() {
+        final long[] counts = new long[LANE_NAMES.length];
+        long total = 0;
+        for (int lane = 0; lane < counts.length; lane++) {
+            final long sum = dropped[lane].sum();
+            counts[lane] = sum - reported[lane];
+            reported[lane] = sum;
+            total += counts[lane];
+        }
+        if (total == 0) {
+            return;
+        }
+        final Map<String, String> mdc = new HashMap<>();
+        for (int lane = 0; lane < counts.length; lane++) {
+            mdc.put("dropped-" + LANE_NAMES[lane].toLowerCase(Locale.ROOT), Long.toString(counts[lane]));
+        }
+        final String message = "Appender {} dropped {} events: {} ERROR, {} WARN, {} INFO, {} DEBUG/TRACE";
+        final Object[] arguments = { getName(), total, counts[ERROR], counts[WARN], counts[INFO], counts[DEBUG] };
+        final LoggingEvent summary;
+        if (getContext() instanceof LoggerContext) {
+            // A regular event of this class's logger, so encoders see the context and its properties
+            final Logger logger = ((LoggerContext) getContext()).getLogger(PriorityAsyncAppender.class);
+            summary = new LoggingEvent(PriorityAsyncAppender.class.getName(), logger, Level.WARN, message, null, arguments);
+        } else {
+            summary = new LoggingEvent();
+            summary.setLevel(Level.WARN);
+            summary.setLoggerName(PriorityAsyncAppender.class.getName());
+            summary.setTimeStamp(System.currentTimeMillis());
+            summary.setMessage(message);
+            summary.setArgumentArray(arguments);
+        }
+        summary.setThreadName(Thread.currentThread().getName());
+        summary.setMDCPropertyMap(mdc);
+        deliver(summary);
+    }
+
+    /**
+     * @param bufferSize the number of {@code ERROR} events the lane holds, rounded up to a power of two
+     */
+    public void setErrorBufferSize(int bufferSize) {
+        bufferSizes[ERROR] = bufferSize;
+    }
+
+    public int getErrorBufferSize() {
+        return bufferSizes[ERROR];
+    }
+
+    /**
+     * @param bufferSize the number of {@code WARN} events the lane holds, rounded up to a power of two
+     */
+    public void setWarnBufferSize(int bufferSize) {
+        bufferSizes[WARN] = bufferSize;
+    }
+
+    public int getWarnBufferSize() {
+        return bufferSizes[WARN];
+    }
+
+    /**
+     * @param bufferSize the number of {@code INFO} events the lane holds, rounded up to a power of two
+     */
+    public void setInfoBufferSize(int bufferSize) {
+        bufferSizes[INFO] = bufferSize;
+    }
+
+    public int getInfoBufferSize() {
+        return bufferSizes[INFO];
+    }
+
+    /**
+     * @param bufferSize the number of {@code DEBUG} and {@code TRACE} events the lane holds, rounded up to a power of two
+     */
+    public void setDebugBufferSize(int bufferSize) {
+        bufferSizes[DEBUG] = bufferSize;
+    }
+
+    public int getDebugBufferSize() {
+        return bufferSizes[DEBUG];
+    }
+
+    /**
+     * @param summaryInterval how often to append a summary of dropped events, in milliseconds, or 0 for only on stop
+     */
+    public void setSummaryInterval(int summaryInterval) {
+        this.summaryInterval = summaryInterval;
+    }
+
+    public int getSummaryInterval() {
+        return summaryInterval;
+    }
+
+    /**
+     * @param includeCallerData whether to extract caller data on the logging thread, which is expensive
+     */
+    public void setIncludeCallerData(boolean includeCallerData) {
+        this.includeCallerData = includeCallerData;
+    }
+
+    public boolean isIncludeCallerData() {
+        return includeCallerData;
+    }
+
+    /**
+     * @return the number of events dropped because their lane was full
+     */
+    public long getDroppedEvents() {
+        long total = 0;
+        for (LongAdder count : dropped) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @param level a level name, {@code TRACE} counts with {@code DEBUG}
+     * @return the number of events of the level dropped because their lane was full
+     * @throws IllegalArgumentException if the level is not known
+     */
+    public long getDroppedEvents(String level) {
+        final Level parsed = Level.toLevel(level, null);
+        if (parsed == null) {
+            throw new IllegalArgumentException("Unknown level " + level);
+        }
+        return dropped[lane(parsed)].sum();
+    }
+
+    @Override
+    public int getQueuedEvents() {
+        if (lanes == null) {
+            return 0;
+        }
+        int total = 0;
+        for (RingBuffer<ILoggingEvent> lane : lanes) {
+            total += lane.size();
+        }
+        return total;
+    }
+}
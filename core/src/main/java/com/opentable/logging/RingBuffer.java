@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, preallocated multi-producer single-consumer ring.
+ * <p>
+ * Producers claim a slot with one CAS on the tail and publish it by advancing the slot's sequence, in the
+ * style of Vyukov's bounded queue; there are no locks and nothing is allocated per element.  Only one thread
+ * may call {@link #poll()}.  Once {@link #close() closed}, offers fail, so a consumer that found the ring empty
+ * after closing it has seen every element.
+ * @param <E> the element type
+ */
+final class RingBuffer<E> {
+    // Set on the tail by close(), so that no slot can be claimed any more
+    private static final long CLOSED = 1L << 62;
+
+    private final AtomicReferenceArray<E> slots;
+    // For each slot, the position a producer may claim it at, or that position + 1 once it is published
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Written by the consumer only
+    private volatile long head;
+
+    /**
+     * @param minCapacity the least number of elements the ring must hold, rounded up to a power of two
+     */
+    RingBuffer(int minCapacity) {
+        if (minCapacity < 1 || minCapacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30, was " + minCapacity);
+        }
+        final int capacity = Integer.highestOneBit(minCapacity * 2 - 1);
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Add an element if there is room.  Safe to call from any number of threads.
+     * @param element the element
+     * @return false if the ring is full or closed
+     */
+    boolean offer(E element) {
+        long pos = tail.get();
+        while (true) {
+            if ((pos & CLOSED) != 0) {
+                return false;
+            }
+            final int index = (int) pos & mask;
+            final long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.lazySet(index, element);
+                    // A full write, so that a consumer checking for work before it sleeps cannot miss it
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Take the oldest element.  Must only be called from the consumer thread.
+     * @return the element, or null if the ring is empty
+     */
+    E poll() {
+        final long pos = head;
+        final int index = (int) pos & mask;
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        final E element = slots.get(index);
+        slots.lazySet(index, null);
+        sequences.lazySet(index, pos + mask + 1);
+        head = pos + 1;
+        return element;
+    }
+
+    /**
+     * Make all further offers fail.  Offers that already claimed a slot still publish it.
+     */
+    void close() {
+        tail.getAndUpdate(t -> t | CLOSED);
+    }
+
+    /**
+     * @return true if the oldest element is published, so that {@link #poll()} returns it
+     */
+    boolean hasNext() {
+        final long pos = head;
+        return sequences.get((int) pos & mask) == pos + 1;
+    }
+
+    /**
+     * @return true if no element is published or about to be, and not yet taken
+     */
+    boolean isEmpty() {
+        return head == claimed();
+    }
+
+    /**
+     * @return the approximate number of elements in the ring
+     */
+    int size() {
+        return (int) Math.max(0, Math.min(capacity(), claimed() - head));
+    }
+
+    /**
+     * @return the position of the next slot to claim, whether or not the ring is closed
+     */
+    private long claimed() {
+        return tail.get() & ~CLOSED;
+    }
+
+    /**
+     * @return the number of elements the ring holds
+     */
+    int capacity() {
+        return mask + 1;
+    }
+}
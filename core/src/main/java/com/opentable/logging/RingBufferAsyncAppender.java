@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * An asynchronous appender that hands events to a worker thread through a preallocated lock-free ring,
+ * instead of the single-lock queue of Logback's {@code AsyncAppender}.
+ * <p>
+ * Events are prepared for deferred processing on the logging thread and published without allocating.
+ * {@code <waitStrategy>} sets how the worker waits for events ({@code spin}, {@code yield}, {@code park}, the
+ * default, or {@code block}), and {@code <overflowPolicy>} what happens when the ring is full: {@code block},
+ * the default, waits for room and {@code drop} drops and counts the event.
+ * <p>
+ * The worker is never interrupted.  On {@link #stop()} it drains the ring for up to {@code <maxFlushTime>}
+ * milliseconds before the child appenders are stopped, see {@link AbstractAsyncAppender}.
+ * <pre>
+ * &lt;appender name="ASYNC" class="com.opentable.logging.RingBufferAsyncAppender"&gt;
+ *   &lt;bufferSize&gt;8192&lt;/bufferSize&gt;
+ *   &lt;appender-ref ref="KAFKA"/&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+public class RingBufferAsyncAppender extends AbstractAsyncAppender {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private boolean includeCallerData;
+
+    private RingBuffer<ILoggingEvent> ring;
+
+    public RingBufferAsyncAppender() {
+        super(WaitStrategy.PARK);
+    }
+
+    @Override
+    protected boolean prepare() {
+        try {
+            ring = new RingBuffer<>(bufferSize);
+        } catch (IllegalArgumentException e) {
+            addError("Invalid buffer size " + bufferSize, e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        event.prepareForDeferredProcessing();
+        if (includeCallerData) {
+            event.getCallerData();
+        }
+        for (int attempt = 0; !ring.offer(event); attempt++) {
+            if (overflowPolicy == OverflowPolicy.DROP || !waitForRoom(attempt)) {
+                dropped.increment();
+                return;
+            }
+        }
+        wakeWorker();
+    }
+
+    @Override
+    protected ILoggingEvent poll() {
+        return ring.poll();
+    }
+
+    @Override
+    protected boolean hasNext() {
+        return ring.hasNext();
+    }
+
+    @Override
+    protected boolean isEmpty() {
+        return ring.isEmpty();
+    }
+
+    /**
+     * Close the ring before the worker is told to finish, so that an event either gets a slot the worker
+     * still drains, or is dropped and counted.
+     */
+    @Override
+    protected void close() {
+        ring.close();
+    }
+
+    /**
+     * @param bufferSize the number of events the ring holds, rounded up to a power of two
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param overflowPolicy {@code block} or {@code drop}
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = OverflowPolicy.fromString(overflowPolicy);
+    }
+
+    /**
+     * @param includeCallerData whether to extract caller data on the logging thread, which is expensive
+     */
+    public void setIncludeCallerData(boolean includeCallerData) {
+        this.includeCallerData = includeCallerData;
+    }
+
+    public boolean isIncludeCallerData() {
+        return includeCallerData;
+    }
+
+    /**
+     * @return the number of events dropped because the ring was full
+     */
+    public long getDroppedEvents() {
+        return dropped.sum();
+    }
+
+    @Override
+    public int getQueuedEvents() {
+        return ring == null ? 0 : ring.size();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How encoders allocate the {@code sequence-number} tie breaker.  All modes draw from the same counter,
+ * so numbers stay unique across encoders and mode changes.
+ */
+enum SequenceAllocation {
+    /**
+     * Every event increments one shared counter, so numbers follow the order events were encoded in.
+     * Under heavy multi-core load that counter's cache line becomes a hot spot.
+     */
+    GLOBAL {
+        @Override
+        long next() {
+            return Counter.COUNTER.incrementAndGet();
+        }
+    },
+    /**
+     * Each thread leases a block of numbers from the shared counter and hands them out locally.
+     * Numbers are unique and increase monotonically within a thread, so they still break ties between
+     * events of one thread with the same timestamp; across threads they say nothing about encoding order.
+     */
+    LEASED {
+        @Override
+        long next() {
+            final long[] lease = Counter.LEASE.get();
+            if (lease[0] == lease[1]) {
+                lease[0] = Counter.COUNTER.getAndAdd(Counter.BLOCK_SIZE) + 1;
+                lease[1] = lease[0] + Counter.BLOCK_SIZE;
+            }
+            return lease[0]++;
+        }
+    };
+
+    /**
+     * @return the next sequence number
+     */
+    abstract long next();
+
+    /**
+     * Parse a mode name as used in logback configuration.
+     * @param name {@code global} or {@code leased}
+     * @return the mode
+     * @throws IllegalArgumentException if the name is not a known mode
+     */
+    static SequenceAllocation fromString(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    private static final class Counter {
+        static final int BLOCK_SIZE = 1024;
+        static final AtomicLong COUNTER = new AtomicLong(0);
+        // The next number to hand out and the end of the leased block, exclusive
+        static final ThreadLocal<long[]> LEASE = ThreadLocal.withInitial(() -> new long[2]);
+    }
+}
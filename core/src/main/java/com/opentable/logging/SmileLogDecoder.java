@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Turns records written by {@link SmileLogEncoder} back into JSON, for debugging.
+ * <p>
+ * From the command line, each argument is a file holding one record (as dumped from Kafka), and standard input
+ * is read as a single record if there are none.  Each record is printed as one line of JSON.
+ */
+public final class SmileLogDecoder {
+    private static final ObjectMapper SMILE = new ObjectMapper(SmileLogEncoder.newFactory());
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private SmileLogDecoder() { }
+
+    /**
+     * Decode a record.
+     * @param record the Smile record
+     * @return the event as a tree
+     * @throws IOException if the record is not valid Smile
+     */
+    public static JsonNode decode(byte[] record) throws IOException {
+        return SMILE.readTree(record);
+    }
+
+    /**
+     * Decode a record to a line of JSON.
+     * @param record the Smile record
+     * @return the event as JSON text, without a line terminator
+     * @throws IOException if the record is not valid Smile
+     */
+    public static String toJson(byte[] record) throws IOException {
+        return JSON.writeValueAsString(decode(record));
+    }
+
+    public static void main(String[] args) throws IOException {
+        final OutputStream out = System.out;
+        if (args.length == 0) {
+            print(out, System.in.readAllBytes());
+        }
+        for (String file : args) {
+            print(out, Files.readAllBytes(Paths.get(file)));
+        }
+        out.flush();
+    }
+
+    private static void print(OutputStream out, byte[] record) throws IOException {
+        out.write(toJson(record).getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+}
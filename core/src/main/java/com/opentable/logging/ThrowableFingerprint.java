@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.Objects;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+/**
+ * A structural fingerprint of an exception: the class names and stack frames of the exception, its causes
+ * and its suppressed exceptions, but not their messages.  The same failure logged over and over gets the
+ * same fingerprint even when the messages carry ids or timestamps.
+ */
+public final class ThrowableFingerprint {
+    // Cause chains are walked to this depth at most, in case a proxy ever reports a cycle.
+    private static final int MAX_DEPTH = 64;
+
+    private static final long PRIME = 0x100000001B3L;
+    private static final long CAUSE = 0x43415553L;
+    private static final long SUPPRESSED = 0x53555050L;
+
+    private ThrowableFingerprint() { }
+
+    /**
+     * Compute the fingerprint of an exception.
+     * @param throwable the exception
+     * @return the fingerprint
+     */
+    public static long of(IThrowableProxy throwable) {
+        return finish(hash(0xCBF29CE484222325L, throwable, 0));
+    }
+
+    /**
+     * @param fingerprint a fingerprint
+     * @return the fingerprint as 16 hex digits, as written to the {@code exception-fingerprint} field
+     */
+    public static String toHex(long fingerprint) {
+        final char[] hex = new char[16];
+        long value = fingerprint;
+        for (int i = hex.length - 1; i >= 0; i--) {
+            hex[i] = Character.forDigit((int) (value & 0xF), 16);
+            value >>>= 4;
+        }
+        return new String(hex);
+    }
+
+    private static long hash(long h, IThrowableProxy throwable, int depth) {
+        for (IThrowableProxy t = throwable; t != null && depth < MAX_DEPTH; t = t.getCause(), depth++) {
+            h = mix(h, CAUSE);
+            h = mix(h, t.getClassName().hashCode());
+            final StackTraceElementProxy[] frames = t.getStackTraceElementProxyArray();
+            h = mix(h, frames.length);
+            for (StackTraceElementProxy frame : frames) {
+                h = mix(h, frame.getStackTraceElement());
+            }
+            h = mix(h, t.getCommonFrames());
+            final IThrowableProxy[] suppressed = t.getSuppressed();
+            if (suppressed != null) {
+                for (IThrowableProxy s : suppressed) {
+                    h = mix(h, SUPPRESSED);
+                    h = hash(h, s, depth + 1);
+                }
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Mix in a frame.  {@link StackTraceElement#hashCode()} also covers the class loader and module, which
+     * differ between deployments of the same code, so only the class, method, file and line are used.
+     */
+    private static long mix(long h, StackTraceElement frame) {
+        h = mix(h, frame.getClassName().hashCode());
+        h = mix(h, frame.getMethodName().hashCode());
+        h = mix(h, Objects.hashCode(frame.getFileName()));
+        return mix(h, frame.getLineNumber());
+    }
+
+    private static long mix(long h, long value) {
+        return (h ^ value) * PRIME;
+    }
+
+    private static long finish(long h) {
+        // FNV alone mixes the high bits poorly, finish with the murmur3 avalanche.
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ h >>> 33;
+    }
+}
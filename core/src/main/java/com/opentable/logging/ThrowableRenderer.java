@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+
+/**
+ * Renders the {@code exception} field of a log message.
+ */
+@FunctionalInterface
+public interface ThrowableRenderer {
+    /**
+     * Render an exception and its stack trace.
+     * @param throwable the exception to render
+     * @return the rendered text
+     */
+    String render(IThrowableProxy throwable);
+
+    /**
+     * Render an exception whose {@link ThrowableFingerprint} is already known.  Caching renderers
+     * use the fingerprint to look up earlier renderings, the default simply ignores it.
+     * @param throwable the exception to render
+     * @param fingerprint the fingerprint of the exception
+     * @return the rendered text
+     */
+    default String render(IThrowableProxy throwable, long fingerprint) {
+        return render(throwable);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Renders timestamps exactly like {@link DateTimeFormatter#ISO_INSTANT}, but only formats each second once.
+ * <p>
+ * Most events logged within the same second share everything up to the fraction, so the last rendered
+ * second is cached and only the fractional digits are patched in.  Like {@code ISO_INSTANT}, the fraction
+ * is omitted when zero and otherwise printed with 3, 6 or 9 digits, whichever is enough.
+ */
+final class TimestampCache {
+    static final TimestampCache INSTANCE = new TimestampCache();
+
+    /** Longest possible rendering: a signed ten digit year, the rest of the date and time, nine fraction digits and the zone. */
+    static final int MAX_LENGTH = 40;
+
+    private volatile Second last = new Second(Long.MIN_VALUE, new char[0]);
+
+    /**
+     * Format epoch milliseconds.
+     * @param epochMilli the timestamp
+     * @return the ISO-8601 rendering
+     */
+    String format(long epochMilli) {
+        final char[] buf = new char[MAX_LENGTH];
+        final int len = render(Math.floorDiv(epochMilli, 1000L), (int) Math.floorMod(epochMilli, 1000L) * 1_000_000, buf, 0);
+        return new String(buf, 0, len);
+    }
+
+    /**
+     * Write epoch milliseconds as a JSON string value.
+     * @param gen the generator to write to
+     * @param epochMilli the timestamp
+     * @throws IOException if the generator fails
+     */
+    void write(JsonGenerator gen, long epochMilli) throws IOException {
+        write(gen, Math.floorDiv(epochMilli, 1000L), (int) Math.floorMod(epochMilli, 1000L) * 1_000_000);
+    }
+
+    /**
+     * Write an instant as a JSON string value.
+     * @param gen the generator to write to
+     * @param epochSecond the seconds part of the timestamp
+     * @param nanos the nanoseconds within the second
+     * @throws IOException if the generator fails
+     */
+    void write(JsonGenerator gen, long epochSecond, int nanos) throws IOException {
+        write(gen, epochSecond, nanos, new char[MAX_LENGTH]);
+    }
+
+    /**
+     * Write an instant as a JSON string value, rendering it in a caller supplied array.
+     * @param gen the generator to write to
+     * @param epochSecond the seconds part of the timestamp
+     * @param nanos the nanoseconds within the second
+     * @param scratch an array of at least {@link #MAX_LENGTH} chars
+     * @throws IOException if the generator fails
+     */
+    void write(JsonGenerator gen, long epochSecond, int nanos, char[] scratch) throws IOException {
+        gen.writeString(scratch, 0, render(epochSecond, nanos, scratch, 0));
+    }
+
+    /**
+     * Render a timestamp into a char array.
+     * @param epochSecond the seconds part of the timestamp
+     * @param nanos the nanoseconds within the second
+     * @param dest the array to render into, with at least {@link #MAX_LENGTH} chars of room after {@code off}
+     * @param off where to start writing
+     * @return the offset just after the rendered timestamp
+     */
+    int render(long epochSecond, int nanos, char[] dest, int off) {
+        Second second = last;
+        if (second.epochSecond != epochSecond) {
+            second = new Second(epochSecond, prefix(epochSecond));
+            last = second;
+        }
+        final char[] prefix = second.prefix;
+        System.arraycopy(prefix, 0, dest, off, prefix.length);
+        int pos = off + prefix.length;
+        if (nanos != 0) {
+            int digits = 9;
+            int fraction = nanos;
+            while (fraction % 1000 == 0) {
+                fraction /= 1000;
+                digits -= 3;
+            }
+            dest[pos++] = '.';
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                dest[i] = (char) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            pos += digits;
+        }
+        dest[pos++] = 'Z';
+        return pos;
+    }
+
+    private static char[] prefix(long epochSecond) {
+        final String formatted = DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochSecond(epochSecond));
+        // Drop the trailing 'Z', it goes after the fraction
+        return formatted.substring(0, formatted.length() - 1).toCharArray();
+    }
+
+    private static final class Second {
+        final long epochSecond;
+        final char[] prefix;
+
+        Second(long epochSecond, char[] prefix) {
+            this.epochSecond = epochSecond;
+            this.prefix = prefix;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeCreator;
+
+/**
+ * How the encoder writes the {@code @timestamp} field.
+ */
+public enum TimestampFormat {
+    /** An ISO-8601 string, e.g. {@code 2009-02-13T23:31:30.123Z}.  This is the default. */
+    ISO(0) {
+        @Override
+        void write(JsonGenerator gen, long epochSecond, int nanos, char[] scratch) throws IOException {
+            TimestampCache.INSTANCE.write(gen, epochSecond, nanos, scratch == null ? new char[TimestampCache.MAX_LENGTH] : scratch);
+        }
+
+        @Override
+        JsonNode toNode(JsonNodeCreator nodes, long epochSecond, int nanos) {
+            final char[] chars = new char[TimestampCache.MAX_LENGTH];
+            return nodes.textNode(new String(chars, 0, TimestampCache.INSTANCE.render(epochSecond, nanos, chars, 0)));
+        }
+    },
+    /** A number of milliseconds since the epoch. */
+    EPOCH_MILLIS(1000),
+    /** A number of microseconds since the epoch. */
+    EPOCH_MICROS(1_000_000);
+
+    // For the numeric formats
+    private final long unitsPerSecond;
+
+    TimestampFormat(long unitsPerSecond) {
+        this.unitsPerSecond = unitsPerSecond;
+    }
+
+    /**
+     * Write a timestamp value.
+     * @param gen the generator to write to
+     * @param epochSecond the seconds part of the timestamp
+     * @param nanos the nanoseconds within the second
+     * @throws IOException if the generator fails
+     */
+    void write(JsonGenerator gen, long epochSecond, int nanos) throws IOException {
+        write(gen, epochSecond, nanos, null);
+    }
+
+    /**
+     * Write a timestamp value, rendering text into a caller supplied array.
+     * @param gen the generator to write to
+     * @param epochSecond the seconds part of the timestamp
+     * @param nanos the nanoseconds within the second
+     * @param scratch an array of at least {@link TimestampCache#MAX_LENGTH} chars, or null to allocate one if needed
+     * @throws IOException if the generator fails
+     */
+    void write(JsonGenerator gen, long epochSecond, int nanos, char[] scratch) throws IOException {
+        gen.writeNumber(toEpoch(epochSecond, nanos));
+    }
+
+    /**
+     * Create a timestamp value for a line built as a tree.
+     * @param nodes creates the node
+     * @param epochSecond the seconds part of the timestamp
+     * @param nanos the nanoseconds within the second
+     * @return the value, written the same as {@link #write(JsonGenerator, long, int)} would
+     */
+    JsonNode toNode(JsonNodeCreator nodes, long epochSecond, int nanos) {
+        return nodes.numberNode(toEpoch(epochSecond, nanos));
+    }
+
+    private long toEpoch(long epochSecond, int nanos) {
+        return epochSecond * unitsPerSecond + nanos / (1_000_000_000 / unitsPerSecond);
+    }
+
+    /**
+     * @return the name as used in logback configuration
+     */
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+
+    /**
+     * Parse a format name as used in logback configuration, e.g. {@code iso} or {@code epoch-millis}.
+     * @param name the format name
+     * @return the format
+     * @throws IllegalArgumentException if the name is not a known format
+     */
+    public static TimestampFormat fromString(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
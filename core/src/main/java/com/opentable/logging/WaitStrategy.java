@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How the {@link RingBufferAsyncAppender} worker waits for events, trading latency against idle CPU.
+ * Producers waiting for room in a full ring always back off like {@link #PARK}.
+ */
+enum WaitStrategy {
+    /**
+     * Busy-spin.  Lowest latency, but keeps a core busy while idle.
+     */
+    SPIN {
+        @Override
+        void idle(int attempt) {
+            Thread.onSpinWait();
+        }
+    },
+    /**
+     * Spin briefly, then yield the core between checks.
+     */
+    YIELD {
+        @Override
+        void idle(int attempt) {
+            if (attempt < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    },
+    /**
+     * Spin and yield briefly, then sleep for a short fixed time between checks.
+     */
+    PARK {
+        @Override
+        void idle(int attempt) {
+            if (attempt < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else if (attempt < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    },
+    /**
+     * Like {@link #PARK}, but the worker then sleeps until a producer wakes it.  Uses no CPU while idle,
+     * at the price of an unpark call on the first event after a quiet period.
+     */
+    BLOCK {
+        @Override
+        void idle(int attempt) {
+            PARK.idle(attempt);
+        }
+
+        @Override
+        boolean blocks(int attempt) {
+            return attempt >= SPIN_TRIES + YIELD_TRIES;
+        }
+    };
+
+    static final int SPIN_TRIES = 100;
+    static final int YIELD_TRIES = 100;
+    static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * Wait a little before checking again.
+     * @param attempt how many times the caller has already waited for the same thing
+     */
+    abstract void idle(int attempt);
+
+    /**
+     * @param attempt how many times the worker has already waited for the next event
+     * @return true if the worker should sleep until it is woken
+     */
+    boolean blocks(int attempt) {
+        return false;
+    }
+
+    /**
+     * Parse a strategy name as used in logback configuration.
+     * @param name {@code spin}, {@code yield}, {@code park} or {@code block}
+     * @return the strategy
+     * @throws IllegalArgumentException if the name is not a known strategy
+     */
+    static WaitStrategy fromString(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.spi.ThrowableProxy;
+
+public class CompactThrowableRendererTest {
+    private static final StackTraceElement[] SHARED = {
+            frame("org.springframework.web.Dispatcher", "dispatch", "Dispatcher.java", 10),
+            frame("org.springframework.web.Filter", "doFilter", "Filter.java", 20),
+            frame("org.eclipse.jetty.server.Server", "handle", "Server.java", 30),
+            frame("java.lang.Thread", "run", "Thread.java", 40),
+    };
+
+    @Test
+    public void foldsAndDedupes() {
+        final IllegalStateException cause = exception(new IllegalStateException("root"),
+                frame("com.example.Dao", "query", "Dao.java", 5),
+                frame("com.example.Dao$Inner", "run", "Dao.java", 6),
+                frame("com.example.Generated", "call", null, -1));
+        final RuntimeException top = exception(new RuntimeException("wrapped", cause),
+                frame("com.example.Service", "call", "Service.java", 7),
+                frame("jdk.internal.reflect.Method", "invoke", "Method.java", 1),
+                frame("jdk.internal.reflect.Delegate", "invoke", "Delegate.java", 2),
+                frame("com.example.Controller", "get", "Other.java", 8));
+
+        assertEquals("java.lang.RuntimeException: wrapped\n"
+                + "\tat com.example.Service.call:7\n"
+                + "\t... 2 frames in jdk.internal.reflect\n"
+                + "\tat com.example.Controller.get(Other.java:8)\n"
+                + "\t... 2 frames in org.springframework\n"
+                + "\tat org.eclipse.jetty.server.Server.handle:30\n"
+                + "\tat java.lang.Thread.run:40\n"
+                + "Caused by: java.lang.IllegalStateException: root\n"
+                + "\tat com.example.Dao.query:5\n"
+                + "\tat com.example.Dao$Inner.run:6\n"
+                + "\tat com.example.Generated.call(Unknown Source)\n"
+                + "\t... 4 common frames omitted\n",
+                new CompactThrowableRenderer().render(new ThrowableProxy(top)));
+    }
+
+    @Test
+    public void limitsFramesPerCause() {
+        final StackTraceElement[] frames = new StackTraceElement[100];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = frame("com.example.Recursive", "call", "Recursive.java", i);
+        }
+        final RuntimeException e = new RuntimeException("deep");
+        e.setStackTrace(frames);
+
+        final CompactThrowableRenderer renderer = new CompactThrowableRenderer();
+        renderer.setMaxFramesPerCause(3);
+        renderer.setAbbreviateFrames(false);
+        renderer.addFoldPackage("com.other");
+        assertEquals("java.lang.RuntimeException: deep\n"
+                + "\tat com.example.Recursive.call(Recursive.java:0)\n"
+                + "\tat com.example.Recursive.call(Recursive.java:1)\n"
+                + "\tat com.example.Recursive.call(Recursive.java:2)\n"
+                + "\t... 97 more frames\n",
+                renderer.render(new ThrowableProxy(e)));
+    }
+
+    @Test
+    public void configuredPackagesReplaceDefaults() {
+        final RuntimeException e = exception(new RuntimeException("x"),
+                frame("com.example.a.One", "one", "One.java", 1),
+                frame("com.example.b.Two", "two", "Two.java", 2));
+        final CompactThrowableRenderer renderer = new CompactThrowableRenderer();
+        renderer.addFoldPackage("com.example");
+        final String rendered = renderer.render(new ThrowableProxy(e));
+        assertTrue(rendered, rendered.contains("\t... 2 frames in com.example\n"));
+        assertTrue(rendered, rendered.contains("\tat org.springframework.web.Dispatcher.dispatch:10\n"));
+    }
+
+    private static <T extends Throwable> T exception(T t, StackTraceElement... own) {
+        final StackTraceElement[] frames = new StackTraceElement[own.length + SHARED.length];
+        System.arraycopy(own, 0, frames, 0, own.length);
+        System.arraycopy(SHARED, 0, frames, own.length, SHARED.length);
+        t.setStackTrace(frames);
+        return t;
+    }
+
+    private static StackTraceElement frame(String className, String method, String file, int line) {
+        return new StackTraceElement(className, method, file, line);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+
+import com.opentable.logging.otl.OtlType;
+
+public class FanOutAppenderTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void encodesOnce() throws Exception {
+        final FanOutAppender fanOut = new FanOutAppender();
+        fanOut.setEncoder(new JsonLogEncoder());
+        final Sink first = new Sink(new JsonLogEncoder());
+        final Sink second = new Sink(new JsonLogEncoder());
+        final Sink other = new Sink(new JsonLogEncoder() { });
+        fanOut.addAppender(first);
+        fanOut.addAppender(second);
+        fanOut.addAppender(other);
+        fanOut.start();
+
+        final LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.INFO);
+        event.setLoggerName("fan-out");
+        event.setMessage("once");
+        event.setTimeStamp(1234567890123L);
+        fanOut.doAppend(event);
+        fanOut.doAppend(event);
+
+        assertEquals(2, first.lines.size());
+        for (int i = 0; i < 2; i++) {
+            assertSame(first.lines.get(i), second.lines.get(i));
+            final JsonNode shared = mapper.readTree(first.lines.get(i));
+            final JsonNode reencoded = mapper.readTree(other.lines.get(i));
+            assertEquals("once", shared.get("message").textValue());
+            assertEquals("once", reencoded.get("message").textValue());
+            assertNotEquals(shared.get("@uuid"), reencoded.get("@uuid"));
+        }
+        assertNotEquals(mapper.readTree(first.lines.get(0)).get("@uuid"), mapper.readTree(first.lines.get(1)).get("@uuid"));
+
+        final EncodedLoggingEvent encoded = (EncodedLoggingEvent) first.events.get(0);
+        assertSame(event, encoded.getEvent());
+        assertEquals("once", encoded.getFormattedMessage());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(encoded.size(), first.encoder.encode(encoded, out));
+        final ByteBuffer buffer = ByteBuffer.allocate(encoded.size());
+        assertEquals(encoded.size(), first.encoder.encode(encoded, buffer));
+        assertEquals(encoded.asByteBuffer(), buffer.flip());
+        assertEquals(encoded.asByteBuffer(), ByteBuffer.wrap(out.toByteArray()));
+        assertTrue(encoded.asByteBuffer().isReadOnly());
+
+        fanOut.stop();
+        assertTrue(!first.isStarted() && !other.isStarted());
+    }
+
+    @Test
+    public void reencodesForOtherSettings() throws Exception {
+        final FanOutAppender fanOut = new FanOutAppender();
+        final JsonLogEncoder parent = new JsonLogEncoder();
+        parent.setTimestampFormat("epoch-millis");
+        fanOut.setEncoder(parent);
+        final JsonLogEncoder sameSettings = new JsonLogEncoder();
+        sameSettings.setTimestampFormat("epoch-millis");
+        final Sink same = new Sink(sameSettings);
+        final Sink iso = new Sink(new JsonLogEncoder());
+        fanOut.addAppender(same);
+        fanOut.addAppender(iso);
+        fanOut.start();
+
+        final OtlEvent event = new OtlEvent();
+        event.setLevel(Level.INFO);
+        event.setTimeStamp(1234567890123L);
+        fanOut.doAppend(event);
+
+        final ILoggingEvent encoded = same.events.get(0);
+        final byte[] shared = EncodedLoggingEvent.encodedFor(encoded, sameSettings);
+        assertSame(shared, same.lines.get(0));
+        assertNull(EncodedLoggingEvent.encodedFor(encoded, iso.encoder));
+        final JsonNode reencoded = mapper.readTree(iso.lines.get(0));
+        // Re-encoded from the original event, so it is still the OTL and not an application log line
+        assertEquals("test-v1", reencoded.get("@loglov3-otl").textValue());
+        assertEquals("custom value", reencoded.get("custom").textValue());
+        assertNotEquals(mapper.readTree(shared).get("sequence-number"), reencoded.get("sequence-number"));
+        fanOut.stop();
+    }
+
+    /**
+     * An event that is an OTL of its own, with only its annotated properties serialized.
+     */
+    @JsonAutoDetect(getterVisibility = Visibility.NONE, isGetterVisibility = Visibility.NONE)
+    public static class OtlEvent extends LoggingEvent implements OtlType {
+        @JsonProperty("@loglov3-otl")
+        public String getOtl() {
+            return "test-v1";
+        }
+
+        @JsonProperty("custom")
+        public String getCustom() {
+            return "custom value";
+        }
+    }
+
+    static class Sink extends UnsynchronizedAppenderBase<ILoggingEvent> {
+        final JsonLogEncoder encoder;
+        final List<ILoggingEvent> events = new ArrayList<>();
+        final List<byte[]> lines = new ArrayList<>();
+
+        Sink(JsonLogEncoder encoder) {
+            this.encoder = encoder;
+            start();
+        }
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            events.add(event);
+            lines.add(encoder.encode(event));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.sun.management.ThreadMXBean;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class GarbageFreeEncodingTest
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final long ALLOWANCE = 1024;
+
+    @Test
+    public void matchesTree() throws Exception {
+        final LoggingEvent le = newEvent();
+        final JsonLogEncoder jle = new JsonLogEncoder();
+        final ObjectNode tree = jle.convertToObjectNode(le);
+        jle.setGarbageFree(true);
+
+        final ObjectNode first = encode(jle, le);
+        final ObjectNode second = encode(jle, le);
+        // The recycled view must not hand out the same id twice
+        assertNotEquals(UUID.fromString(first.get("@uuid").asText()), UUID.fromString(second.get("@uuid").asText()));
+
+        for (ObjectNode node : new ObjectNode[] { tree, first, second }) {
+            node.remove("@uuid");
+            node.remove(CommonLogFields.SEQUENCE_NUMBER_KEY);
+        }
+        assertEquals(tree, first);
+        assertEquals(tree, second);
+    }
+
+    @Test
+    public void noAllocationPerEncode() throws Exception {
+        if (!(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean)) {
+            return;
+        }
+        final ThreadMXBean allocations = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        final long thread = Thread.currentThread().getId();
+
+        final LoggingEvent le = newEvent();
+        final JsonLogEncoder jle = new JsonLogEncoder();
+        jle.setGarbageFree(true);
+        // The default secure generator allocates a UUID per id
+        jle.setMessageIdGenerator("time-ordered");
+        final CountingOutputStream out = new CountingOutputStream();
+
+        // Let the JIT compile the encoding path and the pool settle
+        for (int i = 0; i < 50_000; i++) {
+            jle.encode(le, out);
+        }
+
+        final int iterations = 10_000;
+        final long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            jle.encode(le, out);
+        }
+        final long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(out.count > 0);
+        // Anything allocated per encode would add up to at least 16 bytes times the iterations;
+        // the allowance only covers one-off allocations such as a pool buffer being replaced
+        assertTrue("bytes allocated by " + iterations + " encodes: " + allocated, allocated <= ALLOWANCE);
+    }
+
+    private static ObjectNode encode(JsonLogEncoder jle, LoggingEvent le) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        jle.encode(le, out);
+        return mapper.readValue(out.toByteArray(), ObjectNode.class);
+    }
+
+    private static LoggingEvent newEvent() {
+        CommonLogHolder.setServiceType("logging-test");
+        final LoggingEvent le = new LoggingEvent();
+        le.setLevel(Level.INFO);
+        le.setLoggerName("test-logger");
+        le.setThreadName("test-thread");
+        le.setMessage("a \"quoted\" message");
+        le.setTimeStamp(1234567890123L);
+        final Map<String, String> mdc = new HashMap<>();
+        mdc.put(CommonLogFields.REQUEST_ID_KEY, "a-request");
+        mdc.put("severity", "nope");
+        le.setMDCPropertyMap(mdc);
+        return le;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
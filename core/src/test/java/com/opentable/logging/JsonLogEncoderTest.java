@@ -13,17 +13,43 @@
  */
 package com.opentable.logging;
 
+import static com.opentable.logging.otl.ChatLogV2.ChatLogV2;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import org.junit.Test;
 
 import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
 
 import com.opentable.service.K8sInfo;
 
@@ -59,6 +85,620 @@ public class JsonLogEncoderTest
     }
 
 
+    @Test
+    public void streamingMatchesTree() throws Exception {
+        final LoggingEvent le = newEvent();
+        assertStreamingMatchesTree(le);
+    }
+
+    @Test
+    public void streamingMdcNeverOverrides() throws Exception {
+        final LoggingEvent le = newEvent();
+        final Map<String, String> mdc = new HashMap<>();
+        mdc.put("severity", "nope");
+        mdc.put(CommonLogFields.SEQUENCE_NUMBER_KEY, "nope");
+        mdc.put(CommonLogFields.REQUEST_ID_KEY, "a-request");
+        le.setMDCPropertyMap(mdc);
+
+        final ObjectNode node = assertStreamingMatchesTree(le);
+        assertEquals("ERROR", node.get("severity").asText());
+        assertEquals("a-request", node.get(CommonLogFields.REQUEST_ID_KEY).asText());
+        assertFalse(node.get(CommonLogFields.SEQUENCE_NUMBER_KEY).isTextual());
+    }
+
+    @Test
+    public void streamingMergesOtl() throws Exception {
+        final Instant when = Instant.ofEpochSecond(1024);
+        final LoggingEvent le = newEvent();
+        le.setMarker(ChatLogV2().deliveredAt(when).log());
+
+        final ObjectNode node = assertStreamingMatchesTree(le);
+        assertEquals(when.toString(), node.get("delivered-at").textValue());
+        assertEquals("chat-log-v2", node.get("@loglov3-otl").textValue());
+    }
+
+    @Test
+    public void streamingRebuildsConstantFields() throws Exception {
+        final JsonLogEncoder jle = new JsonLogEncoder();
+        jle.setStreaming(true);
+        final LoggingEvent le = newEvent();
+        assertEquals("logging-test", mapper.readValue(jle.encode(le), ObjectNode.class).get("service-type").asText());
+
+        try {
+            CommonLogHolder.setServiceType("logging-test-changed");
+            CommonLogHolder.setK8sInfo(getMockK8sInfo());
+            final ObjectNode node = mapper.readValue(jle.encode(le), ObjectNode.class);
+            assertEquals("logging-test-changed", node.get("service-type").asText());
+            assertEquals("logging-test-changed", node.get("component-id").asText());
+            assertEquals("logging-podname", node.get("k8s-pod-name").asText());
+        } finally {
+            CommonLogHolder.setServiceType("logging-test");
+        }
+    }
+
+    @Test
+    public void encodeToStreamAndBuffer() throws Exception {
+        for (boolean streaming : new boolean[] { false, true }) {
+            final JsonLogEncoder jle = new JsonLogEncoder();
+            jle.setStreaming(streaming);
+            final LoggingEvent le = newEvent();
+
+            final byte[] bytes = jle.encode(le);
+            assertEquals('{', bytes[0]);
+            assertEquals('\n', bytes[bytes.length - 1]);
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(bytes.length, jle.encode(le, out));
+            assertEquals(bytes.length, jle.encode(le, out));
+            final byte[] lines = out.toByteArray();
+            assertEquals(2 * bytes.length, lines.length);
+            // A reused generator must not put a root value separator in front of the next line
+            assertEquals('{', lines[bytes.length]);
+            assertEquals(withoutIds(bytes), withoutIds(Arrays.copyOfRange(lines, bytes.length, lines.length)));
+
+            final ByteBuffer target = ByteBuffer.allocate(bytes.length * 2);
+            assertEquals(bytes.length, jle.encode(le, target));
+            assertEquals(bytes.length, target.position());
+        }
+    }
+
+    @Test
+    public void encodeToFullBufferLeavesPosition() throws Exception {
+        final JsonLogEncoder jle = new JsonLogEncoder();
+        final ByteBuffer target = ByteBuffer.allocate(16);
+        target.put((byte) 'x');
+        try {
+            jle.encode(newEvent(), target);
+            fail("expected overflow");
+        } catch (BufferOverflowException expected) {
+            assertEquals(1, target.position());
+        }
+        // The buffer went back to the pool and is usable for the next event
+        final ByteBuffer big = ByteBuffer.allocate(4096);
+        assertTrue(jle.encode(newEvent(), big) > 0);
+        assertEquals('{', big.get(0));
+    }
+
+    @Test
+    public void epochTimestamps() throws Exception {
+        for (boolean streaming : new boolean[] { false, true }) {
+            final JsonLogEncoder jle = new JsonLogEncoder();
+            jle.setStreaming(streaming);
+            assertEquals("iso", jle.getTimestampFormat());
+            assertEquals("2009-02-13T23:31:30.123Z", mapper.readTree(jle.encode(newEvent())).get("@timestamp").textValue());
+
+            jle.setTimestampFormat("epoch-millis");
+            assertEquals(1234567890123L, mapper.readTree(jle.encode(newEvent())).get("@timestamp").longValue());
+
+            jle.setTimestampFormat("EPOCH_MICROS");
+            assertEquals(1234567890123000L, mapper.readTree(jle.encode(newEvent())).get("@timestamp").longValue());
+        }
+    }
+
+    @Test
+    public void configuredMessageIds() throws Exception {
+        for (boolean streaming : new boolean[] { false, true }) {
+            final JsonLogEncoder jle = new JsonLogEncoder();
+            jle.setStreaming(streaming);
+            assertEquals(4, UUID.fromString(mapper.readTree(jle.encode(newEvent())).get("@uuid").textValue()).version());
+            jle.setMessageIdGenerator("time-ordered");
+            assertEquals(7, UUID.fromString(mapper.readTree(jle.encode(newEvent())).get("@uuid").textValue()).version());
+        }
+    }
+
+    @Test
+    public void cachedThrowables() throws Exception {
+        for (boolean streaming : new boolean[] { false, true }) {
+            final JsonLogEncoder jle = new JsonLogEncoder();
+            jle.setStreaming(streaming);
+            final CachingThrowableRenderer cache = jle.getThrowableCache();
+
+            // Thrown from the same place, so these share their stack frames
+            final ObjectNode[] lines = encodeFailures(jle, "first", "first", "second");
+            final ObjectNode first = lines[0];
+            final ObjectNode again = lines[1];
+            final ObjectNode other = lines[2];
+            assertEquals(1, cache.getHits());
+            assertEquals(2, cache.getMisses());
+            assertEquals(0, cache.getEvictions());
+
+            assertEquals(first.get("exception"), again.get("exception"));
+            assertTrue(other.get("exception").textValue().contains("second"));
+            assertEquals(16, first.get("exception-fingerprint").textValue().length());
+            assertEquals(first.get("exception-fingerprint"), other.get("exception-fingerprint"));
+            assertNull(mapper.readTree(jle.encode(newEvent())).get("exception-fingerprint"));
+
+            final LoggingEvent le = newEvent();
+            le.setThrowableProxy(new ThrowableProxy(new IllegalStateException("first")));
+            assertNotEquals(first.get("exception-fingerprint"), mapper.readTree(jle.encode(le)).get("exception-fingerprint"));
+        }
+    }
+
+    @Test
+    public void fingerprintIgnoresClassLoaderAndModule() {
+        final Exception deployed = new IllegalStateException("boom");
+        deployed.setStackTrace(new StackTraceElement[] {
+            new StackTraceElement("app", "service", "1.0", "com.example.Service", "run", "Service.java", 42),
+        });
+        final Exception redeployed = new IllegalStateException("boom");
+        redeployed.setStackTrace(new StackTraceElement[] {
+            new StackTraceElement("app-2", null, null, "com.example.Service", "run", "Service.java", 42),
+        });
+        final Exception moved = new IllegalStateException("boom");
+        moved.setStackTrace(new StackTraceElement[] {
+            new StackTraceElement("app", "service", "1.0", "com.example.Service", "run", "Service.java", 43),
+        });
+        final long fingerprint = ThrowableFingerprint.of(new ThrowableProxy(deployed));
+        assertEquals(fingerprint, ThrowableFingerprint.of(new ThrowableProxy(redeployed)));
+        assertNotEquals(fingerprint, ThrowableFingerprint.of(new ThrowableProxy(moved)));
+    }
+
+    @Test
+    public void throwableCacheEvicts() throws Exception {
+        final JsonLogEncoder jle = new JsonLogEncoder();
+        jle.setThrowableCacheSize(1);
+        encodeFailures(jle, "first", "second");
+        assertEquals(1, jle.getThrowableCache().getEvictions());
+        assertEquals(1, jle.getThrowableCache().getSize());
+
+        jle.setThrowableCacheSize(0);
+        assertNull(jle.getThrowableCache());
+        assertTrue(encodeFailures(jle, "first")[0].get("exception").textValue().contains("first"));
+    }
+
+    @Test
+    public void projectionExcludesFields() throws Exception {
+        CommonLogHolder.setK8sInfo(getMockK8sInfo());
+        for (boolean streaming : new boolean[] { false, true }) {
+            final JsonLogEncoder jle = new JsonLogEncoder();
+            jle.setStreaming(streaming);
+            jle.addProjection("k8s-cluster-name, k8s-namespace");
+            jle.addProjection("msg-v1: component-id, thread-name");
+
+            final LoggingEvent le = newEvent();
+            final Map<String, String> mdc = new HashMap<>();
+            mdc.put("k8s-namespace", "from-mdc");
+            le.setMDCPropertyMap(mdc);
+            final ObjectNode plain = mapper.readValue(jle.encode(le), ObjectNode.class);
+            assertEquals("msg-v1", plain.get("@loglov3-otl").asText());
+            for (String excluded : new String[] { "k8s-cluster-name", "k8s-namespace", "component-id", "thread-name" }) {
+                assertFalse(streaming + " " + excluded, plain.has(excluded));
+            }
+            assertEquals("logging-podname", plain.get("k8s-pod-name").asText());
+            assertEquals("logging-test", plain.get("service-type").asText());
+
+            // The msg-v1 rule does not apply to other OTL types
+            le.setMarker(ChatLogV2().deliveredAt(Instant.ofEpochSecond(1024)).log());
+            final ObjectNode otl = mapper.readValue(jle.encode(le), ObjectNode.class);
+            assertEquals("chat-log-v2", otl.get("@loglov3-otl").asText());
+            assertFalse(otl.has("k8s-cluster-name"));
+            assertEquals("logging-test", otl.get("component-id").asText());
+
+            assertEquals(2, jle.getProjectedEvents());
+            // At least the names, quotes, colons and commas of the plain line's four excluded fields
+            assertTrue(String.valueOf(jle.getProjectedBytesSaved()), jle.getProjectedBytesSaved() > 2 * 60);
+        }
+    }
+
+    @Test
+    public void excludedExceptionIsNotRendered() throws Exception {
+        final AtomicInteger renders = new AtomicInteger();
+        final JsonLogEncoder jle = new JsonLogEncoder();
+        jle.setStreaming(true);
+        jle.setThrowableRenderer(t -> {
+            renders.incrementAndGet();
+            return t.getMessage();
+        });
+        jle.addProjection("exception");
+
+        final LoggingEvent le = newEvent();
+        le.setThrowableProxy(new ThrowableProxy(new IllegalStateException("boom")));
+        final ObjectNode node = mapper.readValue(jle.encode(le), ObjectNode.class);
+        assertFalse(node.has("exception"));
+        assertTrue(node.has("exception-fingerprint"));
+        assertEquals(0, renders.get());
+    }
+
+    @Test
+    public void truncatesLongFields() throws Exception {
+        final StringBuilder huge = new StringBuilder();
+        while (huge.length() < 1_000_000) {
+            huge.append("a \"quoted\" body \u00e9 ");
+        }
+        final String body = huge.toString();
+
+        for (boolean streaming : new boolean[] { false, true }) {
+            final JsonLogEncoder jle = new JsonLogEncoder();
+            jle.setStreaming(streaming);
+            jle.setMaxFieldBytes(1000);
+            jle.setMaxEventBytes(2500);
+
+            final LoggingEvent le = newEvent(body);
+            final Map<String, String> mdc = new HashMap<>();
+            mdc.put("first", body);
+            mdc.put("second", body);
+            mdc.put("short", "kept");
+            le.setMDCPropertyMap(mdc);
+
+            final byte[] line = jle.encode(le);
+            final ObjectNode node = mapper.readValue(line, ObjectNode.class);
+            final String message = node.get("message").asText();
+            assertTrue(message.endsWith(FieldLimits.TRUNCATION_MARKER));
+            assertTrue(body.startsWith(message.substring(0, message.length() - FieldLimits.TRUNCATION_MARKER.length())));
+            assertEquals(FieldLimits.utf8Length(body), node.get("message-original-length").asLong());
+            assertEquals("kept", node.get("short").asText());
+            assertEquals(1, jle.getTruncatedEvents());
+            if (streaming) {
+                assertTrue(String.valueOf(line.length), line.length <= 2500);
+                // The event cap leaves no room for a second long MDC value
+                assertEquals(3, jle.getTruncatedFields());
+                assertTrue(node.has("first") != node.has("second"));
+            } else {
+                assertEquals(3, jle.getTruncatedFields());
+                assertTrue(node.get("first").asText().endsWith(FieldLimits.TRUNCATION_MARKER));
+            }
+        }
+
+        final String emoji = "a\uD83D\uDE00";
+        assertEquals(1, FieldLimits.escapedPrefix(emoji, 4));
+        assertEquals(3, FieldLimits.escapedPrefix(emoji, 5));
+        assertEquals(1, FieldLimits.escapedPrefix("a\"b", 2));
+        assertEquals(7, FieldLimits.utf8Length("\u00e9" + emoji));
+    }
+
+    @Test
+    public void escapeCache() throws Exception {
+        final JsonLogEncoder jle = new JsonLogEncoder();
+        jle.setStreaming(true);
+        jle.setEscapeCacheSize(8);
+        final LoggingEvent le = escapedEvent("thread-0");
+
+        final ObjectNode first = withoutIds(jle.encode(le));
+        assertEquals(first, withoutIds(jle.encode(le)));
+        assertEquals(le.getLoggerName(), first.get("logger-name").asText());
+        assertEquals("value", first.get("a \"key\"").asText());
+        assertTrue(jle.getEscapeCacheHits() >= 6);
+
+        // Thread names that never repeat first churn the cache, then stop being cached
+        for (int i = 1; i < 200; i++) {
+            final ObjectNode node = mapper.readValue(jle.encode(escapedEvent("thread-" + i)), ObjectNode.class);
+            assertEquals("thread-" + i, node.get("thread-name").asText());
+        }
+        assertTrue(jle.getEscapeCacheEvictions() > 0);
+        final long misses = jle.getEscapeCacheMisses();
+        final LoggingEvent fresh = escapedEvent("thread-new");
+        jle.encode(fresh);
+        assertEquals(misses, jle.getEscapeCacheMisses());
+
+        jle.setStreaming(false);
+        assertEquals(first, withoutIds(jle.encode(fresh)).put("thread-name", "thread-0"));
+    }
+
+    private static LoggingEvent escapedEvent(String threadName) {
+        final LoggingEvent le = new LoggingEvent();
+        le.setLevel(Level.ERROR);
+        le.setLoggerName("an \"escaped\" logger \u00e9");
+        le.setThreadName(threadName);
+        le.setMessage("a \"quoted\" message");
+        le.setTimeStamp(1234567890123L);
+        final Map<String, String> mdc = new HashMap<>();
+        mdc.put("a \"key\"", "value");
+        le.setMDCPropertyMap(mdc);
+        return le;
+    }
+
+    @Test
+    public void messageTemplates() throws Exception {
+        final LoggingEvent le = newEvent("user {} booked \"{}\" for {} guests: {} {} {}");
+        le.setArgumentArray(new Object[] { 42L, "the \"place\"", 2.5, true, null, new int[] { 1, 2 } });
+
+        for (boolean streaming : new boolean[] { false, true }) {
+            final JsonLogEncoder jle = new JsonLogEncoder();
+            jle.setStreaming(streaming);
+            jle.setMessageTemplate(true);
+            final ObjectNode node = mapper.readValue(jle.encode(le), ObjectNode.class);
+            assertEquals(le.getFormattedMessage(), node.get("message").asText());
+            assertEquals(le.getMessage(), node.get("message-template").asText());
+            final JsonNode args = node.get("message-arguments");
+            assertEquals(6, args.size());
+            assertTrue(args.get(0).isIntegralNumber());
+            assertEquals(42, args.get(0).asLong());
+            assertEquals("the \"place\"", args.get(1).asText());
+            assertEquals(2.5, args.get(2).asDouble(), 0);
+            assertTrue(args.get(3).asBoolean());
+            assertTrue(args.get(4).isNull());
+            assertEquals("[1, 2]", args.get(5).asText());
+
+            jle.setFormattedMessage(false);
+            final ObjectNode unformatted = mapper.readValue(jle.encode(le), ObjectNode.class);
+            assertFalse(unformatted.has("message"));
+            assertEquals(node.get("message-arguments"), unformatted.get("message-arguments"));
+        }
+    }
+
+    @Test
+    public void mdcFieldNames() throws Exception {
+        final LoggingEvent le = newEvent();
+        final Map<String, String> mdc = new HashMap<>();
+        mdc.put("message", "not the message");
+        mdc.put("exception", "no exception was logged");
+        mdc.put("authorization", "secret");
+        mdc.put("Authorization", "secret");
+        mdc.put(CommonLogFields.SEQUENCE_NUMBER_KEY, "not a number");
+        mdc.put("custom", "value");
+        le.setMDCPropertyMap(mdc);
+
+        final ObjectNode node = assertStreamingMatchesTree(le);
+        assertEquals(le.getFormattedMessage(), node.get("message").textValue());
+        assertEquals("no exception was logged", node.get("exception").textValue());
+        assertFalse(node.has("authorization"));
+        assertFalse(node.has("Authorization"));
+        assertTrue(node.get(CommonLogFields.SEQUENCE_NUMBER_KEY).isNumber());
+        assertEquals("value", node.get("custom").textValue());
+
+        le.setThrowableProxy(new ThrowableProxy(new IllegalStateException("boom")));
+        assertTrue(assertStreamingMatchesTree(le).get("exception").textValue().contains("boom"));
+    }
+
+    @Test
+    public void keyValuePairs() throws Exception {
+        final Map<String, Object> nested = new HashMap<>();
+        nested.put("id", 7);
+        nested.put("name", "a \"b\"");
+        final KeyValueEvent le = newEvent(new KeyValueEvent())
+                .add("count", 3)
+                .add("ratio", 0.5)
+                .add("ok", true)
+                .add("table", nested)
+                .add("text", "hello")
+                .add("missing", null)
+                .add("count", 4)
+                .add("message", "not the message")
+                .add("authorization", "secret");
+        final Map<String, String> mdc = new HashMap<>();
+        mdc.put("count", "from mdc");
+        mdc.put("missing", "from mdc");
+        le.setMDCPropertyMap(mdc);
+
+        final ObjectNode node = assertStreamingMatchesTree(le);
+        assertTrue(node.get("count").isInt());
+        assertEquals(3, node.get("count").intValue());
+        assertEquals(0.5, node.get("ratio").doubleValue(), 0);
+        assertTrue(node.get("ok").booleanValue());
+        assertEquals(7, node.get("table").get("id").intValue());
+        assertEquals("a \"b\"", node.get("table").get("name").textValue());
+        assertEquals("hello", node.get("text").textValue());
+        assertEquals("from mdc", node.get("missing").textValue());
+        assertEquals(le.getFormattedMessage(), node.get("message").textValue());
+        assertFalse(node.has("authorization"));
+    }
+
+    @Test
+    public void keyValuePairFields() throws Exception {
+        final KeyValueEvent le = newEvent(new KeyValueEvent())
+                .addPair("count", 3)
+                .addPair("text", "a \"quoted\" value")
+                .addPair("missing", null)
+                .add("count", 4)
+                .addPair("authorization", "secret");
+        final Map<String, String> mdc = new HashMap<>();
+        mdc.put("missing", "from mdc");
+        le.setMDCPropertyMap(mdc);
+
+        final ObjectNode node = assertStreamingMatchesTree(le);
+        assertTrue(node.get("count").isInt());
+        assertEquals(3, node.get("count").intValue());
+        assertEquals("a \"quoted\" value", node.get("text").textValue());
+        assertEquals("from mdc", node.get("missing").textValue());
+        assertFalse(node.has("authorization"));
+        assertEquals("count", KeyValuePairs.key(le.getKeyValuePairs().get(0)));
+        assertEquals(3, KeyValuePairs.value(le.getKeyValuePairs().get(0)));
+    }
+
+    @Test
+    public void registeredMapper() throws Exception {
+        final JsonLogEncoder jle = new JsonLogEncoder();
+        jle.start();
+        final LoggingEvent le = newEvent("caf\u00e9");
+        try {
+            for (boolean streaming : new boolean[] { false, true }) {
+                jle.setStreaming(streaming);
+                JsonLogEncoderRegistry.setObjectMapper(null);
+                assertTrue(new String(jle.encode(le), StandardCharsets.UTF_8).contains("caf\u00e9"));
+
+                final ObjectMapper custom = new ObjectMapper();
+                custom.getFactory().enable(JsonGenerator.Feature.ESCAPE_NON_ASCII);
+                JsonLogEncoderRegistry.setObjectMapper(custom);
+                final String line = new String(jle.encode(le), StandardCharsets.UTF_8);
+                assertTrue(line, line.contains("caf\\u00E9"));
+                // The encoder's own settings still apply on top of the registered mapper
+                assertEquals("2009-02-13T23:31:30.123Z", mapper.readTree(line).get("@timestamp").textValue());
+
+                // Settings that would break one object per line are overridden
+                final ObjectMapper indenting = new ObjectMapper()
+                        .enable(SerializationFeature.INDENT_OUTPUT)
+                        .enable(SerializationFeature.WRAP_ROOT_VALUE);
+                JsonLogEncoderRegistry.setObjectMapper(indenting);
+                final String plain = new String(jle.encode(le), StandardCharsets.UTF_8);
+                assertEquals(plain, plain.length() - 1, plain.indexOf('\n'));
+                assertEquals("caf\u00e9", mapper.readTree(plain).get("message").textValue());
+                // ...on a copy, the registered mapper is left alone
+                assertTrue(indenting.isEnabled(SerializationFeature.INDENT_OUTPUT));
+            }
+        } finally {
+            JsonLogEncoderRegistry.setObjectMapper(null);
+        }
+    }
+
+    @Test
+    public void registeringWarmsUpStartedEncodersOnTheCallingThread() {
+        final LoggerContext context = new LoggerContext();
+        final JsonLogEncoder jle = new JsonLogEncoder();
+        jle.setContext(context);
+        jle.start();
+        final long started = warmUps(context);
+
+        JsonLogEncoderRegistry.registerWarmUpTypes(WarmedUp.class);
+        assertEquals(started + 1, warmUps(context));
+        // Registering a type again changes nothing
+        JsonLogEncoderRegistry.registerWarmUpTypes(WarmedUp.class);
+        assertEquals(started + 1, warmUps(context));
+
+        jle.stop();
+        JsonLogEncoderRegistry.registerWarmUpTypes(NotWarmedUp.class);
+        assertEquals(started + 1, warmUps(context));
+    }
+
+    private static long warmUps(LoggerContext context) {
+        return context.getStatusManager().getCopyOfStatusList().stream()
+                .filter(status -> status.getMessage().startsWith("Warmed up"))
+                .count();
+    }
+
+    public static class WarmedUp {
+        public String value;
+    }
+
+    public static class NotWarmedUp {
+        public String value;
+    }
+
+    private ObjectNode[] encodeFailures(JsonLogEncoder jle, String... messages) throws IOException {
+        final ObjectNode[] result = new ObjectNode[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            final LoggingEvent le = newEvent();
+            le.setThrowableProxy(new ThrowableProxy(new IllegalArgumentException(messages[i], new IOException("cause"))));
+            result[i] = mapper.readValue(jle.encode(le), ObjectNode.class);
+        }
+        return result;
+    }
+
+    private ObjectNode withoutIds(byte[] line) throws IOException {
+        final ObjectNode node = mapper.readValue(line, ObjectNode.class);
+        node.remove("@uuid");
+        node.remove(CommonLogFields.SEQUENCE_NUMBER_KEY);
+        return node;
+    }
+
+    private LoggingEvent newEvent() {
+        return newEvent(new LoggingEvent());
+    }
+
+    private LoggingEvent newEvent(String message) {
+        return newEvent(new LoggingEvent(), message);
+    }
+
+    private <T extends LoggingEvent> T newEvent(T le) {
+        return newEvent(le, "a \"quoted\" message");
+    }
+
+    // Logback only lets each field of an event be set once, so tests that need other values build a fresh event
+    private <T extends LoggingEvent> T newEvent(T le, String message) {
+        CommonLogHolder.setServiceType("logging-test");
+        le.setLevel(Level.ERROR);
+        le.setLoggerName("test-logger");
+        le.setMessage(message);
+        le.setTimeStamp(1234567890123L);
+        return le;
+    }
+
+    /**
+     * Stands in for a Logback 1.3 event carrying SLF4J 2 key/value pairs.
+     */
+    static class KeyValueEvent extends LoggingEvent {
+        private final List<Object> pairs = new ArrayList<>();
+
+        KeyValueEvent add(String key, Object value) {
+            pairs.add(new SimpleImmutableEntry<>(key, value));
+            return this;
+        }
+
+        KeyValueEvent addPair(String key, Object value) {
+            pairs.add(new KeyValuePair(key, value));
+            return this;
+        }
+
+        public List<Object> getKeyValuePairs() {
+            return pairs;
+        }
+    }
+
+    /**
+     * Stands in for {@code org.slf4j.event.KeyValuePair}, which is read through its public fields.
+     */
+    public static final class KeyValuePair {
+        public final String key;
+        public final Object value;
+
+        KeyValuePair(String key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    @Test
+    public void streamingMatchesTreeWithSettings() throws Exception {
+        final LoggingEvent le = newEvent();
+        le.setMarker(ChatLogV2().deliveredAt(Instant.ofEpochSecond(1024)).log());
+        le.setThrowableProxy(new ThrowableProxy(new IllegalStateException("boom")));
+        final Map<String, String> mdc = new HashMap<>();
+        mdc.put("empty", null);
+        mdc.put("long", String.join("", Collections.nCopies(100, "x")));
+        le.setMDCPropertyMap(mdc);
+
+        final ObjectNode node = assertStreamingMatchesTree(le, jle -> {
+            jle.setTimestampFormat("epoch-millis");
+            jle.setMaxFieldBytes(64);
+            jle.addProjection("host, k8s-pod-name, " + CommonLogFields.SEQUENCE_NUMBER_KEY);
+            jle.setMessageTemplate(true);
+        });
+        assertTrue(node.get("empty").isNull());
+        assertEquals(1234567890123L, node.get(CommonLogFields.TIMESTAMP_KEY).longValue());
+        assertEquals(100, node.get("long" + FieldLimits.ORIGINAL_LENGTH_SUFFIX).intValue());
+        assertFalse(node.has("host"));
+    }
+
+    private ObjectNode assertStreamingMatchesTree(LoggingEvent le) throws IOException {
+        return assertStreamingMatchesTree(le, jle -> { });
+    }
+
+    private ObjectNode assertStreamingMatchesTree(LoggingEvent le, Consumer<JsonLogEncoder> settings) throws IOException {
+        final JsonLogEncoder jle = new JsonLogEncoder();
+        settings.accept(jle);
+        final String tree = new String(jle.encode(le), StandardCharsets.UTF_8);
+        jle.setStreaming(true);
+        final String streamed = new String(jle.encode(le), StandardCharsets.UTF_8);
+
+        // Only the generated values differ, not where they are
+        assertEquals(withoutGeneratedValues(tree), withoutGeneratedValues(streamed));
+        return mapper.readValue(streamed, ObjectNode.class);
+    }
+
+    private static String withoutGeneratedValues(String line) {
+        return line.replaceAll("\"@uuid\":\"[^\"]*\"", "\"@uuid\":\"\"")
+                .replaceAll("\"" + CommonLogFields.SEQUENCE_NUMBER_KEY + "\":-?[0-9]+", "\"" + CommonLogFields.SEQUENCE_NUMBER_KEY + "\":0");
+    }
+
     private K8sInfo getMockK8sInfo() {
         K8sInfo k8sInfo = new K8sInfo();
         k8sInfo.setClusterName("logging-cluster-name");
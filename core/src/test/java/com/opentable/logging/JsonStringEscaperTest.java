@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.junit.Test;
+
+public class JsonStringEscaperTest {
+    private final JsonFactory factory = new JsonFactory();
+    private final JsonStringEscaper escaper = new JsonStringEscaper();
+
+    @Test
+    public void matchesJackson() throws IOException {
+        final String ascii = "java.lang.IllegalStateException: nothing to see here, move along please ";
+        assertMatches(ascii, true);
+        assertMatches(ascii + ascii + ascii, true);
+        for (String special : new String[] { "\"", "\\", "\n", "\t", "\r", "\b", "\f", "\u0000", "\u001f", "\u007f", "/", "\u00e9", "\u00ff" }) {
+            for (int i = 0; i <= ascii.length(); i += 3) {
+                assertMatches(ascii.substring(0, i) + special + ascii.substring(i), true);
+            }
+        }
+    }
+
+    @Test
+    public void leavesOtherStringsToJackson() throws IOException {
+        assertMatches("too short", false);
+        assertMatches("unicode \u20ac outside latin-1 is left to the generator, it has to be long enough", false);
+        assertMatches("a surrogate pair \ud83d\ude00 is left to the generator, it has to be long enough too", false);
+    }
+
+    @Test
+    public void randomLatin1() throws IOException {
+        final Random random = new Random(42);
+        for (int n = 0; n < 500; n++) {
+            final char[] chars = new char[JsonStringEscaper.MIN_LENGTH + random.nextInt(300)];
+            for (int i = 0; i < chars.length; i++) {
+                // Mostly printable ASCII, with some of everything else
+                chars[i] = (char) (random.nextInt(10) == 0 ? random.nextInt(256) : ' ' + random.nextInt(95));
+            }
+            assertMatches(new String(chars), true);
+        }
+    }
+
+    private void assertMatches(String value, boolean fast) throws IOException {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (JsonGenerator gen = factory.createGenerator(expected)) {
+            gen.writeStartArray();
+            gen.writeString(value);
+            gen.writeString(value);
+            gen.writeEndArray();
+        }
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (JsonGenerator gen = factory.createGenerator(actual)) {
+            gen.writeStartArray();
+            assertEquals(fast, escaper.write(gen, value));
+            if (!fast) {
+                gen.writeString(value);
+            }
+            assertEquals(fast, escaper.write(gen, value));
+            if (!fast) {
+                gen.writeString(value);
+            }
+            gen.writeEndArray();
+        }
+        assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+    }
+
+    @Test
+    public void generatorEscapingWins() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator gen = factory.createGenerator(out)) {
+            gen.enable(JsonGenerator.Feature.ESCAPE_NON_ASCII);
+            assertFalse(escaper.write(gen, "some latin-1 text, \u00e9, that would otherwise take the escaper's fast path"));
+        }
+        try (JsonGenerator gen = factory.createGenerator(out)) {
+            assertTrue(escaper.write(gen, "some latin-1 text, \u00e9, that would otherwise take the escaper's fast path"));
+        }
+    }
+}
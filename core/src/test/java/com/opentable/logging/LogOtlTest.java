@@ -41,6 +41,7 @@ public class LogOtlTest {
     private final LoggerContext context = new LoggerContext();
     private final ObjectMapper mapper = new ObjectMapper();
     private final List<JsonNode> serializedEvents = new ArrayList<>();
+    private final List<ILoggingEvent> events = new ArrayList<>();
 
     @Before
     public void addHandler() throws Exception
@@ -48,6 +49,7 @@ public class LogOtlTest {
         mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
         serializedEvents.clear();
+        events.clear();
 
         final OnConsoleStatusListener listener = new OnConsoleStatusListener();
         listener.start();
@@ -66,6 +68,7 @@ public class LogOtlTest {
         final UnsynchronizedAppenderBase<ILoggingEvent> captureAppender = new UnsynchronizedAppenderBase<ILoggingEvent>() {
             @Override
             protected void append(ILoggingEvent eventObject) {
+                events.add(eventObject);
                 encoder.encode(eventObject);
             }
         };
@@ -94,4 +97,23 @@ public class LogOtlTest {
         assertEquals(when.toString(), event.get("delivered-at").textValue());
         assertEquals("chat-log-v2", event.get("@loglov3-otl").textValue());
     }
+
+    @Test
+    public void testStreamingMatchesTree() throws Exception
+    {
+        final Instant when = Instant.ofEpochSecond(1024, 5000);
+        context.getLogger("test").info(ChatLogV2().deliveredAt(when).log(), "herro {}", "there");
+        assertEquals(1, events.size());
+
+        final JsonLogEncoder streaming = new JsonLogEncoder();
+        streaming.setStreaming(true);
+        final ObjectNode streamed = mapper.readValue(streaming.encode(events.get(0)), ObjectNode.class);
+        final ObjectNode tree = (ObjectNode) serializedEvents.get(0);
+        for (ObjectNode node : new ObjectNode[] { tree, streamed }) {
+            node.remove("@uuid");
+            node.remove(CommonLogFields.SEQUENCE_NUMBER_KEY);
+        }
+        assertEquals(tree, streamed);
+        assertEquals(when.toString(), streamed.get("delivered-at").textValue());
+    }
 }
@@ -0,0 +1,245 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.util.FileSize;
+
+public class MappedFileAppenderTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int THREADS = 4;
+    private static final int EVENTS = 1_000;
+
+    private Path dir;
+
+    @Before
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("mapped");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void appendsFromManyThreadsAndRolls() throws Exception {
+        final MappedFileAppender appender = appender();
+        appender.setSegmentSize(FileSize.valueOf("16KB"));
+        appender.start();
+        assertTrue(appender.isStarted());
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final String thread = Integer.toString(t);
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < EVENTS; i++) {
+                    final LoggingEvent event = new LoggingEvent();
+                    event.setLevel(Level.INFO);
+                    event.setThreadName(thread);
+                    event.setMessage(thread + "/" + i);
+                    appender.doAppend(event);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        appender.stop();
+        assertEquals(0, appender.getDroppedEvents());
+
+        final List<Path> segments = segments();
+        assertTrue(segments.size() > 1);
+        final Set<String> messages = new HashSet<>();
+        for (Path segment : segments) {
+            final byte[] data = Files.readAllBytes(segment);
+            assertEquals('\n', data[data.length - 1]);
+            for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+                messages.add(mapper.readTree(line).get("message").textValue());
+            }
+        }
+        assertEquals(THREADS * EVENTS, messages.size());
+    }
+
+    @Test
+    public void trimsSegmentsLeftByACrash() throws Exception {
+        final byte[] crashed = new byte[64];
+        final byte[] data = "{\"a\":1}\n{\"b\":2}\n{\"c\":".getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(data, 0, crashed, 0, data.length);
+        Files.write(dir.resolve("app.json.000007"), crashed);
+        Files.write(dir.resolve("app.json.000002"), "{\"closed\":true}\n".getBytes(StandardCharsets.UTF_8));
+
+        final MappedFileAppender appender = appender();
+        appender.start();
+        final LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.WARN);
+        event.setMessage("after");
+        appender.doAppend(event);
+        appender.stop();
+
+        assertEquals("{\"a\":1}\n{\"b\":2}\n", new String(Files.readAllBytes(dir.resolve("app.json.000007")), StandardCharsets.UTF_8));
+        assertEquals("{\"closed\":true}\n", new String(Files.readAllBytes(dir.resolve("app.json.000002")), StandardCharsets.UTF_8));
+        final List<Path> segments = segments();
+        assertEquals(dir.resolve("app.json.000008"), segments.get(segments.size() - 1));
+        assertEquals("after", mapper.readTree(Files.readAllBytes(segments.get(segments.size() - 1))).get("message").textValue());
+    }
+
+    @Test
+    public void publishesCommittedLengthOfOpenSegment() throws Exception {
+        final MappedFileAppender appender = appender();
+        appender.start();
+        for (int i = 0; i < 10; i++) {
+            final LoggingEvent event = new LoggingEvent();
+            event.setLevel(Level.INFO);
+            event.setMessage("line " + i);
+            appender.doAppend(event);
+        }
+
+        // A tailer reads up to the committed length in the trailer, which covers exactly the lines appended
+        final Path open = dir.resolve("app.json.000001.open");
+        assertFalse(Files.exists(dir.resolve("app.json.000001")));
+        final byte[] live = Files.readAllBytes(open);
+        assertEquals(0, live[live.length - 1]);
+        final int committed = ByteBuffer.wrap(live).getInt(live.length - 8);
+        final String[] lines = new String(live, 0, committed, StandardCharsets.UTF_8).split("\n");
+        assertEquals(10, lines.length);
+        assertEquals("line 9", mapper.readTree(lines[9]).get("message").textValue());
+
+        appender.stop();
+        assertFalse(Files.exists(open));
+        final byte[] closed = Files.readAllBytes(dir.resolve("app.json.000001"));
+        assertEquals(committed, closed.length);
+        assertEquals('\n', closed[closed.length - 1]);
+    }
+
+    @Test
+    public void recoversWholeLinesAroundHoles() throws Exception {
+        // Committed "a", then a range left unfinished by the crash, a whole "c" and a partial "d"
+        final ByteBuffer crashed = ByteBuffer.allocate(64 + 8);
+        crashed.put("{\"a\":1}\n".getBytes(StandardCharsets.UTF_8));
+        crashed.put(new byte[5]);
+        crashed.put("{\"c\":3}\n{\"d\":".getBytes(StandardCharsets.UTF_8));
+        crashed.putInt(64, 8);
+        Files.write(dir.resolve("app.json.000003.open"), crashed.array());
+
+        final MappedFileAppender appender = appender();
+        appender.start();
+        appender.stop();
+
+        assertFalse(Files.exists(dir.resolve("app.json.000003.open")));
+        assertEquals("{\"a\":1}\n{\"c\":3}\n", new String(Files.readAllBytes(dir.resolve("app.json.000003")), StandardCharsets.UTF_8));
+        assertEquals(dir.resolve("app.json.000004"), segments().get(1));
+    }
+
+    @Test(timeout = 10_000)
+    public void commitsAHoleWhenACopyFaults() throws Exception {
+        final byte[] failing = "{\"a\":1}\n".getBytes(StandardCharsets.UTF_8);
+        final byte[] after = "{\"b\":2}\n".getBytes(StandardCharsets.UTF_8);
+        final CountDownLatch copying = new CountDownLatch(1);
+        final CountDownLatch copied = new CountDownLatch(1);
+        final CountDownLatch fault = new CountDownLatch(1);
+        // The first copy stops halfway and faults like a mapping on a full disk, once the next line is copied
+        final MappedSegment segment = MappedSegment.create(dir.resolve("app.json.000001"), 4096, (target, line) -> {
+            if (line != failing) {
+                target.put(line);
+                copied.countDown();
+                return;
+            }
+            target.put(line, 0, 4);
+            copying.countDown();
+            try {
+                fault.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new InternalError("a fault occurred in an unsafe memory access operation");
+        });
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread first = new Thread(() -> {
+            try {
+                segment.append(failing);
+            } catch (InternalError e) {
+                failure.set(e);
+            }
+        });
+        first.start();
+        copying.await();
+        final AtomicBoolean appended = new AtomicBoolean();
+        final Thread second = new Thread(() -> appended.set(segment.append(after)));
+        second.start();
+        // The second line now waits for the first to be committed
+        copied.await();
+        fault.countDown();
+        first.join();
+        second.join();
+
+        // The failed range is committed as a hole, so the line after it is committed too, and the segment is sealed
+        assertTrue(failure.get() instanceof InternalError);
+        assertTrue(appended.get());
+        assertEquals(failing.length + after.length, segment.committed());
+        assertFalse(segment.append(after));
+        assertTrue(segment.isQuiescent());
+        segment.close();
+        final byte[] data = Files.readAllBytes(dir.resolve("app.json.000001"));
+        assertEquals(0, data[failing.length - 1]);
+        assertEquals("{\"b\":2}\n", new String(data, failing.length, after.length, StandardCharsets.UTF_8));
+    }
+
+    private MappedFileAppender appender() {
+        final MappedFileAppender appender = new MappedFileAppender();
+        appender.setName("test");
+        appender.setFile(dir.resolve("app.json").toString());
+        appender.setEncoder(new JsonLogEncoder());
+        return appender;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class MessageIdGeneratorsTest {
+    @Test
+    public void versions() {
+        assertVersion(4, MessageIdGenerators.secure());
+        assertVersion(7, MessageIdGenerators.timeOrdered());
+        assertVersion(8, MessageIdGenerators.counter());
+    }
+
+    @Test
+    public void secureByDefault() {
+        assertSame(MessageIdGenerators.secure(), CommonLogHolder.getMessageIdGenerator());
+    }
+
+    @Test
+    public void timeOrderedCarriesTimestamp() {
+        final long before = System.currentTimeMillis();
+        final UUID id = MessageIdGenerators.timeOrdered().nextId();
+        final long millis = id.getMostSignificantBits() >>> 16;
+        assertTrue(millis >= before && millis <= System.currentTimeMillis());
+    }
+
+    @Test
+    public void uniqueAcrossThreads() throws Exception {
+        for (MessageIdGenerator ids : new MessageIdGenerator[] { MessageIdGenerators.timeOrdered(), MessageIdGenerators.counter() }) {
+            final Set<UUID> seen = ConcurrentHashMap.newKeySet();
+            final Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    for (int j = 0; j < 10_000; j++) {
+                        seen.add(ids.nextId());
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            assertEquals(threads.length * 10_000, seen.size());
+        }
+    }
+
+    @Test
+    public void renderMatchesToString() {
+        final char[] buf = new char[40];
+        for (int i = 0; i < 100; i++) {
+            final UUID id = UUID.randomUUID();
+            assertEquals(id.toString(), new String(buf, 2, MessageIdGenerators.render(id, buf, 2) - 2));
+        }
+        final UUID edge = new UUID(-1L, 0L);
+        assertEquals(edge.toString(), new String(buf, 0, MessageIdGenerators.render(edge, buf, 0)));
+    }
+
+    @Test
+    public void forName() {
+        assertSame(MessageIdGenerators.secure(), MessageIdGenerators.forName("secure"));
+        assertSame(MessageIdGenerators.timeOrdered(), MessageIdGenerators.forName(" Time-Ordered "));
+        assertSame(MessageIdGenerators.counter(), MessageIdGenerators.forName("counter"));
+        assertEquals(Fixed.class, MessageIdGenerators.forName(Fixed.class.getName()).getClass());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void forNameUnknown() {
+        MessageIdGenerators.forName("java.lang.String");
+    }
+
+    private static void assertVersion(int version, MessageIdGenerator ids) {
+        final UUID id = ids.nextId();
+        assertEquals(version, id.version());
+        assertEquals(2, id.variant());
+    }
+
+    public static class Fixed implements MessageIdGenerator {
+        @Override
+        public UUID nextId() {
+            return new UUID(0, 0);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.encoder.EchoEncoder;
+
+public class ParallelEncodingAppenderTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int THREADS = 3;
+    private static final int EVENTS = 2_000;
+
+    @Test
+    public void deliversEncodedEventsInOrder() throws Exception {
+        final RingBufferAsyncAppenderTest.Sink sink = new RingBufferAsyncAppenderTest.Sink();
+        final ParallelEncodingAppender appender = new ParallelEncodingAppender();
+        appender.setName("test");
+        appender.setEncoder(new JsonLogEncoder());
+        appender.setEncoderThreads(3);
+        appender.setBufferSize(32);
+        appender.addAppender(sink);
+        appender.start();
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final String thread = Integer.toString(t);
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < EVENTS; i++) {
+                    appender.doAppend(event(thread, i));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        appender.stop();
+
+        assertEquals(THREADS * EVENTS, sink.events.size());
+        assertEquals(0, appender.getDroppedEvents());
+        assertEquals(0, appender.getQueuedEvents());
+        assertFalse(sink.isStarted());
+        final int[] next = new int[THREADS];
+        final long[] sequence = new long[THREADS];
+        for (ILoggingEvent e : sink.events) {
+            final int thread = Integer.parseInt(e.getThreadName());
+            assertEquals(next[thread]++, e.getArgumentArray()[0]);
+            assertTrue(e instanceof EncodedLoggingEvent);
+            final JsonNode line = mapper.readTree(bytes((EncodedLoggingEvent) e));
+            assertEquals("event " + (next[thread] - 1), line.get("message").textValue());
+            final long seq = line.get("sequence-number").longValue();
+            assertTrue(seq > sequence[thread]);
+            sequence[thread] = seq;
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void stopRacesWithProducers() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final RingBufferAsyncAppenderTest.Sink sink = new RingBufferAsyncAppenderTest.Sink();
+            final ParallelEncodingAppender appender = new ParallelEncodingAppender();
+            appender.setName("race-" + round);
+            appender.setEncoder(new JsonLogEncoder());
+            appender.setEncoderThreads(2);
+            appender.setBufferSize(4);
+            appender.addAppender(sink);
+            appender.start();
+
+            final List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final String thread = Integer.toString(t);
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < EVENTS; i++) {
+                        appender.doAppend(event(thread, i));
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            Thread.sleep(1);
+            appender.stop();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            // Whatever was claimed before the stop got through, nothing is left for a thread to wait for
+            assertEquals(0, appender.getQueuedEvents());
+            assertFalse(isAlive("ParallelEncodingAppender-Worker-race-" + round));
+            assertTrue(sink.events.size() + appender.getDroppedEvents() <= THREADS * EVENTS);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void moreEncoderThreadsThanSlots() throws Exception {
+        final RingBufferAsyncAppenderTest.Sink sink = new RingBufferAsyncAppenderTest.Sink();
+        final ParallelEncodingAppender appender = new ParallelEncodingAppender();
+        appender.setName("narrow");
+        appender.setEncoder(new EchoEncoder<>());
+        // Every encoder thread waits on an ordinal of the one slot
+        appender.setEncoderThreads(4);
+        appender.setBufferSize(1);
+        appender.addAppender(sink);
+        appender.start();
+        for (int i = 0; i < 20; i++) {
+            // Let the encoder threads go to sleep, so the event has to wake the right one
+            TimeUnit.MILLISECONDS.sleep(20);
+            appender.doAppend(event("main", i));
+        }
+        appender.stop();
+
+        assertEquals(20, sink.events.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, sink.events.get(i).getArgumentArray()[0]);
+        }
+    }
+
+    @Test
+    public void treeEncodingUsesDrawnSequenceNumber() throws Exception {
+        final JsonLogEncoder encoder = new JsonLogEncoder();
+        final long drawn = encoder.nextSequenceNumber();
+        final JsonNode line = mapper.readTree(encoder.encode(event("main", 0), drawn));
+        assertEquals(drawn, line.get("sequence-number").longValue());
+        // Nothing else was drawn for the event
+        assertEquals(drawn + 1, encoder.nextSequenceNumber());
+    }
+
+    private static boolean isAlive(String threadName) {
+        return Thread.getAllStackTraces().keySet().stream().anyMatch(t -> threadName.equals(t.getName()));
+    }
+
+    private static byte[] bytes(EncodedLoggingEvent event) {
+        final ByteBuffer buffer = event.asByteBuffer();
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static ILoggingEvent event(String thread, int index) {
+        final LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.INFO);
+        event.setThreadName(thread);
+        event.setLoggerName("parallel");
+        event.setMessage("event {}");
+        event.setArgumentArray(new Object[] { index });
+        return event;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class PriorityAsyncAppenderTest {
+    @Test
+    public void shedsLowLevelsFirst() throws Exception {
+        final RingBufferAsyncAppenderTest.Sink sink = new RingBufferAsyncAppenderTest.Sink();
+        final CountDownLatch release = new CountDownLatch(1);
+        sink.gate = release;
+        final LoggerContext context = new LoggerContext();
+        context.setName("priority");
+        final PriorityAsyncAppender appender = new PriorityAsyncAppender();
+        appender.setContext(context);
+        appender.setName("test");
+        appender.setDebugBufferSize(4);
+        appender.setInfoBufferSize(4);
+        appender.setSummaryInterval(0);
+        appender.addAppender(sink);
+        appender.start();
+
+        // The worker takes the first event and waits on the gate, the lanes fill up behind it
+        appender.doAppend(event(Level.INFO, 0));
+        while (appender.getQueuedEvents() > 0) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        for (int i = 1; i <= 10; i++) {
+            appender.doAppend(event(Level.DEBUG, i));
+            appender.doAppend(event(Level.TRACE, i));
+            appender.doAppend(event(Level.INFO, i));
+        }
+        for (int i = 1; i <= 3; i++) {
+            appender.doAppend(event(Level.WARN, i));
+            appender.doAppend(event(Level.ERROR, i));
+        }
+        assertEquals(16, appender.getDroppedEvents("debug"));
+        assertEquals(6, appender.getDroppedEvents("INFO"));
+        assertEquals(0, appender.getDroppedEvents("warn") + appender.getDroppedEvents("error"));
+        release.countDown();
+        appender.stop();
+
+        final List<String> levels = new ArrayList<>();
+        for (ILoggingEvent e : sink.events) {
+            levels.add(e.getLevel().toString());
+        }
+        assertEquals(List.of("INFO", "ERROR", "ERROR", "ERROR", "WARN", "WARN", "WARN", "INFO", "INFO", "INFO", "INFO",
+                "DEBUG", "TRACE", "DEBUG", "TRACE", "WARN"), levels);
+        assertEquals(1, sink.events.get(1).getArgumentArray()[0]);
+        assertEquals(3, sink.events.get(6).getArgumentArray()[0]);
+
+        final ILoggingEvent summary = sink.events.get(sink.events.size() - 1);
+        assertEquals(PriorityAsyncAppender.class.getName(), summary.getLoggerName());
+        assertEquals("Appender test dropped 22 events: 0 ERROR, 0 WARN, 6 INFO, 16 DEBUG/TRACE", summary.getFormattedMessage());
+        assertEquals("16", summary.getMDCPropertyMap().get("dropped-debug"));
+        assertTrue(summary.getMDCPropertyMap().containsKey("dropped-error"));
+        // The summary carries the logger context like any other event
+        assertEquals("priority", summary.getLoggerContextVO().getName());
+    }
+
+    @Test(timeout = 30_000)
+    public void countsEventsAppendedDuringStop() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final RingBufferAsyncAppenderTest.Sink sink = new RingBufferAsyncAppenderTest.Sink();
+            final PriorityAsyncAppender appender = new PriorityAsyncAppender();
+            appender.setName("test");
+            appender.setInfoBufferSize(64);
+            appender.setWarnBufferSize(64);
+            appender.setSummaryInterval(0);
+            appender.addAppender(sink);
+            appender.start();
+            final AtomicInteger appended = new AtomicInteger();
+            final AtomicBoolean done = new AtomicBoolean();
+            final List<Thread> threads = new ArrayList<>();
+            for (Level level : new Level[] { Level.INFO, Level.WARN }) {
+                threads.add(new Thread(() -> {
+                    // Calls append directly, like a producer that got past isStarted() just before the stop
+                    for (int i = 0; !done.get(); i++) {
+                        appender.append(event(level, i));
+                        appended.incrementAndGet();
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            TimeUnit.MILLISECONDS.sleep(2);
+            appender.stop();
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // Every event is either delivered or counted as dropped, the summary of the drops aside
+            final long delivered = sink.events.stream()
+                    .filter(e -> !PriorityAsyncAppender.class.getName().equals(e.getLoggerName()))
+                    .count();
+            assertEquals(appended.get(), delivered + appender.getDroppedEvents());
+        }
+    }
+
+    private static ILoggingEvent event(Level level, int index) {
+        final LoggingEvent event = new LoggingEvent();
+        event.setLevel(level);
+        event.setMessage("event {}");
+        event.setArgumentArray(new Object[] { index });
+        return event;
+    }
+}
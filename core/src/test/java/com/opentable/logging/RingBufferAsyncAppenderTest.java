@@ -0,0 +1,211 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+
+public class RingBufferAsyncAppenderTest {
+    private static final int THREADS = 4;
+    private static final int EVENTS = 5_000;
+
+    @Test
+    public void deliversInOrderFromManyThreads() throws Exception {
+        for (String strategy : new String[] { "spin", "yield", "park", "block" }) {
+            final Sink sink = new Sink();
+            final RingBufferAsyncAppender appender = appender(sink);
+            appender.setWaitStrategy(strategy);
+            appender.setBufferSize(64);
+            appender.start();
+
+            final List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final String thread = Integer.toString(t);
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < EVENTS; i++) {
+                        appender.doAppend(event(thread, i));
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            appender.stop();
+
+            assertEquals(strategy, THREADS * EVENTS, sink.events.size());
+            assertEquals(0, appender.getDroppedEvents());
+            final int[] next = new int[THREADS];
+            for (ILoggingEvent e : sink.events) {
+                final int thread = Integer.parseInt(e.getThreadName());
+                assertEquals(strategy, next[thread]++, e.getArgumentArray()[0]);
+            }
+        }
+    }
+
+    @Test
+    public void dropsWhenFull() throws Exception {
+        final Sink sink = new Sink();
+        final CountDownLatch release = new CountDownLatch(1);
+        sink.gate = release;
+        final RingBufferAsyncAppender appender = appender(sink);
+        appender.setBufferSize(4);
+        appender.setOverflowPolicy("drop");
+        appender.start();
+        for (int i = 0; i < 20; i++) {
+            appender.doAppend(event("0", i));
+        }
+        assertTrue(appender.getDroppedEvents() >= 20 - 4 - 1);
+        release.countDown();
+        appender.stop();
+        assertEquals(20, sink.events.size() + appender.getDroppedEvents());
+    }
+
+    @Test
+    public void stopClearsInterrupt() throws Exception {
+        final Sink sink = new Sink();
+        final RingBufferAsyncAppender appender = appender(sink);
+        appender.setWaitStrategy("block");
+        appender.start();
+        appender.doAppend(event("0", 0));
+
+        Thread.currentThread().interrupt();
+        try {
+            appender.stop();
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(1, sink.events.size());
+        assertFalse(sink.interruptedOnStop);
+        assertFalse(sink.isStarted());
+    }
+
+    @Test(timeout = 10_000)
+    public void stopsChildrenAfterMissedFlushOnceTheAppendReturns() throws Exception {
+        final Sink sink = new Sink();
+        final CountDownLatch release = new CountDownLatch(1);
+        sink.gate = release;
+        final RingBufferAsyncAppender appender = appender(sink);
+        appender.setMaxFlushTime(50);
+        appender.start();
+        for (int i = 0; i < 3; i++) {
+            appender.doAppend(event("0", i));
+        }
+
+        appender.stop();
+        // The worker is still appending the first event, so the child must not be stopped under it
+        assertTrue(sink.isStarted());
+        release.countDown();
+        while (sink.isStarted()) {
+            Thread.sleep(5);
+        }
+        // The queued events were dropped when the deadline passed
+        assertEquals(1, sink.events.size());
+        assertFalse(sink.interruptedOnStop);
+    }
+
+    @Test(timeout = 30_000)
+    public void countsEventsAppendedDuringStop() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final Sink sink = new Sink();
+            final RingBufferAsyncAppender appender = appender(sink);
+            appender.setBufferSize(64);
+            appender.start();
+            final AtomicInteger appended = new AtomicInteger();
+            final AtomicBoolean done = new AtomicBoolean();
+            final List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final String thread = Integer.toString(t);
+                threads.add(new Thread(() -> {
+                    // Calls append directly, like a producer that got past isStarted() just before the stop
+                    for (int i = 0; !done.get(); i++) {
+                        appender.append(event(thread, i));
+                        appended.incrementAndGet();
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            TimeUnit.MILLISECONDS.sleep(2);
+            appender.stop();
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // Every event is either delivered or counted as dropped
+            assertEquals(appended.get(), sink.events.size() + appender.getDroppedEvents());
+        }
+    }
+
+    private static RingBufferAsyncAppender appender(Sink sink) {
+        final RingBufferAsyncAppender appender = new RingBufferAsyncAppender();
+        appender.setName("test");
+        appender.addAppender(sink);
+        return appender;
+    }
+
+    private static ILoggingEvent event(String thread, int index) {
+        final LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.INFO);
+        event.setThreadName(thread);
+        event.setMessage("event {}");
+        event.setArgumentArray(new Object[] { index });
+        return event;
+    }
+
+    static class Sink extends UnsynchronizedAppenderBase<ILoggingEvent> {
+        final List<ILoggingEvent> events = Collections.synchronizedList(new ArrayList<>());
+        volatile CountDownLatch gate;
+        volatile boolean interruptedOnStop;
+
+        Sink() {
+            start();
+        }
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            final CountDownLatch latch = gate;
+            if (latch != null) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            events.add(event);
+        }
+
+        @Override
+        public void stop() {
+            interruptedOnStop = Thread.currentThread().isInterrupted();
+            super.stop();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SequenceAllocationTest {
+    @Test
+    public void uniqueAcrossModesAndThreads() throws Exception {
+        final Set<Long> seen = ConcurrentHashMap.newKeySet();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final SequenceAllocation mode = i % 2 == 0 ? SequenceAllocation.LEASED : SequenceAllocation.GLOBAL;
+            threads[i] = new Thread(() -> {
+                long last = 0;
+                for (int j = 0; j < 5000; j++) {
+                    final long next = mode.next();
+                    if (next <= last) {
+                        outOfOrder.incrementAndGet();
+                    }
+                    last = next;
+                    seen.add(next);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(threads.length * 5000, seen.size());
+        assertEquals(0, outOfOrder.get());
+    }
+
+    @Test
+    public void fromString() {
+        assertEquals(SequenceAllocation.LEASED, SequenceAllocation.fromString(" Leased"));
+        assertEquals(SequenceAllocation.GLOBAL, SequenceAllocation.fromString("global"));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static com.opentable.logging.otl.ChatLogV2.ChatLogV2;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class SmileLogEncoderTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void sameFieldsAsJson() throws Exception {
+        final LoggingEvent le = new LoggingEvent();
+        le.setLevel(Level.WARN);
+        le.setLoggerName("test-logger");
+        le.setMessage("a message");
+        le.setTimeStamp(1234567890123L);
+        le.setMarker(ChatLogV2().deliveredAt(Instant.ofEpochSecond(1024)).log());
+        final Map<String, String> mdc = new HashMap<>();
+        mdc.put("custom", "value");
+        le.setMDCPropertyMap(mdc);
+
+        for (boolean streaming : new boolean[] { false, true }) {
+            final JsonLogEncoder json = new JsonLogEncoder();
+            final SmileLogEncoder smile = new SmileLogEncoder();
+            json.setStreaming(streaming);
+            smile.setStreaming(streaming);
+
+            final byte[] record = smile.encode(le);
+            assertEquals(':', record[0]);
+            assertNotEquals('\n', record[record.length - 1]);
+
+            final ObjectNode expected = mapper.readValue(json.encode(le), ObjectNode.class);
+            final ObjectNode decoded = (ObjectNode) SmileLogDecoder.decode(record);
+            for (ObjectNode node : new ObjectNode[] { expected, decoded }) {
+                node.remove("@uuid");
+                node.remove(CommonLogFields.SEQUENCE_NUMBER_KEY);
+            }
+            assertEquals(expected, decoded);
+            assertEquals(mapper.readTree(SmileLogDecoder.toJson(record)), SmileLogDecoder.decode(record));
+        }
+    }
+
+    @Test
+    public void recordsDecodeIndependently() throws Exception {
+        final SmileLogEncoder smile = new SmileLogEncoder();
+        smile.setStreaming(true);
+        smile.encode(newEvent("first"));
+        assertEquals("second", SmileLogDecoder.decode(smile.encode(newEvent("second"))).get("message").textValue());
+    }
+
+    private static LoggingEvent newEvent(String message) {
+        final LoggingEvent le = new LoggingEvent();
+        le.setLevel(Level.INFO);
+        le.setLoggerName("test-logger");
+        le.setMessage(message);
+        return le;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import org.junit.Test;
+
+public class TimestampCacheTest {
+    private final TimestampCache cache = new TimestampCache();
+
+    @Test
+    public void matchesIsoInstant() {
+        final long[] millis = { 0, 1, 999, 1000, 1234567890123L, 1234567890100L, -1, -1001, 253402300799999L, 253402300800000L, -62167219200001L };
+        for (long m : millis) {
+            assertEquals(DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(m)), cache.format(m));
+        }
+        for (long m = 1234567890000L; m < 1234567892000L; m += 7) {
+            assertEquals(DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(m)), cache.format(m));
+        }
+    }
+
+    @Test
+    public void matchesIsoInstantFractions() {
+        final int[] nanos = { 0, 1, 1000, 1_000_000, 123_000_000, 123_456_000, 123_456_789, 999_999_999 };
+        final char[] buf = new char[TimestampCache.MAX_LENGTH];
+        for (int n : nanos) {
+            final Instant instant = Instant.ofEpochSecond(1234567890L, n);
+            assertEquals(DateTimeFormatter.ISO_INSTANT.format(instant),
+                    new String(buf, 0, cache.render(instant.getEpochSecond(), n, buf, 0)));
+        }
+    }
+
+    @Test
+    public void formatsTreeNodes() {
+        final Instant instant = Instant.ofEpochSecond(1234567890L, 123_456_789);
+        final JsonNodeFactory nodes = JsonNodeFactory.instance;
+        assertEquals(DateTimeFormatter.ISO_INSTANT.format(instant),
+                TimestampFormat.ISO.toNode(nodes, instant.getEpochSecond(), instant.getNano()).textValue());
+        assertEquals(1234567890123L, TimestampFormat.EPOCH_MILLIS.toNode(nodes, instant.getEpochSecond(), instant.getNano()).longValue());
+        assertEquals(1234567890123456L, TimestampFormat.EPOCH_MICROS.toNode(nodes, instant.getEpochSecond(), instant.getNano()).longValue());
+    }
+}
@@ -14,7 +14,6 @@
 package com.opentable.logging.jetty;
 
 import java.time.Clock;
-import java.time.Duration;
 import java.time.Instant;
 import java.util.Objects;
 import java.util.Set;
@@ -41,6 +40,7 @@ import org.slf4j.MDC;
 import com.opentable.httpheaders.OTHeaders;
 import com.opentable.logging.CommonLogFields;
 import com.opentable.logging.CommonLogHolder;
+import com.opentable.logging.JsonLogEncoderRegistry;
 import com.opentable.logging.LogbackLogging;
 import com.opentable.logging.otl.HttpV1;
 
@@ -54,6 +54,8 @@ public class JsonRequestLog extends AbstractLifeCycle implements RequestLog
     // Note: This is strictly to fix the transitive dependency and have dependency checker not complaining
     static {
         HttpServletRequest.class.hashCode(); //NOPMD
+        // Have encoders resolve the request log serializers before the first request comes in
+        JsonLogEncoderRegistry.registerWarmUpTypes(HttpV1.class);
     }
     private static final Logger LOG = LoggerFactory.getLogger(JsonRequestLog.class);
 
@@ -126,22 +128,20 @@ public class JsonRequestLog extends AbstractLifeCycle implements RequestLog
     @Nonnull
     protected HttpV1 createEvent(Request request, Response response) {
         final String query = request.getQueryString();
+        // Read the clock once, the timestamp and the end of the duration are the same instant
+        final Instant now = clock.instant();
         return HttpV1.builder()
                 .logName("request")
                 .serviceType(CommonLogHolder.getServiceType())
-                .uuid(UUID.randomUUID())
-                .timestamp(clock.instant())
+                .uuid(CommonLogHolder.getMessageIdGenerator().nextId())
+                .timestamp(now)
                 .method(request.getMethod())
                 .status(response.getStatus())
                 .incoming(true)
                 .url(fullUrl(request))
                 .urlQuerystring(query)
 
-                .duration(TimeUnit.NANOSECONDS.toMicros(
-                        Duration.between(
-                                Instant.ofEpochMilli(request.getTimeStamp()),
-                                clock.instant())
-                                .toNanos()))
+                .duration(durationMicros(request.getTimeStamp(), now))
 
                 .bodySize(request.getContentLengthLong())
                 .responseSize(response.getContentCount())
@@ -171,6 +171,10 @@ public class JsonRequestLog extends AbstractLifeCycle implements RequestLog
                 .build();
     }
 
+    static long durationMicros(long startMillis, Instant end) {
+        return end.getEpochSecond() * 1_000_000L + end.getNano() / 1000 - TimeUnit.MILLISECONDS.toMicros(startMillis);
+    }
+
     /**
      * Provides a hook whereby an alternate source can be provided for grabbing the requestId
      * @param request The request
@@ -21,6 +21,7 @@ import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.collect.Sets;
@@ -30,6 +31,8 @@ import org.eclipse.jetty.server.Response;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.opentable.logging.CommonLogHolder;
+import com.opentable.logging.MessageIdGenerators;
 import com.opentable.logging.otl.HttpV1;
 
 public class JsonRequestLogTest {
@@ -122,4 +125,43 @@ public class JsonRequestLogTest {
         jsonRequestLog.log(request, response);
         assertNull(httpV1Ref.get());
     }
+
+    @Test
+    public void testTimestampAndDurationFromOneClockReading() {
+        // The request took 678.901 ms, the clock has microsecond precision
+        final Clock clock = Clock.fixed(Instant.ofEpochSecond(12345, 678_901_000), ZoneId.systemDefault());
+        final JsonRequestLogConfig config = new JsonRequestLogConfig(true, Sets.newHashSet(), Sets.newHashSet(), "myLogger");
+        final AtomicReference<RequestLogEvent> eventRef = new AtomicReference<>();
+        final JsonRequestLog requestLog = new JsonRequestLog(clock, config) {
+            @Override
+            protected void sendEvent(final RequestLogEvent event) {
+                eventRef.set(event);
+            }
+        };
+        final UUID uuid = UUID.fromString("00000000-0000-0000-0000-000000000042");
+        CommonLogHolder.setMessageIdGenerator(() -> uuid);
+        try {
+            final Request request = mock(Request.class);
+            when(request.getRequestURI()).thenReturn("/timed");
+            when(request.getMethod()).thenReturn("GET");
+            when(request.getTimeStamp()).thenReturn(12345000L);
+            final Response response = mock(Response.class);
+            when(response.getStatus()).thenReturn(200);
+            requestLog.log(request, response);
+        } finally {
+            CommonLogHolder.setMessageIdGenerator(MessageIdGenerators.secure());
+        }
+
+        final HttpV1 payload = eventRef.get().getPayload();
+        assertEquals(Instant.ofEpochSecond(12345, 678_901_000), payload.getTimestamp());
+        assertEquals(678_901L, payload.getDuration());
+        assertEquals(uuid, payload.getUuid());
+        assertEquals("GET /timed : 200, 678.9 ms", eventRef.get().getMessage());
+    }
+
+    @Test
+    public void testDurationMicros() {
+        assertEquals(0L, JsonRequestLog.durationMicros(12345678L, Instant.ofEpochMilli(12345678L)));
+        assertEquals(1_001L, JsonRequestLog.durationMicros(12345678L, Instant.ofEpochSecond(12345, 679_001_999)));
+    }
 }
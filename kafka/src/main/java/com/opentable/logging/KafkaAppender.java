@@ -13,6 +13,7 @@
  */
 package com.opentable.logging;
 
+import java.util.Collections;
 import java.util.Properties;
 
 import org.apache.kafka.clients.producer.KafkaProducer;
@@ -36,6 +37,7 @@ public class KafkaAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
 
     private KafkaProducer<byte[], byte[]> producer;
     private Encoder<ILoggingEvent> encoder;
+    private ZstdDictionaryCompressor compressor;
 
     private String brokerList = null;
     private String topic;
@@ -61,6 +63,10 @@ public class KafkaAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
         config.put("acks", "1");
         config.put("compression.type", compressionCodec);
         config.put("client.id", clientId);
+        if (compressor != null && !compressor.isStarted()) {
+            addWarn("zstd dictionary compressor failed to start, sending records uncompressed");
+            compressor = null;
+        }
         keySerializer = new ByteArraySerializer();
         valueSerializer = new ByteArraySerializer();
         producer = new KafkaProducer<>(config, keySerializer, valueSerializer);
@@ -79,6 +85,10 @@ public class KafkaAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
         producer.close();
         keySerializer.close();
         valueSerializer.close();
+        // Records are compressed before they reach the producer, so the native dictionaries can go now
+        if (compressor != null) {
+            compressor.stop();
+        }
         addInfo("Finished closing Kafka producer");
     }
 
@@ -86,11 +96,11 @@ public class KafkaAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
     protected void append(ILoggingEvent eventObject)
     {
         try {
-            producer.send(new ProducerRecord<>(topic, keyGenerator.next(), encoder.encode(eventObject)));
+            producer.send(record(eventObject));
         } catch (InterruptException e) {
             if (Thread.interrupted()) {
                 addWarn("KafkaAppender::append() is called from the interrupted thread, we cleared interrupt flag and about to retry..");
-                producer.send(new ProducerRecord<>(topic, keyGenerator.next(), encoder.encode(eventObject)));
+                producer.send(record(eventObject));
             } else {
                 // If it is actually issue with KafkaProducer.ioThread, we do not want to swallow exception.
                 throw e;
@@ -98,6 +108,18 @@ public class KafkaAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
         }
     }
 
+    private ProducerRecord<byte[], byte[]> record(ILoggingEvent eventObject)
+    {
+        final byte[] value = encoder.encode(eventObject);
+        // Records appended while the appender stops go out uncompressed
+        final byte[] compressed = compressor == null ? null : compressor.compress(value);
+        if (compressed == null) {
+            return new ProducerRecord<>(topic, keyGenerator.next(), value);
+        }
+        return new ProducerRecord<>(topic, null, keyGenerator.next(), compressed,
+                Collections.singletonList(compressor.getHeader()));
+    }
+
     public Encoder<ILoggingEvent> getEncoder()
     {
         return encoder;
@@ -108,6 +130,21 @@ public class KafkaAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
         this.encoder = encoder;
     }
 
+    public ZstdDictionaryCompressor getCompressor()
+    {
+        return compressor;
+    }
+
+    /**
+     * Compress each record with a trained zstd dictionary before it is handed to the producer.
+     * Batch compression is still applied on top, consider setting the compression codec to {@code none}.
+     * @param compressor the compressor, started by the configurator
+     */
+    public void setCompressor(ZstdDictionaryCompressor compressor)
+    {
+        this.compressor = compressor;
+    }
+
     public String getBrokerList()
     {
         return brokerList;
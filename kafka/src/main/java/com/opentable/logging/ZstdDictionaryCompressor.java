@@ -0,0 +1,195 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.google.common.io.ByteStreams;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.spi.LifeCycle;
+
+/**
+ * Compresses each encoded record on its own with a zstd dictionary trained on our log lines
+ * (see {@link ZstdDictionaryTrainer}).  Kafka's batch compression needs many records per batch to
+ * find repetition, while a dictionary already knows the field names and common values, so even a
+ * batch of one record compresses well.
+ * <p>
+ * The id of the dictionary is sent in the {@value #DICTIONARY_ID_HEADER} record header, as a decimal
+ * string, so consumers can pick the matching dictionary.  Configure it on {@link KafkaAppender}:
+ * <pre>{@code
+ * <compressor class="com.opentable.logging.ZstdDictionaryCompressor">
+ *   <dictionary>classpath:/logging/logs.zdict</dictionary>
+ *   <level>3</level>
+ * </compressor>
+ * }</pre>
+ */
+public class ZstdDictionaryCompressor extends ContextAwareBase implements LifeCycle {
+    public static final String DICTIONARY_ID_HEADER = "zstd-dictionary-id";
+
+    private static final String CLASSPATH_PREFIX = "classpath:";
+
+    private String dictionary;
+    private int level = 3;
+
+    private volatile boolean started;
+    private volatile ZstdDictCompress compressDict;
+    private volatile ZstdDictDecompress decompressDict;
+    private long dictionaryId;
+    private Header header;
+
+    @Override
+    public void start() {
+        if (dictionary == null) {
+            addError("No zstd dictionary configured");
+            return;
+        }
+        final byte[] dict;
+        try {
+            dict = load(dictionary);
+        } catch (IOException e) {
+            addError("Could not load zstd dictionary " + dictionary, e);
+            return;
+        }
+        dictionaryId = Zstd.getDictIdFromDict(dict);
+        if (dictionaryId == 0) {
+            addError("Not a trained zstd dictionary: " + dictionary);
+            return;
+        }
+        compressDict = new ZstdDictCompress(dict, level);
+        decompressDict = new ZstdDictDecompress(dict);
+        header = new RecordHeader(DICTIONARY_ID_HEADER, Long.toString(dictionaryId).getBytes(StandardCharsets.US_ASCII));
+        started = true;
+        addInfo("Compressing records with zstd dictionary " + dictionaryId + " at level " + level);
+    }
+
+    /**
+     * Stop and free the native dictionaries.  A record still being compressed keeps its dictionary alive,
+     * which is then freed by the garbage collector instead.
+     */
+    @Override
+    public void stop() {
+        started = false;
+        final ZstdDictCompress compress = compressDict;
+        compressDict = null;
+        free(compress);
+        final ZstdDictDecompress decompress = decompressDict;
+        decompressDict = null;
+        free(decompress);
+    }
+
+    private void free(Closeable dict) {
+        if (dict == null) {
+            return;
+        }
+        try {
+            dict.close();
+        } catch (IOException | RuntimeException e) {
+            addWarn("Could not free zstd dictionary " + dictionaryId + " now, leaving it to the garbage collector", e);
+        }
+    }
+
+    @Override
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Compress one record.
+     * @param record the encoded record
+     * @return a zstd frame holding the record, or null if the compressor is stopped and the record should be sent as is
+     */
+    public byte[] compress(byte[] record) {
+        final ZstdDictCompress dict = compressDict;
+        if (!started || dict == null) {
+            return null;
+        }
+        try {
+            return Zstd.compress(record, dict);
+        } catch (IllegalStateException e) {
+            // The dictionary was closed by a concurrent stop()
+            return null;
+        }
+    }
+
+    /**
+     * Decompress a record written by {@link #compress(byte[])} with the same dictionary.
+     * @param frame the compressed record
+     * @return the encoded record
+     */
+    public byte[] decompress(byte[] frame) {
+        return Zstd.decompress(frame, decompressDict, (int) Zstd.decompressedSize(frame));
+    }
+
+    /**
+     * @return the record header naming the dictionary
+     */
+    public Header getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the id of the loaded dictionary
+     */
+    public long getDictionaryId() {
+        return dictionaryId;
+    }
+
+    public String getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @param dictionary a file path, or a resource prefixed with {@code classpath:}
+     */
+    public void setDictionary(String dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    private static byte[] load(String location) throws IOException {
+        if (!location.startsWith(CLASSPATH_PREFIX)) {
+            return Files.readAllBytes(Paths.get(location));
+        }
+        String resource = location.substring(CLASSPATH_PREFIX.length());
+        if (resource.startsWith("/")) {
+            resource = resource.substring(1);
+        }
+        final ClassLoader loader = ZstdDictionaryCompressor.class.getClassLoader();
+        try (InputStream in = loader.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("No such resource");
+            }
+            return ByteStreams.toByteArray(in);
+        }
+    }
+}
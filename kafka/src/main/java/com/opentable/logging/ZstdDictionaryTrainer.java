@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+
+/**
+ * Trains a zstd dictionary for {@link ZstdDictionaryCompressor} from a sample of encoded log lines,
+ * one JSON object per line, for example a few minutes of a topic dumped by a console consumer.
+ * <pre>
+ * java -cp ... com.opentable.logging.ZstdDictionaryTrainer sample.ndjson logs.zdict [dictionary size]
+ * </pre>
+ * Samples should come from the services that will use the dictionary; it learns their field names,
+ * logger names and frequent values.
+ */
+public final class ZstdDictionaryTrainer {
+    static final int DEFAULT_DICTIONARY_SIZE = 64 * 1024;
+
+    private ZstdDictionaryTrainer() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: ZstdDictionaryTrainer <sample.ndjson> <output dictionary> [dictionary size]");
+            System.exit(1);
+        }
+        final int dictSize = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_DICTIONARY_SIZE;
+        final byte[] sample = Files.readAllBytes(Paths.get(args[0]));
+        final byte[] dict = train(sample, dictSize);
+        final Path out = Paths.get(args[1]);
+        Files.write(out, dict);
+
+        // Report how single records fare, which is the case the dictionary is for.
+        long raw = 0, plain = 0, trained = 0;
+        final ZstdDictCompress compressDict = new ZstdDictCompress(dict, 3);
+        for (byte[] line : lines(sample)) {
+            raw += line.length;
+            plain += Zstd.compress(line, 3).length;
+            trained += Zstd.compress(line, compressDict).length;
+        }
+        System.out.printf("Wrote dictionary %d (%d bytes) to %s%n", Zstd.getDictIdFromDict(dict), dict.length, out);
+        System.out.printf("Per record: %d bytes raw, %d without dictionary, %d with dictionary (ratio %.2f)%n",
+                raw, plain, trained, trained == 0 ? 0.0 : (double) raw / trained);
+    }
+
+    /**
+     * Train a dictionary.
+     * @param sample newline separated records
+     * @param dictSize the maximum dictionary size in bytes
+     * @return the dictionary
+     */
+    static byte[] train(byte[] sample, int dictSize) {
+        final ZstdDictTrainer trainer = new ZstdDictTrainer(sample.length, dictSize);
+        for (byte[] line : lines(sample)) {
+            if (!trainer.addSample(line)) {
+                break;
+            }
+        }
+        return trainer.trainSamples();
+    }
+
+    /**
+     * Split a sample into records, keeping each trailing newline since the encoder writes it too.
+     */
+    static byte[][] lines(byte[] sample) {
+        byte[][] lines = new byte[64][];
+        int count = 0;
+        int start = 0;
+        for (int i = 0; i <= sample.length; i++) {
+            if (i == sample.length || sample[i] == '\n') {
+                final int end = Math.min(i + 1, sample.length);
+                if (end - start > 1) {
+                    if (count == lines.length) {
+                        lines = Arrays.copyOf(lines, count * 2);
+                    }
+                    lines[count++] = Arrays.copyOfRange(sample, start, end);
+                }
+                start = i + 1;
+            }
+        }
+        return Arrays.copyOf(lines, count);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.logging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import ch.qos.logback.core.ContextBase;
+
+public class ZstdDictionaryCompressorTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final ByteArrayOutputStream sample = new ByteArrayOutputStream();
+        for (int i = 0; i < 5000; i++) {
+            sample.write(line(i).getBytes(StandardCharsets.UTF_8));
+        }
+        final byte[] dict = ZstdDictionaryTrainer.train(sample.toByteArray(), 16 * 1024);
+        final Path file = Files.createTempFile("logs", ".zdict");
+        try {
+            Files.write(file, dict);
+
+            final ZstdDictionaryCompressor compressor = new ZstdDictionaryCompressor();
+            compressor.setContext(new ContextBase());
+            compressor.setDictionary(file.toString());
+            compressor.start();
+            assertTrue(compressor.isStarted());
+
+            final byte[] record = line(12345).getBytes(StandardCharsets.UTF_8);
+            final byte[] compressed = compressor.compress(record);
+            assertTrue(compressed.length * 2 < record.length);
+            assertArrayEquals(record, compressor.decompress(compressed));
+
+            assertEquals(ZstdDictionaryCompressor.DICTIONARY_ID_HEADER, compressor.getHeader().key());
+            assertEquals(Long.toString(compressor.getDictionaryId()),
+                    new String(compressor.getHeader().value(), StandardCharsets.US_ASCII));
+
+            compressor.stop();
+            assertFalse(compressor.isStarted());
+            assertNull(compressor.compress(record));
+            compressor.stop();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testStopWhileCompressing() throws Exception {
+        final ByteArrayOutputStream sample = new ByteArrayOutputStream();
+        for (int i = 0; i < 5000; i++) {
+            sample.write(line(i).getBytes(StandardCharsets.UTF_8));
+        }
+        final Path file = Files.createTempFile("logs", ".zdict");
+        try {
+            Files.write(file, ZstdDictionaryTrainer.train(sample.toByteArray(), 16 * 1024));
+            for (int round = 0; round < 20; round++) {
+                final ZstdDictionaryCompressor compressor = new ZstdDictionaryCompressor();
+                compressor.setContext(new ContextBase());
+                compressor.setDictionary(file.toString());
+                compressor.start();
+
+                final byte[] record = line(round).getBytes(StandardCharsets.UTF_8);
+                final AtomicReference<Throwable> failure = new AtomicReference<>();
+                final List<Thread> threads = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    threads.add(new Thread(() -> {
+                        try {
+                            // Records compressed after the stop come back null, to be sent uncompressed
+                            while (compressor.compress(record) != null) {
+                                Thread.onSpinWait();
+                            }
+                        } catch (Throwable e) {
+                            failure.set(e);
+                        }
+                    }));
+                }
+                threads.forEach(Thread::start);
+                Thread.sleep(5);
+                compressor.stop();
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                assertNull(failure.get());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testMissingDictionary() {
+        final ZstdDictionaryCompressor compressor = new ZstdDictionaryCompressor();
+        compressor.setContext(new ContextBase());
+        compressor.setDictionary("classpath:/no-such.zdict");
+        compressor.start();
+        assertFalse(compressor.isStarted());
+    }
+
+    private static String line(int i) {
+        return "{\"@timestamp\":\"2026-10-18T12:00:" + (i % 60) + ".123Z\",\"@uuid\":\"0192f0c4-" + Integer.toHexString(i * 7919)
+                + "\",\"servicetype\":\"reservation-service\",\"logname\":\"log\",\"sequence-number\":" + i
+                + ",\"severity\":\"INFO\",\"logger\":\"com.opentable.reservation.ReservationController\",\"thread\":\"http-"
+                + (i % 16) + "\",\"message\":\"Booked reservation " + i + " for restaurant " + (i % 113) + "\"}\n";
+    }
+}